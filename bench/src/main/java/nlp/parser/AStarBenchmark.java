@@ -0,0 +1,77 @@
+package nlp.parser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing the sentences of data/short.parsed with the grammar short.binary.pcfg by A* search,
+ * against the exhaustive CKYParser.  heuristicLength 0 is uniform cost search, without outside
+ * estimates.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AStarBenchmark {
+	@Param({"0", "40"})
+	public int heuristicLength;
+
+	private List<String> sentences;
+	private AStarParser aStar;
+	private CKYParser cky;
+
+	@Setup
+	public void setup() throws IOException{
+		Grammar grammar = new Grammar(Treebanks.find("short.binary.pcfg").toString());
+		sentences = new ArrayList<String>();
+
+		for( String line: Treebanks.get("short") ){
+			StringBuilder sentence = new StringBuilder();
+			addWords(new ParseTree(line), sentence);
+			sentences.add(sentence.toString().trim());
+		}
+
+		aStar = new AStarParser(new GrammarIndex(grammar), "S", heuristicLength);
+		cky = new CKYParser(grammar);
+	}
+
+	@Benchmark
+	public int aStar(){
+		int popped = 0;
+
+		for( String sentence: sentences ){
+			aStar.parse(sentence);
+			popped += aStar.getNumPopped();
+		}
+
+		return popped;
+	}
+
+	@Benchmark
+	public int cky(){
+		int parsed = 0;
+
+		for( String sentence: sentences ){
+			if( cky.parse(sentence) != null ){
+				parsed++;
+			}
+		}
+
+		return parsed;
+	}
+
+	private static void addWords(ParseTree tree, StringBuilder sentence){
+		if( tree.isTerminal() ){
+			sentence.append(tree.getLabel()).append(' ');
+		}else{
+			for( ParseTree child: tree.getChildren() ){
+				addWords(child, sentence);
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package nlp.parser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing the sentences of data/short.parsed with the grammar short.binary.pcfg: one after the
+ * other with a CKYParser, and as a batch with a BatchParser on numThreads workers.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchParsingBenchmark {
+	@Param({"1", "2", "4"})
+	public int numThreads;
+
+	private List<String> sentences;
+	private CKYParser parser;
+	private BatchParser batchParser;
+
+	@Setup
+	public void setup() throws IOException{
+		Grammar grammar = new Grammar(Treebanks.find("short.binary.pcfg").toString());
+		sentences = new ArrayList<String>();
+
+		for( String line: Treebanks.get("short") ){
+			StringBuilder sentence = new StringBuilder();
+			addWords(new ParseTree(line), sentence);
+			sentences.add(sentence.toString().trim());
+		}
+
+		parser = new CKYParser(grammar);
+		batchParser = new BatchParser(grammar, numThreads);
+	}
+
+	@TearDown
+	public void tearDown(){
+		batchParser.close();
+	}
+
+	@Benchmark
+	public int serial(){
+		int parsed = 0;
+
+		for( String sentence: sentences ){
+			parsed += parser.parse(sentence) == null ? 0 : 1;
+		}
+
+		return parsed;
+	}
+
+	@Benchmark
+	public List<ParseTree> batch(){
+		return batchParser.parse(sentences);
+	}
+
+	private static void addWords(ParseTree tree, StringBuilder sentence){
+		if( tree.isTerminal() ){
+			sentence.append(tree.getLabel()).append(' ');
+		}else{
+			for( ParseTree child: tree.getChildren() ){
+				addWords(child, sentence);
+			}
+		}
+	}
+}
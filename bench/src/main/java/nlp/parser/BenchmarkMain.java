@@ -0,0 +1,26 @@
+package nlp.parser;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every benchmark reports its allocation rate
+ * (gc.alloc.rate.norm is the number of bytes allocated per operation) along with its
+ * throughput.  Takes the usual JMH command line options, e.g. a regular expression of the
+ * benchmarks to run:
+ *
+ *   cd bench && java -jar target/benchmarks.jar TreeReading
+ *
+ * Run it from bench/ (or any directory but the root of the repository): the binarization
+ * benchmarks write their grammar files to the current directory.
+ *
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception{
+		new Runner(new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build()).run();
+	}
+}
@@ -0,0 +1,52 @@
+package nlp.parser;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Binarizing a PCFG (including writing the binarized grammar to the current directory), and
+ * binarizing it in memory with a horizontally Markovized Binarizer (-1 is INFINITE).
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BinarizationBenchmark {
+	@Param({"short", "synthetic"})
+	public String treebank;
+
+	@Param({"-1", "2", "1"})
+	public int horizontalOrder;
+
+	private ConstructPCFG pcfg;
+	private Binarizer binarizer;
+
+	@Setup
+	public void setup(){
+		pcfg = new ConstructPCFG();
+
+		for( String line: Treebanks.get(treebank) ){
+			pcfg.updateCounts(new ParseTree(line));
+		}
+
+		pcfg.updateWeights();
+		binarizer = new Binarizer(horizontalOrder == -1 ? Binarizer.INFINITE : horizontalOrder, 0);
+	}
+
+	@Benchmark
+	public void binarizePCFG(){
+		pcfg.binarizePCFG();
+	}
+
+	@Benchmark
+	public void betterBinarizePCFG(){
+		pcfg.betterBinarizePCFG();
+	}
+
+	@Benchmark
+	public ConstructPCFG markovized(){
+		return binarizer.binarize(pcfg);
+	}
+}
@@ -0,0 +1,68 @@
+package nlp.parser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing the sentences of data/short.parsed with the grammar short.binary.pcfg by CKYParser, with
+ * the scalar and the vectorized ChartKernel.  The fork runs with the vector module, so "vector"
+ * is the vectorized kernel unless the CPU has no double vectors (the kernel that was used is
+ * printed after each run).
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class ChartKernelBenchmark {
+	@Param({"scalar", "vector"})
+	public String kernel;
+
+	private List<List<String>> sentences;
+	private CKYParser parser;
+
+	@Setup
+	public void setup() throws IOException{
+		parser = new CKYParser(new Grammar(Treebanks.find("short.binary.pcfg").toString()));
+		sentences = new ArrayList<List<String>>();
+
+		for( String line: Treebanks.get("short") ){
+			List<String> words = new ArrayList<String>();
+			addWords(new ParseTree(line), words);
+			sentences.add(words);
+		}
+
+		parser.setKernel(kernel.equals("scalar") ? ChartKernel.scalar() : ChartKernel.create());
+	}
+
+	@TearDown
+	public void tearDown(){
+		System.out.println();
+		System.out.println(kernel + ": " + parser.getKernelName());
+	}
+
+	@Benchmark
+	public int parse(){
+		int parsed = 0;
+
+		for( List<String> sentence: sentences ){
+			parsed += parser.parse(sentence) == null ? 0 : 1;
+		}
+
+		return parsed;
+	}
+
+	private static void addWords(ParseTree tree, List<String> words){
+		if( tree.isTerminal() ){
+			words.add(tree.getLabel());
+		}else{
+			for( ParseTree child: tree.getChildren() ){
+				addWords(child, words);
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package nlp.parser;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Estimating a PCFG: updateCounts over a whole treebank of trees that have already been read,
+ * counting straight from the lines with a RuleCounter, updateWeights over the counts of the whole
+ * treebank, and folding one more tree into those counts followed by updateWeights, which only
+ * reweights the LHS symbols of that tree.
+ *
+ * The two benchmarks that reweight need counts that haven't been weighted yet, which takes
+ * longer to copy than incrementalUpdate takes to run, so the copies are made before each
+ * iteration rather than before each invocation: every iteration is a single shot of BATCH
+ * invocations, and the score is the time of the whole batch.  updateWeights takes a fresh
+ * unweighted copy for each invocation; incrementalUpdate adds BATCH trees to one weighted copy.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EstimationBenchmark {
+	@Param({"short", "synthetic"})
+	public String treebank;
+
+	private List<String> lines;
+	private List<ParseTree> trees;
+	private TreeReader reader;
+	private ConstructPCFG counted; // the counts of all of the trees
+
+	private static final int BATCH = 100; // the number of invocations in each iteration that reweights
+
+	/**
+	 * BATCH copies of the counts of all of the trees that haven't been weighted, so every LHS gets
+	 * reweighted, one for each invocation of an iteration
+	 */
+	@State(Scope.Thread)
+	public static class Unweighted {
+		private ConstructPCFG[] copies = new ConstructPCFG[BATCH];
+		private int next;
+
+		@Setup(Level.Iteration)
+		public void copy(EstimationBenchmark benchmark){
+			for( int i = 0; i < BATCH; i++ ){
+				copies[i] = new ConstructPCFG();
+				copies[i].addCounts(benchmark.counted);
+			}
+
+			next = 0;
+		}
+
+		ConstructPCFG next(){
+			return copies[next++];
+		}
+	}
+
+	/**
+	 * A weighted copy of the counts of all of the trees, and the position of the next tree to add
+	 * to it
+	 */
+	@State(Scope.Thread)
+	public static class Weighted {
+		private ConstructPCFG pcfg;
+		private int next = 0;
+
+		@Setup(Level.Iteration)
+		public void copy(EstimationBenchmark benchmark){
+			pcfg = new ConstructPCFG();
+			pcfg.mergeCounts(benchmark.counted);
+		}
+
+		ParseTree next(EstimationBenchmark benchmark){
+			ParseTree tree = benchmark.trees.get(next);
+			next = (next + 1) % benchmark.trees.size();
+			return tree;
+		}
+	}
+
+	@Setup
+	public void setup(){
+		lines = Treebanks.get(treebank);
+		trees = new ArrayList<ParseTree>();
+		reader = new TreeReader();
+
+		for( String line: lines ){
+			trees.add(new ParseTree(line));
+		}
+
+		counted = updateCounts();
+	}
+
+	@Benchmark
+	public ConstructPCFG updateCounts(){
+		ConstructPCFG pcfg = new ConstructPCFG();
+
+		for( ParseTree tree: trees ){
+			pcfg.updateCounts(tree);
+		}
+
+		return pcfg;
+	}
+
+	@Benchmark
+	public ConstructPCFG streamCounts(){
+		ConstructPCFG pcfg = new ConstructPCFG();
+		RuleCounter counter = new RuleCounter(pcfg.getSymbols(), pcfg.getTable());
+
+		for( String line: lines ){
+			reader.read(line, counter);
+		}
+
+		return pcfg;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 10, batchSize = BATCH)
+	@Measurement(iterations = 20, batchSize = BATCH)
+	public ConstructPCFG updateWeights(Unweighted copy){
+		ConstructPCFG pcfg = copy.next();
+		pcfg.updateWeights();
+		return pcfg;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 10, batchSize = BATCH)
+	@Measurement(iterations = 20, batchSize = BATCH)
+	public ConstructPCFG incrementalUpdate(Weighted copy){
+		copy.pcfg.updateCounts(copy.next(this));
+		copy.pcfg.updateWeights();
+		return copy.pcfg;
+	}
+}
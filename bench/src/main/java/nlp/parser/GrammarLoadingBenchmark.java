@@ -0,0 +1,46 @@
+package nlp.parser;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Loading the binarized grammar short.binary.pcfg: from the text format, and from the compiled
+ * format (mapping it, and mapping it and copying it into a Grammar).
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GrammarLoadingBenchmark {
+	private String text;
+	private String compiled;
+
+	@Setup
+	public void setup() throws IOException{
+		text = Treebanks.find("short.binary.pcfg").toString();
+
+		File file = File.createTempFile("short.binary", ".pcfgc");
+		file.deleteOnExit();
+		compiled = file.getPath();
+		CompiledGrammar.compile(text, compiled);
+	}
+
+	@Benchmark
+	public Grammar text() throws IOException{
+		return new Grammar(text);
+	}
+
+	@Benchmark
+	public CompiledGrammar mapCompiled() throws IOException{
+		return new CompiledGrammar(compiled);
+	}
+
+	@Benchmark
+	public Grammar compiled() throws IOException{
+		return new Grammar(new CompiledGrammar(compiled));
+	}
+}
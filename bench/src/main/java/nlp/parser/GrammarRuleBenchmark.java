@@ -0,0 +1,68 @@
+package nlp.parser;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * GrammarRule: parsing the rules of short.pcfg with GrammarRule(String), and hashing and
+ * comparing the parsed rules.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GrammarRuleBenchmark {
+	private List<String> lines;
+	private GrammarRule[] rules;
+	private GrammarRule[] copies; // equal to rules, but different objects
+
+	@Setup
+	public void setup(){
+		lines = Treebanks.lines("short.pcfg");
+		rules = new GrammarRule[lines.size()];
+		copies = new GrammarRule[lines.size()];
+
+		for( int i = 0; i < rules.length; i++ ){
+			rules[i] = new GrammarRule(lines.get(i));
+			copies[i] = new GrammarRule(lines.get(i));
+		}
+	}
+
+	@Benchmark
+	public int parse(){
+		int rhs = 0;
+
+		for( String line: lines ){
+			rhs += new GrammarRule(line).numRhsElements();
+		}
+
+		return rhs;
+	}
+
+	@Benchmark
+	public int hashCodes(){
+		int hash = 0;
+
+		for( GrammarRule rule: rules ){
+			hash += rule.hashCode();
+		}
+
+		return hash;
+	}
+
+	@Benchmark
+	public int equal(){
+		int equal = 0;
+
+		for( int i = 0; i < rules.length; i++ ){
+			if( rules[i].equals(copies[i]) ){
+				equal++;
+			}
+		}
+
+		return equal;
+	}
+}
@@ -0,0 +1,67 @@
+package nlp.parser;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Writing the rules of a PCFG (to a stream that discards them): formatting every rule with
+ * GrammarRule.toString(), as the grammar was written before, and through the grammar sinks.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GrammarWritingBenchmark {
+	@Param({"short", "synthetic"})
+	public String treebank;
+
+	private ConstructPCFG pcfg;
+
+	@Setup
+	public void setup(){
+		pcfg = new ConstructPCFG();
+
+		for( String line: Treebanks.get(treebank) ){
+			pcfg.updateCounts(new ParseTree(line));
+		}
+
+		pcfg.updateWeights();
+	}
+
+	@Benchmark
+	public void grammarRules() throws IOException{
+		try( BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream())) ){
+			for( int rule = 0; rule < pcfg.getTable().size(); rule++ ){
+				writer.write(pcfg.toGrammarRule(rule).toString());
+				writer.newLine();
+			}
+		}
+	}
+
+	@Benchmark
+	public void text() throws IOException{
+		write(false, false);
+	}
+
+	@Benchmark
+	public void binary() throws IOException{
+		write(true, false);
+	}
+
+	@Benchmark
+	public void binaryGzip() throws IOException{
+		write(true, true);
+	}
+
+	private void write(boolean binary, boolean gzip) throws IOException{
+		try( GrammarSink sink = GrammarSink.open(OutputStream.nullOutputStream(), binary, gzip) ){
+			pcfg.writeRules(sink);
+		}
+	}
+}
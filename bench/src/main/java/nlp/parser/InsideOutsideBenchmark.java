@@ -0,0 +1,59 @@
+package nlp.parser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One iteration of inside-outside EM over the sentences of data/short.parsed, starting from the
+ * grammar short.binary.pcfg, on numThreads workers.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InsideOutsideBenchmark {
+	@Param({"1", "2", "4"})
+	public int numThreads;
+
+	private List<String> sentences;
+	private InsideOutside em;
+
+	@Setup
+	public void setup() throws IOException{
+		Grammar grammar = new Grammar(Treebanks.find("short.binary.pcfg").toString());
+		sentences = new ArrayList<String>();
+
+		for( String line: Treebanks.get("short") ){
+			StringBuilder sentence = new StringBuilder();
+			addWords(new ParseTree(line), sentence);
+			sentences.add(sentence.toString().trim());
+		}
+
+		em = new InsideOutside(grammar, "S", numThreads);
+	}
+
+	@TearDown
+	public void tearDown(){
+		em.close();
+	}
+
+	@Benchmark
+	public double iteration(){
+		return em.iterate(sentences);
+	}
+
+	private static void addWords(ParseTree tree, StringBuilder sentence){
+		if( tree.isTerminal() ){
+			sentence.append(tree.getLabel()).append(' ');
+		}else{
+			for( ParseTree child: tree.getChildren() ){
+				addWords(child, sentence);
+			}
+		}
+	}
+}
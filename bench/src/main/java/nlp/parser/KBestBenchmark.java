@@ -0,0 +1,60 @@
+package nlp.parser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Finding the k best parses of the sentences of data/short.parsed with the grammar
+ * short.binary.pcfg.  k = 1 is the cost of the chart plus the extraction of the best parse.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class KBestBenchmark {
+	@Param({"1", "10", "50"})
+	public int k;
+
+	private List<String> sentences;
+	private KBestParser parser;
+
+	@Setup
+	public void setup() throws IOException{
+		Grammar grammar = new Grammar(Treebanks.find("short.binary.pcfg").toString());
+		sentences = new ArrayList<String>();
+
+		for( String line: Treebanks.get("short") ){
+			StringBuilder sentence = new StringBuilder();
+			addWords(new ParseTree(line), sentence);
+			sentences.add(sentence.toString().trim());
+		}
+
+		parser = new KBestParser(grammar);
+	}
+
+	@Benchmark
+	public int kBest(){
+		int parses = 0;
+
+		for( String sentence: sentences ){
+			parses += parser.parse(sentence, k).size();
+		}
+
+		return parses;
+	}
+
+	private static void addWords(ParseTree tree, StringBuilder sentence){
+		if( tree.isTerminal() ){
+			sentence.append(tree.getLabel()).append(' ');
+		}else{
+			for( ParseTree child: tree.getChildren() ){
+				addWords(child, sentence);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package nlp.parser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing the sentences of data/short.parsed with the grammar short.binary.pcfg, exhaustively
+ * and with the pruning options of CKYParser, given as option=value.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PruningBenchmark {
+	@Param({"none", "beamSize=20", "beamWidth=10", "threshold=-12", "minRuleWeight=0.001"})
+	public String pruning;
+
+	private List<List<String>> sentences;
+	private CKYParser parser;
+
+	@Setup
+	public void setup() throws IOException{
+		parser = new CKYParser(new Grammar(Treebanks.find("short.binary.pcfg").toString()));
+		sentences = new ArrayList<List<String>>();
+
+		for( String line: Treebanks.get("short") ){
+			List<String> words = new ArrayList<String>();
+			addWords(new ParseTree(line), words);
+			sentences.add(words);
+		}
+
+		String[] option = pruning.split("=");
+
+		if( option[0].equals("beamSize") ){
+			parser.setBeamSize(Integer.parseInt(option[1]));
+		}else if( option[0].equals("beamWidth") ){
+			parser.setBeamWidth(Double.parseDouble(option[1]));
+		}else if( option[0].equals("threshold") ){
+			parser.setThreshold(Double.parseDouble(option[1]));
+		}else if( option[0].equals("minRuleWeight") ){
+			parser.setMinRuleWeight(Double.parseDouble(option[1]));
+		}
+	}
+
+	@TearDown
+	public void tearDown(){
+		System.out.println();
+		System.out.println(pruning + ": " + parser.getStats());
+	}
+
+	@Benchmark
+	public int parse(){
+		int parsed = 0;
+
+		for( List<String> sentence: sentences ){
+			parsed += parser.parse(sentence) == null ? 0 : 1;
+		}
+
+		return parsed;
+	}
+
+	private static void addWords(ParseTree tree, List<String> words){
+		if( tree.isTerminal() ){
+			words.add(tree.getLabel());
+		}else{
+			for( ParseTree child: tree.getChildren() ){
+				addWords(child, words);
+			}
+		}
+	}
+}
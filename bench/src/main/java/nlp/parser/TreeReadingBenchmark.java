@@ -0,0 +1,64 @@
+package nlp.parser;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading whole treebanks of bracketed trees, through new ParseTree(String), through a
+ * reused TreeReader and into CompactTrees.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeReadingBenchmark {
+	@Param({"short", "shallow", "deep", "synthetic"})
+	public String treebank;
+
+	private List<String> lines;
+	private TreeReader reader;
+	private CompactTree.Builder builder;
+
+	@Setup
+	public void setup(){
+		lines = Treebanks.get(treebank);
+		reader = new TreeReader();
+		builder = new CompactTree.Builder(new SymbolTable());
+	}
+
+	@Benchmark
+	public int newParseTree(){
+		int children = 0;
+
+		for( String line: lines ){
+			children += new ParseTree(line).numChildren();
+		}
+
+		return children;
+	}
+
+	@Benchmark
+	public int treeReader(){
+		int children = 0;
+
+		for( String line: lines ){
+			children += reader.read(line).numChildren();
+		}
+
+		return children;
+	}
+
+	@Benchmark
+	public int compactTree(){
+		int nodes = 0;
+
+		for( String line: lines ){
+			nodes += CompactTree.read(line, reader, builder).size();
+		}
+
+		return nodes;
+	}
+}
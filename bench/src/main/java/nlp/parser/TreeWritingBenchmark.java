@@ -0,0 +1,74 @@
+package nlp.parser;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Writing whole treebanks of trees back out in parenthesized form, from ParseTrees and from
+ * CompactTrees, one String per tree or all into one shared StringBuilder.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeWritingBenchmark {
+	@Param({"short", "shallow", "deep", "synthetic"})
+	public String treebank;
+
+	private List<ParseTree> trees;
+	private List<CompactTree> compactTrees;
+	private StringBuilder buffer;
+
+	@Setup
+	public void setup(){
+		TreeReader reader = new TreeReader();
+		CompactTree.Builder builder = new CompactTree.Builder(new SymbolTable());
+		trees = new ArrayList<ParseTree>();
+		compactTrees = new ArrayList<CompactTree>();
+		buffer = new StringBuilder();
+
+		for( String line: Treebanks.get(treebank) ){
+			trees.add(reader.read(line));
+			compactTrees.add(CompactTree.read(line, reader, builder));
+		}
+	}
+
+	@Benchmark
+	public int parseTreeToString(){
+		int length = 0;
+
+		for( ParseTree tree: trees ){
+			length += tree.toString().length();
+		}
+
+		return length;
+	}
+
+	@Benchmark
+	public int parseTreeAppend(){
+		buffer.setLength(0);
+
+		for( ParseTree tree: trees ){
+			tree.appendTo(buffer);
+			buffer.append('\n');
+		}
+
+		return buffer.length();
+	}
+
+	@Benchmark
+	public int compactTreeAppend(){
+		buffer.setLength(0);
+
+		for( CompactTree tree: compactTrees ){
+			tree.appendTo(buffer);
+			buffer.append('\n');
+		}
+
+		return buffer.length();
+	}
+}
@@ -0,0 +1,209 @@
+package nlp.parser;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inputs for the benchmarks: the lines of the treebanks and grammars in the repository, and
+ * synthetic treebanks of any size.
+ *
+ */
+public class Treebanks {
+	/**
+	 * Find a file of the repository, e.g. data/short.parsed, from the current directory or any
+	 * of its parents (so the benchmarks can be run from the repository or from bench/)
+	 *
+	 * @param relative the path of the file relative to the root of the repository
+	 * @return the path of the file
+	 */
+	public static Path find(String relative){
+		Path dir = Paths.get("").toAbsolutePath();
+
+		while( dir != null ){
+			Path file = dir.resolve(relative);
+
+			if( Files.exists(file) ){
+				return file;
+			}
+
+			dir = dir.getParent();
+		}
+
+		throw new RuntimeException("Can't find " + relative + " from " + Paths.get("").toAbsolutePath());
+	}
+
+	/**
+	 * Read the non-empty lines of a file of the repository
+	 *
+	 * @param relative the path of the file relative to the root of the repository
+	 * @return the lines
+	 */
+	public static List<String> lines(String relative){
+		try{
+			List<String> lines = new ArrayList<String>();
+
+			for( String line: Files.readAllLines(find(relative)) ){
+				if( !line.isEmpty() ){
+					lines.add(line);
+				}
+			}
+
+			return lines;
+		}catch( IOException e ){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get a treebank by name:
+	 *   - short: data/short.parsed
+	 *   - synthetic: trees sampled from the PCFG of data/short.parsed, 20 times as many trees
+	 *   - shallow: wide, flat trees (one S over 200 part of speech tags)
+	 *   - deep: narrow trees nested 200 levels deep
+	 *
+	 * @param name the name of the treebank
+	 * @return the trees, one per line
+	 */
+	public static List<String> get(String name){
+		switch( name ){
+		case "short":
+			return lines("data/short.parsed");
+		case "synthetic":
+			return sample(new ConstructPCFG(find("data/short.parsed").toString()), 2000, 42);
+		case "shallow":
+			return repeat(flatTree(200), 100);
+		case "deep":
+			return repeat(deepTree(200), 100);
+		default:
+			throw new IllegalArgumentException("Unknown treebank: " + name);
+		}
+	}
+
+	/**
+	 * Sample trees from a PCFG, starting from S.  Trees that grow too large are thrown away, so
+	 * every tree has at most 500 nodes.
+	 *
+	 * @param pcfg the PCFG (with its weights updated)
+	 * @param numTrees the number of trees
+	 * @param seed the random seed
+	 * @return the trees, one per line
+	 */
+	public static List<String> sample(ConstructPCFG pcfg, int numTrees, long seed){
+		Random random = new Random(seed);
+		SymbolTable symbols = pcfg.getSymbols();
+		RuleTable table = pcfg.getTable();
+
+		// the rules with each LHS
+		List<List<Integer>> byLhs = new ArrayList<List<Integer>>();
+
+		for( int i = 0; i < symbols.size(); i++ ){
+			byLhs.add(new ArrayList<Integer>());
+		}
+
+		for( int rule = 0; rule < table.size(); rule++ ){
+			byLhs.get(table.getLhs(rule)).add(rule);
+		}
+
+		List<String> trees = new ArrayList<String>(numTrees);
+		int start = symbols.getId("S");
+
+		while( trees.size() < numTrees ){
+			StringBuilder tree = new StringBuilder();
+			int[] budget = {500};
+
+			if( sample(start, symbols, table, byLhs, random, tree, budget) ){
+				trees.add(tree.toString());
+			}
+		}
+
+		return trees;
+	}
+
+	private static boolean sample(int symbol, SymbolTable symbols, RuleTable table, List<List<Integer>> byLhs,
+			Random random, StringBuilder tree, int[] budget){
+		if( --budget[0] < 0 ){
+			return false;
+		}
+
+		// pick a rule in proportion to its weight
+		double r = random.nextDouble();
+		List<Integer> rules = byLhs.get(symbol);
+		int rule = rules.get(rules.size() - 1);
+
+		for( int candidate: rules ){
+			r -= table.getWeight(candidate);
+
+			if( r < 0 ){
+				rule = candidate;
+				break;
+			}
+		}
+
+		tree.append('(').append(symbols.getSymbol(symbol));
+
+		for( int i = 0; i < table.numRhs(rule); i++ ){
+			tree.append(' ');
+
+			if( table.isLexical(rule) ){
+				tree.append(symbols.getSymbol(table.getRhs(rule, i)));
+			}else if( !sample(table.getRhs(rule, i), symbols, table, byLhs, random, tree, budget) ){
+				return false;
+			}
+		}
+
+		tree.append(')');
+		return true;
+	}
+
+	/**
+	 * A tree with one S over width part of speech tags
+	 *
+	 * @param width the number of words
+	 * @return the tree
+	 */
+	public static String flatTree(int width){
+		StringBuilder tree = new StringBuilder("(S");
+
+		for( int i = 0; i < width; i++ ){
+			tree.append(" (NN w").append(i).append(')');
+		}
+
+		return tree.append(')').toString();
+	}
+
+	/**
+	 * A right branching tree with depth nested VPs
+	 *
+	 * @param depth the number of nested VPs
+	 * @return the tree
+	 */
+	public static String deepTree(int depth){
+		StringBuilder tree = new StringBuilder("(S");
+
+		for( int i = 0; i < depth; i++ ){
+			tree.append(" (VP (VB w").append(i).append(')');
+		}
+
+		tree.append(" (NN end)");
+
+		for( int i = 0; i < depth; i++ ){
+			tree.append(')');
+		}
+
+		return tree.append(')').toString();
+	}
+
+	private static List<String> repeat(String tree, int times){
+		List<String> trees = new ArrayList<String>(times);
+
+		for( int i = 0; i < times; i++ ){
+			trees.add(tree);
+		}
+
+		return trees;
+	}
+}
@@ -0,0 +1,473 @@
+package nlp.parser;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An agenda-based A* parser that finds the most probable (Viterbi) parse of a sentence under a
+ * binarized PCFG, like CKYParser, but without filling in the whole chart.  The items are the
+ * entries of the two layers of a CKYParser chart (A over the span i to j, before or after the unary
+ * chains), which are taken off an agenda best first, by their log probability plus an estimate of
+ * the best log probability of the rest of a parse around them (their outside score):
+ *   - an inside item B is extended by the unary closure to the top items above it
+ *   - a top item is combined with the finished top items next to it by the binary rules
+ * As soon as the top item for the start symbol over the whole sentence comes off the agenda, it
+ * has its best score, so the rest of the agenda is never looked at.  Easy sentences, where the
+ * best parse is much better than the alternatives, finish after a small part of the chart.
+ *
+ * The estimate is the SX context summary of Klein and Manning (2003, "A* Parsing: Fast Exact
+ * Viterbi Parse Selection"): the best outside score of a symbol with l words to its left and r
+ * words to its right, over all words.  It is worked out once from the grammar, for sentences of
+ * up to heuristicLength words, and never underestimates the outside score (it's admissible and
+ * consistent), so the parse is exact.  Longer sentences are parsed without an estimate, i.e.
+ * by uniform cost search, which is still exact but explores more of the chart.  Items whose
+ * estimate is negative infinity can't be part of any parse and are never put on the agenda.
+ *
+ * The agenda is an IndexedHeap keyed by item id, so an item whose score improves while it's on
+ * the agenda is moved up rather than added again.  The numbers of items pushed and popped for
+ * the last sentence are reported by getNumPushed() and getNumPopped().
+ *
+ * A parser keeps its chart between sentences, so it is not thread safe.
+ *
+ */
+public class AStarParser {
+	private static final double NONE = Double.NEGATIVE_INFINITY; // the score of an empty chart entry
+	private static final int DEFAULT_HEURISTIC_LENGTH = 40; // the longest sentences with an outside estimate
+	private static final int DEFAULT_CACHE_SIZE = 10000; // the most unknown words whose signatures are cached
+	private static final int LEXICAL = -1; // back[] value for an entry from a lexical rule
+	private static final int NO_UNARY = -1; // back[] value for a top entry that isn't from a unary chain
+
+	private static final int INSIDE = 0; // the layer of an item before unary rules
+	private static final int TOP = 1; // the layer of an item after unary rules
+
+	private static final byte UNSEEN = 0; // the states of an item
+	private static final byte QUEUED = 1;
+	private static final byte DONE = 2;
+
+	private final Grammar grammar;
+	private final GrammarIndex index;
+	private final int numSymbols;
+	private final int start; // the id of the start symbol
+	private final LexiconCache lexicon;
+
+	private final int heuristicLength;
+	private double[] outsideTop; // (l, r) -> symbol -> the estimated outside score of a top item
+	private double[] outsideInside; // the same for an inside item
+
+	private int maxLength = 0; // the longest sentence the chart currently has room for
+	private double[] score = new double[0]; // item -> its best log probability so far
+	private int[] back = new int[0]; // item -> the binary rule offset (or LEXICAL) of an inside item, or the closure entry (or NO_UNARY) of a top item
+	private int[] split = new int[0]; // item -> the split point of a binary inside item
+	private byte[] state = new byte[0]; // item -> UNSEEN, QUEUED or DONE
+	private int[] touched = new int[16]; // the items that aren't UNSEEN, to reset them for the next sentence
+	private int numTouched = 0;
+	private final IndexedHeap agenda = new IndexedHeap(0);
+
+	private List<String> words; // the sentence being parsed
+	private int length; // the number of words in the sentence being parsed
+	private double bestScore = NONE; // the log probability of the last parse
+	private int pushed = 0; // the items pushed onto the agenda for the last sentence (or moved up)
+	private int popped = 0; // the items taken off the agenda for the last sentence
+
+	/**
+	 * Create a new parser with the start symbol S
+	 *
+	 * @param grammar the binarized grammar
+	 */
+	public AStarParser(Grammar grammar){
+		this(new GrammarIndex(grammar), "S", DEFAULT_HEURISTIC_LENGTH);
+	}
+
+	/**
+	 * Create a new parser
+	 *
+	 * @param index the index of the binarized grammar
+	 * @param startSymbol the label of the root of every parse
+	 * @param heuristicLength the longest sentences that get an outside estimate; working it out
+	 *   takes time cubic and memory quadratic in this length
+	 */
+	public AStarParser(GrammarIndex index, String startSymbol, int heuristicLength){
+		this.index = index;
+		this.grammar = index.getGrammar();
+		this.numSymbols = grammar.numSymbols();
+		this.start = grammar.getSymbols().getId(startSymbol);
+		this.heuristicLength = heuristicLength;
+
+		if( start == -1 ){
+			throw new RuntimeException("Start symbol not in grammar: " + startSymbol);
+		}
+
+		lexicon = new LexiconCache(grammar.getWords(), DEFAULT_CACHE_SIZE);
+		buildHeuristic();
+	}
+
+	/**
+	 * Parse a sentence of space separated words
+	 *
+	 * @param sentence the sentence
+	 * @return the most probable parse or null if the sentence can't be parsed
+	 */
+	public ParseTree parse(String sentence){
+		return parse(Arrays.asList(sentence.trim().split("\\s+")));
+	}
+
+	/**
+	 * Parse a sentence
+	 *
+	 * @param words the words of the sentence
+	 * @return the most probable parse or null if the sentence can't be parsed
+	 */
+	public ParseTree parse(List<String> words){
+		this.words = words;
+		this.length = words.size();
+		int n = length;
+
+		ensureCapacity(n);
+		reset();
+
+		for( int i = 0; i < n; i++ ){
+			int word = lexicon.lookup(words.get(i));
+
+			if( word != -1 ){
+				for( int x = index.lexiconStart(word); x < index.lexiconStart(word + 1); x++ ){
+					relax(item(i, i+1, index.getLexiconTag(x), INSIDE), index.getLexiconScore(x), LEXICAL, i+1);
+				}
+			}
+		}
+
+		int goal = n == 0 ? -1 : item(0, n, start, TOP);
+
+		while( !agenda.isEmpty() ){
+			int item = agenda.pop();
+			popped++;
+			state[item] = DONE;
+
+			if( item == goal ){
+				break;
+			}
+
+			int symbol = (item >> 1) % numSymbols;
+			int cell = (item >> 1) / numSymbols;
+			int i = cell / (maxLength + 1);
+			int j = cell % (maxLength + 1);
+			double s = score[item];
+
+			if( (item & 1) == INSIDE ){
+				relax(item(i, j, symbol, TOP), s, NO_UNARY, 0);
+
+				for( int e = index.closureStart(symbol); e < index.closureStart(symbol+1); e++ ){
+					relax(item(i, j, index.getClosureParent(e), TOP), s + index.getClosureScore(e), e, 0);
+				}
+			}else{
+				// symbol as the left child, with a finished right child over j to k
+				for( int x = index.binaryStart(symbol); x < index.binaryStart(symbol+1); x++ ){
+					int right = index.getBinaryRight(x);
+					double w = index.getBinaryScore(x) + s;
+
+					for( int k = j + 1; k <= n; k++ ){
+						int other = item(j, k, right, TOP);
+
+						if( state[other] == DONE ){
+							relax(item(i, k, index.getBinaryParent(x), INSIDE), w + score[other], x, j);
+						}
+					}
+				}
+
+				// symbol as the right child, with a finished left child over k to i
+				for( int y = index.binaryByRightStart(symbol); y < index.binaryByRightStart(symbol+1); y++ ){
+					int x = index.getBinaryByRight(y);
+					int left = index.getBinaryLeft(x);
+					double w = index.getBinaryScore(x) + s;
+
+					for( int k = 0; k < i; k++ ){
+						int other = item(k, i, left, TOP);
+
+						if( state[other] == DONE ){
+							relax(item(k, j, index.getBinaryParent(x), INSIDE), w + score[other], x, i);
+						}
+					}
+				}
+			}
+		}
+
+		agenda.clear();
+
+		if( goal == -1 || state[goal] != DONE ){
+			bestScore = NONE;
+			return null;
+		}
+
+		bestScore = score[goal];
+		ParseTree root = new ParseTree(grammar.getSymbols().getSymbol(start), false);
+		addChildren(root, 0, n, start);
+
+		return root;
+	}
+
+	/**
+	 * The log probability of the last parse
+	 *
+	 * @return the log probability of the last parse, or negative infinity if it failed
+	 */
+	public double getBestScore(){
+		return bestScore;
+	}
+
+	/**
+	 * The number of times an item was put on the agenda (or moved up it) for the last sentence
+	 *
+	 * @return the number of pushes
+	 */
+	public int getNumPushed(){
+		return pushed;
+	}
+
+	/**
+	 * The number of items taken off the agenda for the last sentence
+	 *
+	 * @return the number of pops
+	 */
+	public int getNumPopped(){
+		return popped;
+	}
+
+	/**
+	 * Give an item a new score if it's better than its old one, and put it on the agenda
+	 */
+	private void relax(int item, double s, int backPointer, int splitPoint){
+		if( state[item] == DONE || state[item] == QUEUED && s <= score[item] ){
+			return;
+		}
+
+		double h = estimate(item);
+
+		if( h == NONE ){
+			return;
+		}
+
+		if( state[item] == UNSEEN ){
+			state[item] = QUEUED;
+
+			if( numTouched == touched.length ){
+				touched = Arrays.copyOf(touched, 2 * numTouched);
+			}
+
+			touched[numTouched++] = item;
+		}
+
+		score[item] = s;
+		back[item] = backPointer;
+		split[item] = splitPoint;
+		agenda.push(item, s + h);
+		pushed++;
+	}
+
+	/**
+	 * The estimated outside score of an item: the SX estimate for its context, or 0 if the
+	 * sentence is too long to have one
+	 */
+	private double estimate(int item){
+		if( length > heuristicLength ){
+			return 0.0;
+		}
+
+		int cell = (item >> 1) / numSymbols;
+		int l = cell / (maxLength + 1);
+		int r = length - cell % (maxLength + 1);
+		int offset = (l * heuristicLength + r) * numSymbols + (item >> 1) % numSymbols;
+
+		return (item & 1) == TOP ? outsideTop[offset] : outsideInside[offset];
+	}
+
+	/**
+	 * Work out the SX estimates: first the best inside score of every symbol over any n words,
+	 * then from those the best outside score of every symbol with l words to its left and r to
+	 * its right, from the root down (in increasing l + r)
+	 */
+	private void buildHeuristic(){
+		int maxSpan = heuristicLength;
+		int numBinary = index.binaryStart(numSymbols);
+		outsideTop = new double[maxSpan * maxSpan * numSymbols];
+		outsideInside = new double[maxSpan * maxSpan * numSymbols];
+
+		if( maxSpan == 0 ){
+			return;
+		}
+
+		// the best inside score of a symbol over n words, before and after unary chains
+		double[] insideInside = new double[(maxSpan + 1) * numSymbols];
+		double[] insideTop = new double[(maxSpan + 1) * numSymbols];
+		Arrays.fill(insideInside, NONE);
+		Arrays.fill(insideTop, NONE);
+
+		for( int x = 0; x < index.lexiconStart(grammar.getWords().size()); x++ ){
+			int offset = numSymbols + index.getLexiconTag(x);
+			insideInside[offset] = Math.max(insideInside[offset], index.getLexiconScore(x));
+		}
+
+		for( int n = 1; n <= maxSpan; n++ ){
+			int base = n * numSymbols;
+
+			for( int k = 1; k < n; k++ ){
+				for( int x = 0; x < numBinary; x++ ){
+					double b = insideTop[k * numSymbols + index.getBinaryLeft(x)];
+					double c = insideTop[(n - k) * numSymbols + index.getBinaryRight(x)];
+					int parent = base + index.getBinaryParent(x);
+					insideInside[parent] = Math.max(insideInside[parent], index.getBinaryScore(x) + b + c);
+				}
+			}
+
+			System.arraycopy(insideInside, base, insideTop, base, numSymbols);
+
+			for( int b = 0; b < numSymbols; b++ ){
+				for( int e = index.closureStart(b); e < index.closureStart(b+1); e++ ){
+					int parent = base + index.getClosureParent(e);
+					insideTop[parent] = Math.max(insideTop[parent], index.getClosureScore(e) + insideInside[base + b]);
+				}
+			}
+		}
+
+		// the best outside score with l words to the left and r to the right, for l + r < maxSpan
+		Arrays.fill(outsideTop, NONE);
+		Arrays.fill(outsideInside, NONE);
+
+		for( int t = 0; t < maxSpan; t++ ){
+			for( int l = 0; l <= t; l++ ){
+				int r = t - l;
+				int base = (l * maxSpan + r) * numSymbols;
+
+				if( t == 0 ){
+					outsideTop[base + start] = 0.0;
+				}
+
+				for( int x = 0; x < numBinary; x++ ){
+					int parent = index.getBinaryParent(x);
+					int left = base + index.getBinaryLeft(x);
+					int right = base + index.getBinaryRight(x);
+					double w = index.getBinaryScore(x);
+
+					// the left child, with a right sibling over k of the r words
+					for( int k = 1; k <= r; k++ ){
+						double o = outsideInside[(l * maxSpan + r - k) * numSymbols + parent];
+						double c = insideTop[k * numSymbols + index.getBinaryRight(x)];
+						outsideTop[left] = Math.max(outsideTop[left], o + w + c);
+					}
+
+					// the right child, with a left sibling over k of the l words
+					for( int k = 1; k <= l; k++ ){
+						double o = outsideInside[((l - k) * maxSpan + r) * numSymbols + parent];
+						double b = insideTop[k * numSymbols + index.getBinaryLeft(x)];
+						outsideTop[right] = Math.max(outsideTop[right], o + w + b);
+					}
+				}
+
+				System.arraycopy(outsideTop, base, outsideInside, base, numSymbols);
+
+				for( int b = 0; b < numSymbols; b++ ){
+					for( int e = index.closureStart(b); e < index.closureStart(b+1); e++ ){
+						outsideInside[base + b] = Math.max(outsideInside[base + b], index.getClosureScore(e) + outsideTop[base + index.getClosureParent(e)]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the children of the best top item for symbol over the span i to j to node.  The
+	 * children of intermediate symbols are added directly to node instead.
+	 */
+	private void addChildren(ParseTree node, int i, int j, int symbol){
+		int e = back[item(i, j, symbol, TOP)];
+
+		if( e == NO_UNARY ){
+			addInsideChildren(node, i, j, symbol);
+			return;
+		}
+
+		// follow the unary chain down to the inside item it starts from
+		while( index.getClosureNext(e) != -1 ){
+			node = addNode(node, index.getClosureVia(e));
+			e = index.getClosureNext(e);
+		}
+
+		addInsideChildren(addNode(node, index.getClosureChild(e)), i, j, index.getClosureChild(e));
+	}
+
+	/**
+	 * Add the children of the best inside item for symbol over the span i to j to node
+	 */
+	private void addInsideChildren(ParseTree node, int i, int j, int symbol){
+		int item = item(i, j, symbol, INSIDE);
+		int x = back[item];
+
+		if( x == LEXICAL ){
+			node.addChild(new ParseTree(words.get(i), true));
+		}else{
+			int k = split[item];
+			addChild(node, i, k, index.getBinaryLeft(x));
+			addChild(node, k, j, index.getBinaryRight(x));
+		}
+	}
+
+	private void addChild(ParseTree parent, int i, int j, int symbol){
+		addChildren(addNode(parent, symbol), i, j, symbol);
+	}
+
+	/**
+	 * Add a node for symbol to parent, unless the symbol is intermediate
+	 *
+	 * @return the new node, or parent for an intermediate symbol
+	 */
+	private ParseTree addNode(ParseTree parent, int symbol){
+		if( grammar.isIntermediate(symbol) ){
+			return parent;
+		}
+
+		ParseTree child = new ParseTree(grammar.getSymbols().getSymbol(symbol), false);
+		parent.addChild(child);
+		return child;
+	}
+
+	/**
+	 * The id of the item for symbol over the span i to j in a layer
+	 */
+	private int item(int i, int j, int symbol, int layer){
+		return ((i * (maxLength + 1) + j) * numSymbols + symbol) * 2 + layer;
+	}
+
+	/**
+	 * Reset the items of the last sentence
+	 */
+	private void reset(){
+		for( int t = 0; t < numTouched; t++ ){
+			state[touched[t]] = UNSEEN;
+		}
+
+		numTouched = 0;
+		pushed = 0;
+		popped = 0;
+	}
+
+	/**
+	 * Make sure the chart has room for a sentence with length words
+	 */
+	private void ensureCapacity(int length){
+		if( length > maxLength ){
+			int newLength = CKYParser.growChart(length, maxLength, Integer.MAX_VALUE, 2L * numSymbols);
+			int size = (int)CKYParser.chartEntries(newLength, 2L * numSymbols);
+
+			// allocate everything before switching, so a failed allocation leaves the old chart usable
+			double[] newScore = new double[size];
+			int[] newBack = new int[size];
+			int[] newSplit = new int[size];
+			byte[] newState = new byte[size];
+			agenda.ensureCapacity(size);
+
+			score = newScore;
+			back = newBack;
+			split = newSplit;
+			state = newState;
+			numTouched = 0;
+			maxLength = newLength;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package nlp.parser;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Parses batches of sentences on a pool of worker threads that share one GrammarIndex.  Every
+ * worker has its own CKYParser (and so its own chart), which it keeps from batch to batch.
+ *
+ * Parsing a sentence takes time cubic in its length, so a batch is scheduled longest sentence
+ * first: the workers take the next sentence off a shared cursor into the sentences sorted by
+ * length, which leaves only short sentences for the end of the batch, when workers run out of
+ * work at different times.  The parses are returned in the order of the input.
+ *
+ * A batch parser is used from one thread at a time.  Close it to stop its workers.
+ *
+ */
+public class BatchParser implements AutoCloseable {
+	private static final int DEFAULT_BATCH_SIZE = 10000; // the number of sentences read from a stream per batch
+
+	private final ForkJoinPool pool;
+	private final CKYParser[] parsers; // worker -> its parser
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * Create a batch parser with the start symbol S and no limit on the size of the charts
+	 *
+	 * @param grammar the binarized grammar
+	 * @param numThreads the number of workers
+	 */
+	public BatchParser(Grammar grammar, int numThreads){
+		this(grammar, "S", numThreads, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Create a batch parser
+	 *
+	 * @param grammar the binarized grammar
+	 * @param startSymbol the label of the root of every parse
+	 * @param numThreads the number of workers
+	 * @param maxChartBytes the most memory the chart of a worker may take; longer sentences than
+	 *   fit in it aren't parsed (see CKYParser.setLengthLimit())
+	 */
+	public BatchParser(Grammar grammar, String startSymbol, int numThreads, long maxChartBytes){
+		if( numThreads < 1 ){
+			throw new RuntimeException("Need at least one thread: " + numThreads);
+		}
+
+		GrammarIndex index = new GrammarIndex(grammar);
+		pool = new ForkJoinPool(numThreads);
+		parsers = new CKYParser[numThreads];
+
+		for( int i = 0; i < numThreads; i++ ){
+			parsers[i] = new CKYParser(index, startSymbol);
+			parsers[i].setLengthLimit(lengthLimit(parsers[i], maxChartBytes));
+		}
+	}
+
+	/**
+	 * Set the number of sentences that are read from a stream and parsed together.  Bigger
+	 * batches balance the work better but keep more parses in memory.
+	 *
+	 * @param batchSize the number of sentences per batch
+	 */
+	public void setBatchSize(int batchSize){
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Get the longest sentence that is parsed, which depends on the maxChartBytes the batch parser
+	 * was created with
+	 *
+	 * @return the length limit, Integer.MAX_VALUE if there is none
+	 */
+	public int getLengthLimit(){
+		return parsers[0].getLengthLimit();
+	}
+
+	/**
+	 * Get the counts of the workers summed, including the sentences that were too long to parse
+	 *
+	 * @return new counts of the sentences parsed and skipped so far
+	 */
+	public PruningStats getStats(){
+		PruningStats stats = new PruningStats();
+
+		for( CKYParser parser: parsers ){
+			stats.add(parser.getStats());
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Parse a batch of sentences of space separated words.  The sentences longer than
+	 * getLengthLimit() aren't parsed: they get null, like the sentences that can't be parsed, and
+	 * are counted in getStats().getSkipped().
+	 *
+	 * @param sentences the sentences
+	 * @return the most probable parse of each sentence, in the same order, with null for the
+	 *   sentences that can't be parsed or are too long
+	 */
+	public List<ParseTree> parse(List<String> sentences){
+		String[][] words = new String[sentences.size()][];
+
+		for( int i = 0; i < words.length; i++ ){
+			words[i] = sentences.get(i).trim().split("\\s+");
+		}
+
+		return Arrays.asList(parse(words));
+	}
+
+	/**
+	 * Parse a stream of sentences of space separated words, a batch at a time
+	 *
+	 * @param sentences the sentences
+	 * @param consumer the consumer of the parses (null for the sentences that can't be parsed or
+	 *   are too long, see parse(List)), which gets them in the order of the sentences, on the calling thread
+	 */
+	public void parse(Iterable<String> sentences, Consumer<ParseTree> consumer){
+		List<String> batch = new ArrayList<String>(batchSize);
+
+		for( String sentence: sentences ){
+			batch.add(sentence);
+
+			if( batch.size() == batchSize ){
+				parse(batch).forEach(consumer);
+				batch.clear();
+			}
+		}
+
+		parse(batch).forEach(consumer);
+	}
+
+	/**
+	 * Stop the workers
+	 */
+	public void close(){
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Parse a batch of sentences, longest first
+	 */
+	private ParseTree[] parse(String[][] words){
+		ParseTree[] parses = new ParseTree[words.length];
+		int[] order = longestFirst(words);
+		AtomicInteger next = new AtomicInteger(); // the next position in order to parse
+
+		List<Callable<Void>> workers = new ArrayList<Callable<Void>>(parsers.length);
+
+		for( CKYParser parser: parsers ){
+			workers.add(() -> {
+				for( int i = next.getAndIncrement(); i < order.length; i = next.getAndIncrement() ){
+					parses[order[i]] = parser.parse(Arrays.asList(words[order[i]]));
+				}
+
+				return null;
+			});
+		}
+
+		try{
+			for( Future<Void> worker: pool.invokeAll(workers) ){
+				worker.get();
+			}
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while parsing", e);
+		}catch( ExecutionException e ){
+			throw new RuntimeException("Failed to parse a sentence", e.getCause());
+		}
+
+		return parses;
+	}
+
+	/**
+	 * The indices of the sentences, from the longest sentence to the shortest (a counting sort by
+	 * length, which keeps sentences of the same length in input order)
+	 */
+	static int[] longestFirst(String[][] words){
+		int maxLength = 0;
+
+		for( String[] sentence: words ){
+			maxLength = Math.max(maxLength, sentence.length);
+		}
+
+		// the position in order of the first sentence of each length, longest first
+		int[] start = new int[maxLength + 2];
+
+		for( String[] sentence: words ){
+			start[maxLength - sentence.length + 1]++;
+		}
+
+		for( int i = 1; i < start.length; i++ ){
+			start[i] += start[i-1];
+		}
+
+		int[] order = new int[words.length];
+
+		for( int i = 0; i < words.length; i++ ){
+			order[start[maxLength - words[i].length]++] = i;
+		}
+
+		return order;
+	}
+
+	/**
+	 * The longest sentence whose chart fits in maxChartBytes
+	 */
+	private static int lengthLimit(CKYParser parser, long maxChartBytes){
+		if( maxChartBytes == Long.MAX_VALUE ){
+			return Integer.MAX_VALUE;
+		}
+
+		int length = 0;
+
+		while( parser.chartBytes(length + 1) <= maxChartBytes ){
+			length++;
+		}
+
+		return length;
+	}
+}
@@ -0,0 +1,230 @@
+package nlp.parser;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Binarizes a PCFG left to right: the rule A -> B C D E becomes
+ *   A -> @X3 E
+ *   @X3 -> @X2 D
+ *   @X2 -> B C
+ * where every intermediate symbol @X stands for a prefix of the RHS.  The @ keeps them apart from
+ * the labels of the treebank, which share their symbol table.
+ *
+ * The intermediate symbols are the nodes of a trie over the states of the prefixes, so every
+ * state gets exactly one intermediate symbol, shared by all of the rules that go through it.
+ * The state of a prefix depends on the Markovization:
+ *   - the horizontal order h: the state only remembers the last h symbols of the prefix
+ *     (INFINITE remembers the whole prefix, which doesn't change the language of the grammar)
+ *   - the vertical order v: with v = 1 the state also remembers the LHS, so the intermediate
+ *     symbols aren't shared across LHS symbols; with v = 0 they are
+ * Higher vertical orders (annotating the nonterminals with their ancestors) need the trees rather
+ * than the rule counts, so they aren't supported here.
+ *
+ * The binary rules are estimated from the counts of the original rules: a rule with count c
+ * adds c to the count of each of the rules it is binarized into, and the weights are the relative
+ * frequencies of those counts.  With h = INFINITE every intermediate symbol has one rule with
+ * weight 1.0 and the other rules keep their weights, as with ConstructPCFG.binarizePCFG().
+ *
+ * The rules are binarized in sorted order, so the intermediate symbols (numbered @X1, @X2, ...) and
+ * the binarized grammar are the same from run to run.
+ *
+ */
+public class Binarizer {
+	public static final int INFINITE = Integer.MAX_VALUE; // a horizontal order that keeps the whole prefix
+
+	private final int horizontalOrder;
+	private final int verticalOrder;
+
+	// the statistics of the last binarization
+	private int numSymbols = 0;
+	private int numIntermediateSymbols = 0;
+	private int numRules = 0;
+
+	/**
+	 * Create a binarizer that shares the intermediate symbols of identical prefixes across all of
+	 * the LHS symbols (h = INFINITE, v = 0)
+	 */
+	public Binarizer(){
+		this(INFINITE, 0);
+	}
+
+	/**
+	 * Create a binarizer
+	 *
+	 * @param horizontalOrder the number of symbols of the prefix the intermediate symbols remember, or INFINITE
+	 * @param verticalOrder 1 if the intermediate symbols remember the LHS, 0 if not
+	 */
+	public Binarizer(int horizontalOrder, int verticalOrder){
+		if( horizontalOrder < 0 ){
+			throw new RuntimeException("Negative horizontal order: " + horizontalOrder);
+		}else if( verticalOrder != 0 && verticalOrder != 1 ){
+			throw new RuntimeException("Unsupported vertical order (only 0 and 1 are): " + verticalOrder);
+		}
+
+		this.horizontalOrder = horizontalOrder;
+		this.verticalOrder = verticalOrder;
+	}
+
+	/**
+	 * Binarize a PCFG
+	 *
+	 * @param pcfg the PCFG, with its counts
+	 * @return the binarized PCFG, with its counts and weights
+	 */
+	public ConstructPCFG binarize(ConstructPCFG pcfg){
+		SymbolTable symbols = pcfg.getSymbols();
+		RuleTable table = pcfg.getTable();
+		ConstructPCFG binary = new ConstructPCFG();
+
+		// the original symbols keep their ids in the binarized PCFG
+		for( int id = 0; id < symbols.size(); id++ ){
+			binary.symbols.intern(symbols.getSymbol(id));
+		}
+
+		HashMap<Long, Integer> trie = new HashMap<Long, Integer>(); // (node, symbol) -> child node, the root is 0
+		int[] intermediate = new int[16]; // trie node -> its intermediate symbol id, or 0 if it hasn't got one yet
+		int numNodes = 1;
+		int numIntermediate = 0;
+		int[] rhs = new int[2];
+
+		for( int rule: pcfg.sortedRules() ){
+			int lhs = table.getLhs(rule);
+			int rhsSize = table.numRhs(rule);
+			long count = table.getCount(rule);
+
+			if( rhsSize <= 2 ){
+				for( int i = 0; i < rhsSize; i++ ){
+					rhs[i] = table.getRhs(rule, i);
+				}
+
+				binary.table.add(lhs, rhs, rhsSize, table.isLexical(rule), count);
+				continue;
+			}
+
+			int prev = table.getRhs(rule, 0);
+
+			for( int end = 2; end < rhsSize; end++ ){
+				// walk down the trie to the state of the prefix of length end
+				int node = 0;
+
+				if( verticalOrder == 1 ){
+					node = child(trie, node, ~lhs, numNodes);
+					numNodes += node == numNodes ? 1 : 0;
+				}
+
+				for( int i = Math.max(0, end - horizontalOrder); i < end; i++ ){
+					node = child(trie, node, table.getRhs(rule, i), numNodes);
+					numNodes += node == numNodes ? 1 : 0;
+				}
+
+				if( node >= intermediate.length ){
+					intermediate = Arrays.copyOf(intermediate, Math.max(2 * intermediate.length, node + 1));
+				}
+
+				if( intermediate[node] == 0 ){
+					intermediate[node] = binary.symbols.intern(Grammar.INTERMEDIATE_PREFIX + (++numIntermediate));
+				}
+
+				rhs[0] = prev;
+				rhs[1] = table.getRhs(rule, end - 1);
+				binary.table.add(intermediate[node], rhs, 2, false, count);
+				prev = intermediate[node];
+			}
+
+			rhs[0] = prev;
+			rhs[1] = table.getRhs(rule, rhsSize - 1);
+			binary.table.add(lhs, rhs, 2, false, count);
+		}
+
+		binary.updateWeights();
+
+		numIntermediateSymbols = numIntermediate;
+		numSymbols = 0;
+		numRules = binary.table.size();
+
+		for( int id = 0; id < binary.symbols.size(); id++ ){
+			if( binary.table.getLhsCount(id) > 0 ){
+				numSymbols++;
+			}
+		}
+
+		return binary;
+	}
+
+	/**
+	 * Get the number of nonterminals (including the intermediate symbols) of the last binarized PCFG
+	 *
+	 * @return the number of nonterminals
+	 */
+	public int getNumSymbols(){
+		return numSymbols;
+	}
+
+	/**
+	 * Get the number of intermediate symbols of the last binarized PCFG
+	 *
+	 * @return the number of intermediate symbols
+	 */
+	public int getNumIntermediateSymbols(){
+		return numIntermediateSymbols;
+	}
+
+	/**
+	 * Get the number of rules of the last binarized PCFG
+	 *
+	 * @return the number of rules
+	 */
+	public int getNumRules(){
+		return numRules;
+	}
+
+	/**
+	 * The Markovization and the size of the last binarized PCFG, e.g.
+	 *   h=inf v=0: 289 symbols (237 intermediate), 1570 rules
+	 */
+	public String toString(){
+		return "h=" + (horizontalOrder == INFINITE ? "inf" : Integer.toString(horizontalOrder)) + " v=" + verticalOrder +
+			": " + numSymbols + " symbols (" + numIntermediateSymbols + " intermediate), " + numRules + " rules";
+	}
+
+	/**
+	 * Get the child of a trie node, adding it if it isn't in the trie
+	 *
+	 * @param symbol the symbol of the edge to the child (~lhs for the LHS)
+	 * @param numNodes the number of nodes in the trie, which is the id of a new child
+	 */
+	private static int child(HashMap<Long, Integer> trie, int node, int symbol, int numNodes){
+		long edge = ((long)node << 32) | (symbol & 0xFFFFFFFFL);
+		Integer child = trie.get(edge);
+
+		if( child == null ){
+			child = numNodes;
+			trie.put(edge, child);
+		}
+
+		return child;
+	}
+
+	/**
+	 * Print the size of the binarized grammar of a treebank for several Markovizations
+	 *
+	 * @param args the treebank (a file, directory or glob)
+	 */
+	public static void main(String[] args){
+		if( args.length != 1 ){
+			System.err.println("usage: java nlp.parser.Binarizer <treebank>");
+			System.exit(1);
+		}
+
+		ConstructPCFG pcfg = new ConstructPCFG(args[0]);
+		System.out.println("unbinarized: " + pcfg.getTable().size() + " rules");
+
+		for( int v = 0; v <= 1; v++ ){
+			for( int h: new int[]{INFINITE, 2, 1, 0} ){
+				Binarizer binarizer = new Binarizer(h, v);
+				binarizer.binarize(pcfg);
+				System.out.println(binarizer);
+			}
+		}
+	}
+}
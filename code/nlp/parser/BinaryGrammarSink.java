@@ -0,0 +1,181 @@
+package nlp.parser;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Writes rules in a compact binary format that can be streamed: after the magic number and
+ * version, every rule is
+ *   - a varint: the number of RHS symbols << 1, | 1 if the rule is lexical
+ *   - the LHS and RHS symbols
+ *   - the weight as a double
+ * A symbol is a varint: 0 introduces a new symbol, whose name follows (in the modified UTF-8 of
+ * DataOutput.writeUTF), and gets the next id; otherwise it's the id of a symbol + 1.  So every
+ * symbol name is written once, the first time it's used, and most symbols take one or two bytes.
+ *
+ * Use read() to read the rules back; Grammar(String) reads this format too.  This format is for
+ * writing a grammar as it's estimated, one rule at a time; to load a grammar fast for parsing,
+ * compile it into a CompiledGrammar, which has a different layout and magic number ("PCFG").
+ *
+ */
+public class BinaryGrammarSink implements GrammarSink {
+	public static final int MAGIC = 0x50434642; // "PCFB"
+	private static final int VERSION = 1;
+
+	private final DataOutputStream out;
+	private final byte[] buffer = new byte[1 << 13]; // the encoded rules, which are written to out in one go when it fills up
+	private int position = 0; // the number of bytes in buffer
+	private SymbolTable symbols = null; // the symbol table of the rules that have been written
+	private int[] ids = new int[64]; // symbol table id -> id in the file + 1, or 0 if it hasn't been written yet
+	private int numIds = 0;
+
+	/**
+	 * Create a sink that writes to a stream
+	 *
+	 * @param out the stream, which is closed when the sink is closed
+	 * @throws IOException if the header can't be written
+	 */
+	public BinaryGrammarSink(OutputStream out) throws IOException{
+		this.out = new DataOutputStream(out);
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+	}
+
+	public void write(SymbolTable symbols, int lhs, int[] rhs, int rhsLength, boolean lexical, double weight) throws IOException{
+		if( this.symbols == null ){
+			this.symbols = symbols;
+		}else if( this.symbols != symbols ){
+			throw new RuntimeException("All of the rules of a grammar sink must use the same symbol table");
+		}
+
+		// make room for the largest possible rule without new symbols
+		if( position + 5 * (rhsLength + 2) + 8 > buffer.length ){
+			flush();
+		}
+
+		writeVarint((rhsLength << 1) | (lexical ? 1 : 0));
+		writeSymbol(lhs);
+
+		for( int i = 0; i < rhsLength; i++ ){
+			writeSymbol(rhs[i]);
+		}
+
+		long bits = Double.doubleToLongBits(weight);
+
+		for( int shift = 56; shift >= 0; shift -= 8 ){
+			buffer[position++] = (byte)(bits >>> shift);
+		}
+	}
+
+	public void close() throws IOException{
+		flush();
+		out.close();
+	}
+
+	private void flush() throws IOException{
+		out.write(buffer, 0, position);
+		position = 0;
+	}
+
+	/**
+	 * Read the rules of a grammar written by a BinaryGrammarSink
+	 *
+	 * @param stream the stream, which should be buffered
+	 * @param consumer the consumer of the rules, in the order they were written
+	 * @throws IOException if the stream can't be read or isn't in the binary format
+	 */
+	public static void read(InputStream stream, Consumer<GrammarRule> consumer) throws IOException{
+		DataInputStream in = new DataInputStream(stream);
+
+		if( in.readInt() != MAGIC ){
+			throw new IOException("Not a binary grammar");
+		}else if( in.readInt() != VERSION ){
+			throw new IOException("Unsupported binary grammar version");
+		}
+
+		ArrayList<String> names = new ArrayList<String>();
+		int first;
+
+		while( (first = in.read()) != -1 ){
+			int header = readVarint(in, first);
+			String lhs = readSymbol(in, names);
+			ArrayList<String> rhs = new ArrayList<String>(header >>> 1);
+
+			for( int i = 0; i < header >>> 1; i++ ){
+				rhs.add(readSymbol(in, names));
+			}
+
+			GrammarRule rule = new GrammarRule(lhs, rhs, (header & 1) == 1);
+			rule.setWeight(in.readDouble());
+			consumer.accept(rule);
+		}
+	}
+
+	private void writeSymbol(int symbol) throws IOException{
+		if( symbol >= ids.length ){
+			ids = Arrays.copyOf(ids, Math.max(2 * ids.length, symbol + 1));
+		}
+
+		if( ids[symbol] == 0 ){
+			ids[symbol] = ++numIds;
+			buffer[position++] = 0;
+			flush();
+			out.writeUTF(symbols.getSymbol(symbol));
+		}else{
+			writeVarint(ids[symbol]);
+		}
+	}
+
+	/**
+	 * Write a non-negative int 7 bits at a time, low bits first
+	 */
+	private void writeVarint(int value){
+		while( (value & ~0x7F) != 0 ){
+			buffer[position++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		buffer[position++] = (byte)value;
+	}
+
+	private static String readSymbol(DataInputStream in, ArrayList<String> names) throws IOException{
+		int id = readVarint(in, in.readUnsignedByte());
+
+		if( id == 0 ){
+			names.add(in.readUTF());
+			return names.get(names.size() - 1);
+		}else if( id > names.size() ){
+			throw new IOException("Bad symbol id in binary grammar: " + id);
+		}
+
+		return names.get(id - 1);
+	}
+
+	/**
+	 * Read a varint whose first byte has already been read
+	 */
+	private static int readVarint(DataInputStream in, int first) throws IOException{
+		int value = first & 0x7F;
+		int shift = 7;
+		int b = first;
+
+		while( (b & 0x80) != 0 ){
+			b = in.read();
+
+			if( b == -1 ){
+				throw new EOFException("Truncated binary grammar");
+			}
+
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		}
+
+		return value;
+	}
+}
@@ -0,0 +1,680 @@
+package nlp.parser;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A CKY parser that finds the most probable (Viterbi) parse of a sentence under a binarized
+ * PCFG.  The chart is kept in flat primitive arrays indexed by span and nonterminal id, in two
+ * layers: inside[cell(i,j)*numSymbols + A] is the best log probability of A spanning words i to
+ * j from a lexical or binary rule, and score[cell(i,j)*numSymbols + A] is the best one after a
+ * unary chain on top of that.  The rules are looked up in a GrammarIndex, so a cell gets its
+ * unary entries in one pass over the unary closure.
+ *
+ * The intermediate @X1, @X2, ... symbols of the binarization are removed from the returned trees.
+ *
+ * By default the search is exhaustive.  It can be pruned, which is faster but may miss the best
+ * parse (or any parse):
+ *   - a beam per cell: only the beamSize best entries of a cell are kept, and only the entries
+ *     within beamWidth (in log probability) of the best one
+ *   - a threshold on the figure of merit of an entry, its log probability per word
+ *     (score / span length), which is comparable across spans of different lengths
+ *   - a minimum rule weight: binary and unary rules with a lower weight aren't used (lexical
+ *     rules always are, so that every known word gets its tags)
+ * The entries built and pruned are counted in getStats().  The chart can also be restricted to
+ * the entries a coarser pass kept (see CoarseToFineParser).
+ *
+ * The binary rules are applied by a ChartKernel, which is vectorized when the JVM runs with
+ * --add-modules jdk.incubator.vector.
+ *
+ * A word that isn't in the grammar gets the tags of its signature, if the grammar was estimated
+ * with rare words replaced by their signatures (see UnknownWords).  The signatures of the
+ * unknown words are kept in a LexiconCache.
+ *
+ * A parser keeps its chart between sentences, so it is not thread safe.  Create one parser per
+ * thread; they can share the same Grammar and GrammarIndex.
+ *
+ */
+public class CKYParser {
+	private static final double NONE = Double.NEGATIVE_INFINITY; // the score of an empty chart entry
+	private static final int DEFAULT_CACHE_SIZE = 10000; // the most unknown words whose signatures are cached
+	private static final int LEXICAL = -1; // back[] value for an entry from a lexical rule
+
+	private static final int NO_UNARY = -1; // unary[] value for an entry that isn't from a unary chain
+	private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8; // the most elements of an array the JVM allocates
+
+	private final Grammar grammar;
+	private final int numSymbols;
+	private final int start; // the id of the start symbol
+	private GrammarIndex index; // the rules that are used
+	private ChartKernel kernel = ChartKernel.create(); // the inner loop over the binary rules
+
+	private int beamSize = Integer.MAX_VALUE; // the most entries kept in a cell
+	private double beamWidth = Double.POSITIVE_INFINITY; // entries this much worse than the best of their cell are pruned
+	private double threshold = NONE; // entries with a lower log probability per word are pruned
+	private final double[] beam; // the scores of a cell, to find the beamSize best
+	private final PruningStats stats = new PruningStats();
+	private Constraint constraint = null; // which entries may be built, or null for all of them
+	private LexiconCache lexicon; // the word ids of the words of the sentences
+
+	private int maxLength = 0; // the longest sentence the chart currently has room for
+	private int lengthLimit = Integer.MAX_VALUE; // the longest sentence the chart may grow to hold
+	private double[] inside = new double[0]; // the chart before unary rules: cell -> symbol -> best log probability
+	private int[] back = new int[0]; // how the best inside entry was built: a binary rule id or LEXICAL
+	private int[] split = new int[0]; // the split point of binary entries
+	private double[] score = new double[0]; // the chart after unary rules: cell -> symbol -> best log probability
+	private int[] unary = new int[0]; // the closure entry of the unary chain of the best entry, or NO_UNARY
+	private int[] live = new int[0]; // cell -> the symbols of its entries (after pruning), in the first numLive[cell] of its slots
+	private int[] numLive = new int[0]; // cell -> the number of symbols with an entry
+
+	private List<String> words; // the sentence being parsed
+	private int length; // the number of words in the sentence being parsed
+	private double bestScore = NONE; // the log probability of the last parse
+
+	/**
+	 * Create a new parser with the start symbol S
+	 *
+	 * @param grammar the binarized grammar
+	 */
+	public CKYParser(Grammar grammar){
+		this(grammar, "S");
+	}
+
+	/**
+	 * Create a new parser
+	 *
+	 * @param grammar the binarized grammar
+	 * @param startSymbol the label of the root of every parse
+	 */
+	public CKYParser(Grammar grammar, String startSymbol){
+		this(new GrammarIndex(grammar), startSymbol);
+	}
+
+	/**
+	 * Create a new parser that uses an index of a grammar, e.g. one shared with other parsers
+	 *
+	 * @param index the index of the binarized grammar
+	 * @param startSymbol the label of the root of every parse
+	 */
+	public CKYParser(GrammarIndex index, String startSymbol){
+		this.index = index;
+		this.grammar = index.getGrammar();
+		this.numSymbols = grammar.numSymbols();
+		this.start = grammar.getSymbols().getId(startSymbol);
+
+		if( start == -1 ){
+			throw new RuntimeException("Start symbol not in grammar: " + startSymbol);
+		}
+
+		beam = new double[numSymbols];
+		lexicon = new LexiconCache(grammar.getWords(), DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Only keep the best entries of each cell of the chart
+	 *
+	 * @param beamSize the most entries kept in a cell, at least 1
+	 */
+	public void setBeamSize(int beamSize){
+		if( beamSize < 1 ){
+			throw new RuntimeException("The beam size must be at least 1: " + beamSize);
+		}
+
+		this.beamSize = beamSize;
+	}
+
+	/**
+	 * Prune the entries of each cell of the chart that are much less probable than the best one
+	 *
+	 * @param beamWidth the largest difference in log probability from the best entry of the cell,
+	 *   at least 0 (infinity for no limit)
+	 */
+	public void setBeamWidth(double beamWidth){
+		if( !(beamWidth >= 0) ){ // also rejects NaN
+			throw new RuntimeException("The beam width must be at least 0: " + beamWidth);
+		}
+
+		this.beamWidth = beamWidth;
+	}
+
+	/**
+	 * Prune the entries with a low figure of merit (log probability per word)
+	 *
+	 * @param threshold the lowest log probability per word of the entries that are kept, e.g. -10.0,
+	 *   at most 0 (negative infinity for no threshold)
+	 */
+	public void setThreshold(double threshold){
+		if( !(threshold <= 0) ){ // also rejects NaN
+			throw new RuntimeException("The threshold must be a log probability (at most 0): " + threshold);
+		}
+
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Don't use the binary and unary rules with a low weight
+	 *
+	 * @param minWeight the lowest weight (probability) of the rules that are used
+	 */
+	public void setMinRuleWeight(double minWeight){
+		index = new GrammarIndex(grammar, minWeight);
+	}
+
+	/**
+	 * Set the number of unknown words whose signatures are cached (this empties the cache)
+	 *
+	 * @param capacity the most unknown words kept in the cache
+	 */
+	public void setUnknownWordCacheSize(int capacity){
+		lexicon = new LexiconCache(grammar.getWords(), capacity);
+	}
+
+	/**
+	 * Get the cache of the signatures of the unknown words
+	 *
+	 * @return the cache, with its hit and miss counts
+	 */
+	public LexiconCache getLexiconCache(){
+		return lexicon;
+	}
+
+	/**
+	 * Only build the chart entries a constraint allows, e.g. the ones kept by a coarser pass over
+	 * the same sentence
+	 *
+	 * @param constraint the constraint for the next sentences, or null to build every entry
+	 */
+	void setConstraint(Constraint constraint){
+		this.constraint = constraint;
+	}
+
+	/**
+	 * Fill in the binary entries of the chart with a kernel, e.g. the scalar one to compare it with
+	 * the vectorized one
+	 *
+	 * @param kernel the kernel for the next sentences
+	 */
+	void setKernel(ChartKernel kernel){
+		this.kernel = kernel;
+	}
+
+	/**
+	 * Get the name of the kernel that fills in the binary entries of the chart, which is chosen
+	 * when the parser is created (see ChartKernel)
+	 *
+	 * @return "scalar", or the vector size of the vectorized kernel
+	 */
+	public String getKernelName(){
+		return kernel.getName();
+	}
+
+	/**
+	 * Get the counts of the chart entries built and pruned by this parser
+	 *
+	 * @return the counts, which are updated as sentences are parsed
+	 */
+	public PruningStats getStats(){
+		return stats;
+	}
+
+	/**
+	 * Parse a sentence of space separated words
+	 *
+	 * @param sentence the sentence
+	 * @return the most probable parse or null if the sentence can't be parsed or is longer than
+	 *   the length limit (see parse(List))
+	 */
+	public ParseTree parse(String sentence){
+		return parse(Arrays.asList(sentence.trim().split("\\s+")));
+	}
+
+	/**
+	 * Parse a sentence.  A sentence longer than the length limit (see setLengthLimit()) isn't
+	 * parsed: it gets null too, but is counted in getStats().getSkipped() rather than as a
+	 * sentence, so check its length against getLengthLimit() to tell it from one that has no parse.
+	 *
+	 * @param words the words of the sentence
+	 * @return the most probable parse or null if the sentence can't be parsed or is too long
+	 */
+	public ParseTree parse(List<String> words){
+		this.words = words;
+		this.length = words.size();
+
+		if( length > lengthLimit ){
+			bestScore = NONE;
+			stats.skipped();
+			return null;
+		}
+
+		ensureCapacity(length);
+		stats.sentence();
+
+		int n = length;
+
+		for( int i = 0; i < n; i++ ){
+			fillLexical(i);
+		}
+
+		for( int spanLength = 2; spanLength <= n; spanLength++ ){
+			for( int i = 0; i + spanLength <= n; i++ ){
+				fillBinary(i, i + spanLength);
+			}
+		}
+
+		bestScore = n == 0 ? NONE : score[cell(0, n) * numSymbols + start];
+
+		if( bestScore == NONE ){
+			return null;
+		}
+
+		ParseTree root = new ParseTree(grammar.getSymbols().getSymbol(start), false);
+		addChildren(root, 0, n, start);
+
+		return root;
+	}
+
+	/**
+	 * Limit the size of the chart: sentences longer than lengthLimit aren't parsed (parse()
+	 * returns null for them and counts them as skipped), so the chart never takes more than
+	 * chartBytes(lengthLimit) bytes.
+	 *
+	 * @param lengthLimit the longest sentence to parse
+	 */
+	public void setLengthLimit(int lengthLimit){
+		this.lengthLimit = lengthLimit;
+	}
+
+	/**
+	 * Get the longest sentence that is parsed
+	 *
+	 * @return the length limit, Integer.MAX_VALUE if there is none
+	 */
+	public int getLengthLimit(){
+		return lengthLimit;
+	}
+
+	/**
+	 * The number of bytes of a chart for sentences of up to length words
+	 *
+	 * @param length the sentence length
+	 * @return the number of bytes of the chart arrays
+	 */
+	public long chartBytes(int length){
+		// two double scores, an int back pointer, split point, unary chain and live symbol per entry
+		return (long)(length + 1) * (length + 1) * numSymbols * (8 + 8 + 4 + 4 + 4 + 4);
+	}
+
+	/**
+	 * The log probability of the last parse
+	 *
+	 * @return the log probability of the last parse, or negative infinity if it failed
+	 */
+	public double getBestScore(){
+		return bestScore;
+	}
+
+	// read access to the chart of the last parse, e.g. for KBestParser
+
+	/**
+	 * Get the index of the rules that are used
+	 */
+	GrammarIndex getIndex(){
+		return index;
+	}
+
+	/**
+	 * Get the id of the start symbol
+	 */
+	int getStart(){
+		return start;
+	}
+
+	/**
+	 * Get the best log probability of symbol over the span i to j before unary rules (negative
+	 * infinity if there's no entry)
+	 */
+	double getInside(int i, int j, int symbol){
+		return inside[cell(i, j) * numSymbols + symbol];
+	}
+
+	/**
+	 * Get the best log probability of symbol over the span i to j after unary rules (negative
+	 * infinity if there's no entry or it was pruned)
+	 */
+	double getScore(int i, int j, int symbol){
+		return score[cell(i, j) * numSymbols + symbol];
+	}
+
+	/**
+	 * Get the number of symbols with an entry (after unary rules and pruning) over the span i to j
+	 */
+	int numLive(int i, int j){
+		return numLive[cell(i, j)];
+	}
+
+	/**
+	 * Get one of the symbols with an entry over the span i to j
+	 */
+	int getLive(int i, int j, int n){
+		return live[cell(i, j) * numSymbols + n];
+	}
+
+	/**
+	 * Fill in the cell for word i with the lexical rules and then the unary rules
+	 */
+	private void fillLexical(int i){
+		int base = clearCell(i, i+1);
+
+		if( constraint != null && !constraint.allowsSpan(i, i+1) ){
+			closeCell(base);
+			return;
+		}
+
+		int word = lexicon.lookup(words.get(i));
+
+		if( word != -1 ){
+			for( int x = index.lexiconStart(word); x < index.lexiconStart(word + 1); x++ ){
+				int tag = base + index.getLexiconTag(x);
+				double s = index.getLexiconScore(x);
+
+				if( s > inside[tag] ){
+					inside[tag] = s;
+					back[tag] = LEXICAL;
+				}
+			}
+		}
+
+		fillUnary(base);
+		prune(base, i, i+1);
+	}
+
+	/**
+	 * Fill in the cell for the span i to j with the binary rules and then the unary rules
+	 */
+	private void fillBinary(int i, int j){
+		int base = clearCell(i, j);
+
+		if( constraint != null && !constraint.allowsSpan(i, j) ){
+			closeCell(base);
+			return;
+		}
+
+		for( int k = i + 1; k < j; k++ ){
+			int leftCell = cell(i, k);
+
+			// only the symbols with an entry in the left cell
+			kernel.combine(index, score, live, leftCell * numSymbols, numLive[leftCell], cell(k, j) * numSymbols,
+					inside, back, split, base, k);
+		}
+
+		fillUnary(base);
+		prune(base, i, j);
+	}
+
+	/**
+	 * Fill in the entries of a cell after unary rules: each entry is either its inside entry or
+	 * the best unary chain on top of another inside entry of the cell
+	 */
+	private void fillUnary(int base){
+		System.arraycopy(inside, base, score, base, numSymbols);
+		Arrays.fill(unary, base, base + numSymbols, NO_UNARY);
+
+		for( int b = 0; b < numSymbols; b++ ){
+			double child = inside[base + b];
+
+			if( child == NONE ){
+				continue;
+			}
+
+			for( int e = index.closureStart(b); e < index.closureStart(b + 1); e++ ){
+				double s = child + index.getClosureScore(e);
+				int parent = base + index.getClosureParent(e);
+
+				if( s > score[parent] ){
+					score[parent] = s;
+					unary[parent] = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove the entries of a cell that fall outside of the beam or below the threshold, or that
+	 * the constraint doesn't allow, and list the symbols of the entries that are left
+	 *
+	 * @param base the offset of the cell in the chart arrays
+	 * @param i the start of the span of the cell
+	 * @param j the end of the span of the cell
+	 */
+	private void prune(int base, int i, int j){
+		int spanLength = j - i;
+		int built = 0;
+		double best = NONE;
+
+		for( int a = base; a < base + numSymbols; a++ ){
+			if( score[a] != NONE ){
+				built++;
+				best = Math.max(best, score[a]);
+			}
+		}
+
+		// the lowest score that is kept
+		double cutoff = Math.max(best - beamWidth, threshold * spanLength);
+
+		if( built > beamSize ){
+			int n = 0;
+
+			for( int a = base; a < base + numSymbols; a++ ){
+				if( score[a] != NONE ){
+					beam[n++] = score[a];
+				}
+			}
+
+			Arrays.sort(beam, 0, n);
+			cutoff = Math.max(cutoff, beam[n - beamSize]);
+		}
+
+		int removed = 0;
+
+		if( cutoff > NONE ){
+			for( int a = base; a < base + numSymbols; a++ ){
+				if( score[a] < cutoff && score[a] != NONE ){
+					score[a] = NONE;
+					removed++;
+				}
+			}
+		}
+
+		if( constraint != null ){
+			for( int a = 0; a < numSymbols; a++ ){
+				if( score[base + a] != NONE && !constraint.allows(i, j, a) ){
+					score[base + a] = NONE;
+					removed++;
+				}
+			}
+		}
+
+		stats.cell(built, removed);
+
+		int n = 0;
+
+		for( int a = 0; a < numSymbols; a++ ){
+			if( score[base + a] != NONE ){
+				live[base + n++] = a;
+			}
+		}
+
+		numLive[base / numSymbols] = n;
+	}
+
+	/**
+	 * Add the children of the best entry for symbol over the span i to j to node.  The children of
+	 * intermediate symbols are added directly to node instead.
+	 */
+	private void addChildren(ParseTree node, int i, int j, int symbol){
+		int entry = cell(i, j) * numSymbols + symbol;
+		int e = unary[entry];
+
+		if( e == NO_UNARY ){
+			addInsideChildren(node, i, j, symbol);
+			return;
+		}
+
+		// follow the unary chain down to the inside entry it starts from
+		while( index.getClosureNext(e) != -1 ){
+			node = addNode(node, index.getClosureVia(e));
+			e = index.getClosureNext(e);
+		}
+
+		addInsideChildren(addNode(node, index.getClosureChild(e)), i, j, index.getClosureChild(e));
+	}
+
+	/**
+	 * Add the children of the best inside entry for symbol over the span i to j to node
+	 */
+	private void addInsideChildren(ParseTree node, int i, int j, int symbol){
+		int entry = cell(i, j) * numSymbols + symbol;
+		int b = back[entry];
+
+		if( b == LEXICAL ){
+			node.addChild(new ParseTree(words.get(i), true));
+		}else{
+			int k = split[entry];
+			addChild(node, i, k, grammar.getBinaryLeft(b));
+			addChild(node, k, j, grammar.getBinaryRight(b));
+		}
+	}
+
+	private void addChild(ParseTree parent, int i, int j, int symbol){
+		addChildren(addNode(parent, symbol), i, j, symbol);
+	}
+
+	/**
+	 * Add a node for symbol to parent, unless the symbol is intermediate
+	 *
+	 * @return the new node, or parent for an intermediate symbol
+	 */
+	private ParseTree addNode(ParseTree parent, int symbol){
+		if( grammar.isIntermediate(symbol) ){
+			return parent;
+		}
+
+		ParseTree child = new ParseTree(grammar.getSymbols().getSymbol(symbol), false);
+		parent.addChild(child);
+		return child;
+	}
+
+	/**
+	 * Reset the entries of the cell for the span i to j
+	 *
+	 * @return the offset of the cell in the chart arrays
+	 */
+	private int clearCell(int i, int j){
+		int base = cell(i, j) * numSymbols;
+		Arrays.fill(inside, base, base + numSymbols, NONE);
+		return base;
+	}
+
+	/**
+	 * Leave a cell without any entries, for a span the constraint doesn't allow
+	 */
+	private void closeCell(int base){
+		Arrays.fill(score, base, base + numSymbols, NONE);
+		numLive[base / numSymbols] = 0;
+	}
+
+	/**
+	 * The index of the cell for the span i to j
+	 */
+	private int cell(int i, int j){
+		return i * (maxLength + 1) + j;
+	}
+
+	/**
+	 * Make sure the chart has room for a sentence with length words
+	 */
+	private void ensureCapacity(int length){
+		if( length > maxLength ){
+			int newLength = growChart(length, maxLength, lengthLimit, numSymbols);
+			int size = (int)chartEntries(newLength, numSymbols);
+
+			// allocate everything before switching, so a failed allocation leaves the old chart usable
+			double[] newInside = new double[size];
+			int[] newBack = new int[size];
+			int[] newSplit = new int[size];
+			double[] newScore = new double[size];
+			int[] newUnary = new int[size];
+			int[] newLive = new int[size];
+			int[] newNumLive = new int[(int)chartEntries(newLength, 1)];
+
+			inside = newInside;
+			back = newBack;
+			split = newSplit;
+			score = newScore;
+			unary = newUnary;
+			live = newLive;
+			numLive = newNumLive;
+			maxLength = newLength;
+		}
+	}
+
+	/**
+	 * The number of entries of a chart for sentences of up to length words
+	 *
+	 * @param length the sentence length
+	 * @param entriesPerCell the number of entries of each cell, e.g. the number of symbols
+	 * @return the number of entries, which may be more than fit in an array
+	 */
+	static long chartEntries(int length, long entriesPerCell){
+		return (long)(length + 1) * (length + 1) * entriesPerCell;
+	}
+
+	/**
+	 * The length to grow a chart to for a sentence with length words: twice the old length, so
+	 * that longer and longer sentences don't reallocate it every time, unless that goes over limit
+	 * or doesn't fit in an array
+	 *
+	 * @param length the length of the sentence
+	 * @param maxLength the length the chart has room for now
+	 * @param limit the longest sentence the chart may grow to hold
+	 * @param entriesPerCell the number of entries of each cell in the biggest chart array
+	 * @return the new length of the chart
+	 * @throws RuntimeException if even a chart for length words doesn't fit in an array
+	 */
+	static int growChart(int length, int maxLength, int limit, long entriesPerCell){
+		int grown = (int)Math.min(Math.max(length, 2L * maxLength), limit);
+
+		if( chartEntries(grown, entriesPerCell) > MAX_ARRAY_SIZE ){
+			grown = length;
+		}
+
+		if( chartEntries(grown, entriesPerCell) > MAX_ARRAY_SIZE ){
+			throw new RuntimeException("Sentence too long for a chart: " + length + " words");
+		}
+
+		return grown;
+	}
+
+	/**
+	 * Which entries of the chart may be built
+	 */
+	interface Constraint {
+		/**
+		 * Checks if any entry over a span may be built
+		 *
+		 * @param i the start of the span
+		 * @param j the end of the span
+		 * @return whether the cell for the span is filled in
+		 */
+		boolean allowsSpan(int i, int j);
+
+		/**
+		 * Checks if the entry for a symbol over a span may be built
+		 *
+		 * @param i the start of the span
+		 * @param j the end of the span
+		 * @param symbol the symbol
+		 * @return whether the entry is kept
+		 */
+		boolean allows(int i, int j, int symbol);
+	}
+}
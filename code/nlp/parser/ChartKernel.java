@@ -0,0 +1,121 @@
+package nlp.parser;
+
+/**
+ * The inner loop of CKYParser: the binary rules over one split point of a span.  For each symbol
+ * of the left cell, the rules are walked by (left child, right child) pair (see GrammarIndex), so
+ * the right cell is looked up once per pair and the rules of a pair are a run of parents and
+ * scores over the same two children:
+ *
+ *   inside[parent] = max(inside[parent], left + right + score)
+ *
+ * This class is the scalar kernel.  VectorChartKernel does the runs of a pair with the
+ * jdk.incubator.vector API, several rules at once; it needs the JVM option
+ *
+ *   --add-modules jdk.incubator.vector
+ *
+ * and create() falls back to the scalar kernel without it, or if the CPU has no vectors of at
+ * least two doubles.  Both kernels build the same chart.
+ *
+ * A kernel has no state, so one can be shared by any number of parsers.
+ *
+ */
+class ChartKernel {
+	static final double NONE = Double.NEGATIVE_INFINITY; // the score of an empty chart entry
+
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	private static final String VECTOR_KERNEL = "nlp.parser.VectorChartKernel";
+
+	private static final ChartKernel SCALAR = new ChartKernel();
+	private static final ChartKernel BEST = findBest();
+
+	/**
+	 * Get the fastest kernel this JVM can run, chosen when the class is loaded
+	 *
+	 * @return the vectorized kernel if the vector API is available, otherwise the scalar one
+	 */
+	static ChartKernel create(){
+		return BEST;
+	}
+
+	/**
+	 * Get the scalar kernel, e.g. to compare it with the vectorized one
+	 *
+	 * @return the kernel that does one rule at a time
+	 */
+	static ChartKernel scalar(){
+		return SCALAR;
+	}
+
+	/**
+	 * Get the name of the kernel, for reports
+	 *
+	 * @return "scalar" or the vector shape of a vectorized kernel
+	 */
+	String getName(){
+		return "scalar";
+	}
+
+	/**
+	 * Combine the entries of the cells for the spans i to k and k to j with the binary rules
+	 *
+	 * @param index the rules
+	 * @param score the chart after unary rules, with the left and right cells
+	 * @param live the symbols with an entry in each cell
+	 * @param leftBase the offset of the left cell in the chart arrays
+	 * @param numLeft the number of symbols with an entry in the left cell
+	 * @param rightBase the offset of the right cell in the chart arrays
+	 * @param inside the chart before unary rules, with the cell that is filled in
+	 * @param back the rule ids of the best inside entries
+	 * @param split the split points of the best inside entries
+	 * @param base the offset of the cell that is filled in
+	 * @param k the split point
+	 */
+	void combine(GrammarIndex index, double[] score, int[] live, int leftBase, int numLeft, int rightBase,
+			double[] inside, int[] back, int[] split, int base, int k){
+		int[] rules = index.binaryRules();
+		int[] parents = index.binaryParents();
+		double[] scores = index.binaryScores();
+
+		for( int l = 0; l < numLeft; l++ ){
+			int a = live[leftBase + l];
+			double left = score[leftBase + a];
+
+			for( int pair = index.pairStart(a); pair < index.pairStart(a + 1); pair++ ){
+				double right = score[rightBase + index.getPairRight(pair)];
+
+				if( right == NONE ){
+					continue;
+				}
+
+				double children = left + right;
+
+				for( int x = index.pairRuleStart(pair); x < index.pairRuleStart(pair + 1); x++ ){
+					double s = children + scores[x];
+					int parent = base + parents[x];
+
+					if( s > inside[parent] ){
+						inside[parent] = s;
+						back[parent] = rules[x];
+						split[parent] = k;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load the vectorized kernel if the vector module is in the JVM, without linking any of it
+	 * otherwise (its constructor throws if the vectors are too short to help)
+	 */
+	private static ChartKernel findBest(){
+		if( ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty() ){
+			return SCALAR;
+		}
+
+		try{
+			return (ChartKernel)Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		}catch( ReflectiveOperationException | LinkageError e ){
+			return SCALAR;
+		}
+	}
+}
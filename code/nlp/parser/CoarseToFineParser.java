@@ -0,0 +1,301 @@
+package nlp.parser;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parser that prunes the chart of a CKYParser with passes over coarser versions of its
+ * grammar (Charniak et al. 2006, Petrov and Klein 2007).  The grammar is projected onto a stack
+ * of coarser and coarser grammars (see GrammarProjection), and a sentence is parsed:
+ *   - with the coarsest grammar first, keeping the entries whose posterior probability is at
+ *     least the threshold (see PosteriorChart)
+ *   - then with each finer grammar in turn, building only the entries whose clusters were kept
+ *     by the pass before, and again keeping the ones with a high enough posterior
+ *   - and last with the fine grammar, by a CKYParser that only builds the entries whose
+ *     clusters were kept by the finest coarse pass, and skips the spans where none were
+ * The coarse grammars have far fewer symbols (the intermediate symbols of the binarization alone
+ * are most of them), so the coarse passes are cheap, and most spans of a long sentence don't
+ * have any likely constituents at all.
+ *
+ * The pruning may miss the best parse.  If it leaves no parse at all, or a coarse grammar
+ * can't parse the sentence, the sentence is parsed again without pruning, so a sentence is
+ * only unparsable if CKYParser can't parse it either.  Such sentences are counted by
+ * getNumFallbacks().  Other pruning (beams, thresholds) can be set on getParser().
+ *
+ * A parser keeps its charts between sentences, so it is not thread safe.
+ *
+ */
+public class CoarseToFineParser {
+	private static final double DEFAULT_THRESHOLD = 1e-4; // the lowest posterior of the entries that are kept
+
+	private final CKYParser parser; // the parser for the fine grammar
+	private final GrammarProjection[] projections; // the fine grammar onto the first coarse grammar, that one onto the next, ...
+	private final PosteriorChart[] charts; // the charts of the coarse grammars, coarsest first
+	private final CKYParser.Constraint constraint; // the entries kept by the finest coarse chart
+	private double threshold = DEFAULT_THRESHOLD;
+
+	private final long[] passTime; // pass -> nanoseconds over all of the sentences, coarsest first and the fine pass last
+	private int numSentences = 0;
+	private int numFallbacks = 0;
+
+	/**
+	 * Create a new parser with the start symbol S
+	 *
+	 * @param grammar the binarized grammar
+	 * @param projections the projection of the grammar onto the first coarse grammar, the
+	 *   projection of that one onto the next, and so on
+	 */
+	public CoarseToFineParser(Grammar grammar, GrammarProjection... projections){
+		this(grammar, "S", projections);
+	}
+
+	/**
+	 * Create a new parser
+	 *
+	 * @param grammar the binarized grammar
+	 * @param startSymbol the label of the root of every parse, in all of the grammars
+	 * @param projections the projection of the grammar onto the first coarse grammar, the
+	 *   projection of that one onto the next, and so on
+	 */
+	public CoarseToFineParser(Grammar grammar, String startSymbol, GrammarProjection... projections){
+		this.parser = new CKYParser(grammar, startSymbol);
+		this.projections = projections.clone();
+		this.charts = new PosteriorChart[projections.length];
+		this.passTime = new long[projections.length + 1];
+
+		Grammar finer = grammar;
+
+		for( int k = 0; k < projections.length; k++ ){
+			if( projections[k].getFineGrammar() != finer ){
+				throw new RuntimeException("Projection " + k + " is not of the grammar before it");
+			}
+
+			finer = projections[k].getCoarseGrammar();
+		}
+
+		// charts[0] is the coarsest, restricted by nothing
+		for( int c = 0; c < charts.length; c++ ){
+			GrammarProjection projection = projections[charts.length - 1 - c];
+			charts[c] = new PosteriorChart(projection.getCoarseGrammar(), startSymbol);
+
+			if( c > 0 ){
+				charts[c].setCoarser(charts[c - 1], projections[charts.length - c]);
+			}
+		}
+
+		if( charts.length == 0 ){
+			constraint = null;
+		}else{
+			PosteriorChart finest = charts[charts.length - 1];
+			GrammarProjection projection = projections[0];
+
+			constraint = new CKYParser.Constraint(){
+				public boolean allowsSpan(int i, int j){
+					return finest.keepsSpan(i, j);
+				}
+
+				public boolean allows(int i, int j, int symbol){
+					return finest.keeps(i, j, projection.project(symbol));
+				}
+			};
+		}
+	}
+
+	/**
+	 * Set the threshold of the coarse passes
+	 *
+	 * @param threshold the lowest posterior probability of the entries that are kept, e.g. 1e-4;
+	 *   a higher threshold prunes more
+	 */
+	public void setThreshold(double threshold){
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Parse a sentence of space separated words
+	 *
+	 * @param sentence the sentence
+	 * @return the most probable parse that survived the pruning, or null if the sentence can't be parsed
+	 */
+	public ParseTree parse(String sentence){
+		return parse(Arrays.asList(sentence.trim().split("\\s+")));
+	}
+
+	/**
+	 * Parse a sentence
+	 *
+	 * @param words the words of the sentence
+	 * @return the most probable parse that survived the pruning, or null if the sentence can't be parsed
+	 */
+	public ParseTree parse(List<String> words){
+		numSentences++;
+		boolean pruned = true;
+
+		for( int c = 0; c < charts.length && pruned; c++ ){
+			long start = System.nanoTime();
+			pruned = charts[c].fill(words, threshold);
+			passTime[c] += System.nanoTime() - start;
+		}
+
+		long start = System.nanoTime();
+		ParseTree tree = null;
+
+		if( pruned ){
+			parser.setConstraint(constraint);
+			tree = parser.parse(words);
+			parser.setConstraint(null);
+		}
+
+		if( tree == null && charts.length > 0 ){
+			numFallbacks++;
+			tree = parser.parse(words);
+		}
+
+		passTime[charts.length] += System.nanoTime() - start;
+
+		return tree;
+	}
+
+	/**
+	 * The log probability of the last parse
+	 *
+	 * @return the log probability of the last parse, or negative infinity if it failed
+	 */
+	public double getBestScore(){
+		return parser.getBestScore();
+	}
+
+	/**
+	 * Get the parser of the fine grammar, e.g. for its counts of the chart entries
+	 *
+	 * @return the parser of the last pass
+	 */
+	public CKYParser getParser(){
+		return parser;
+	}
+
+	/**
+	 * Get the number of passes, including the fine one
+	 *
+	 * @return the number of coarse grammars plus one
+	 */
+	public int numPasses(){
+		return charts.length + 1;
+	}
+
+	/**
+	 * Get the time spent in one pass
+	 *
+	 * @param pass the pass, from 0 for the coarsest grammar to numPasses() - 1 for the fine one
+	 * @return the time in milliseconds over all of the sentences so far
+	 */
+	public long getPassMillis(int pass){
+		return passTime[pass] / 1000000;
+	}
+
+	/**
+	 * Get the number of entries a coarse pass built
+	 *
+	 * @param pass the pass, from 0 for the coarsest grammar
+	 * @return the number of entries over all of the sentences so far
+	 */
+	public long getPassEntries(int pass){
+		return charts[pass].getNumEntries();
+	}
+
+	/**
+	 * Get the number of sentences that were parsed again without pruning
+	 *
+	 * @return the number of sentences the pruned passes couldn't parse
+	 */
+	public int getNumFallbacks(){
+		return numFallbacks;
+	}
+
+	public String toString(){
+		StringBuilder buffer = new StringBuilder();
+		buffer.append(numSentences + " sentences, " + numFallbacks + " fallbacks");
+
+		for( int c = 0; c < charts.length; c++ ){
+			GrammarProjection projection = projections[charts.length - 1 - c];
+			buffer.append("\n  pass " + c + ": " + projection.getCoarseGrammar().numSymbols() + " symbols, "
+					+ charts[c].getNumEntries() + " entries, " + getPassMillis(c) + " ms");
+		}
+
+		buffer.append("\n  pass " + charts.length + ": " + parser.getStats() + ", " + getPassMillis(charts.length) + " ms");
+
+		return buffer.toString();
+	}
+
+	/**
+	 * Parse sentences exhaustively and then with one and two coarse passes (the intermediate
+	 * symbols collapsed, and then the tag families too), and report the time of each and how
+	 * many of the best parses the pruning missed
+	 *
+	 * @param args the binarized grammar, the sentences (one per line, space separated words) and
+	 *   optionally the threshold
+	 * @throws IOException if a file can't be read
+	 */
+	public static void main(String[] args) throws IOException{
+		if( args.length != 2 && args.length != 3 ){
+			System.err.println("usage: java nlp.parser.CoarseToFineParser <grammar> <sentences> [threshold]");
+			System.exit(1);
+		}
+
+		Grammar grammar = new Grammar(args[0]);
+		List<String> sentences = Files.readAllLines(Paths.get(args[1]));
+		GrammarProjection intermediates = GrammarProjection.collapseIntermediates(grammar, "S");
+		GrammarProjection families = GrammarProjection.collapseTagFamilies(intermediates.getCoarseGrammar(), "S");
+
+		CoarseToFineParser[] levels = {
+			new CoarseToFineParser(grammar),
+			new CoarseToFineParser(grammar, intermediates),
+			new CoarseToFineParser(grammar, intermediates, families)
+		};
+
+		// one round with throwaway parsers first, so that every level is timed with compiled code
+		CoarseToFineParser warmUp = new CoarseToFineParser(grammar, intermediates, families);
+
+		for( String sentence: sentences ){
+			warmUp.parse(sentence);
+		}
+
+		double[] best = new double[sentences.size()];
+		long exhaustive = 0;
+
+		for( int level = 0; level < levels.length; level++ ){
+			CoarseToFineParser parser = levels[level];
+
+			if( args.length == 3 ){
+				parser.setThreshold(Double.parseDouble(args[2]));
+			}
+
+			int errors = 0; // the sentences whose best parse was pruned
+			double loss = 0.0; // the log probability lost to the pruning
+			long start = System.nanoTime();
+
+			for( int s = 0; s < sentences.size(); s++ ){
+				parser.parse(sentences.get(s));
+
+				if( level == 0 ){
+					best[s] = parser.getBestScore();
+				}else if( parser.getBestScore() < best[s] - 1e-9 ){
+					errors++;
+					loss += best[s] - parser.getBestScore();
+				}
+			}
+
+			long time = System.nanoTime() - start;
+
+			if( level == 0 ){
+				exhaustive = time;
+			}
+
+			System.out.println(level + " coarse grammars: " + time / 1000000 + " ms, speedup " + String.format("%.2f", (double)exhaustive / time)
+					+ ", " + errors + " best parses missed, log probability lost " + String.format("%.3f", loss));
+			System.out.println(parser);
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package nlp.parser;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A parse tree kept in two int arrays instead of one object (and one list of children) per node,
+ * for keeping many trees in memory.  The nodes are numbered in preorder, so the root is node 0 and
+ * the first child of a nonterminal is the node right after it:
+ *   labels[node] is the symbol id of the label of the node, or ~id of the word for a terminal
+ *   next[node] is the next sibling of the node, or -1 for the last child
+ * The labels and words of all of the trees are interned in one shared SymbolTable.  Alternatively,
+ * each tree can keep its own words (see Builder(SymbolTable, boolean)), so that the table only holds
+ * the labels and doesn't grow with the vocabulary: then ~i is the ith word of the tree.
+ *
+ * A compact tree can be converted to and from a ParseTree, or read straight from its
+ * parenthesized form with a TreeReader and a Builder, which doesn't create a ParseTree at all.
+ * Every nonterminal must have at least one child.
+ *
+ */
+public class CompactTree {
+	private final SymbolTable symbols;
+	private final int[] labels; // node -> the label id, or ~(word id) for a terminal
+	private final int[] next; // node -> its next sibling, or -1
+	private final String[] words; // the words of the terminals in order, or null if they are in symbols
+
+	private CompactTree(SymbolTable symbols, int[] labels, int[] next, String[] words){
+		this.symbols = symbols;
+		this.labels = labels;
+		this.next = next;
+		this.words = words;
+	}
+
+	/**
+	 * Create a compact copy of a parse tree
+	 *
+	 * @param tree the parse tree
+	 * @param symbols the table the labels and words are interned in
+	 */
+	public CompactTree(ParseTree tree, SymbolTable symbols){
+		Builder builder = new Builder(symbols);
+		builder.add(tree);
+		CompactTree copy = builder.build();
+
+		this.symbols = symbols;
+		this.labels = copy.labels;
+		this.next = copy.next;
+		this.words = null;
+	}
+
+	/**
+	 * Read a compact tree from a single line, parenthesized version of a parse tree
+	 *
+	 * @param text the parenthesized tree
+	 * @param reader the reader to read it with
+	 * @param builder the builder to build it with
+	 * @return the tree
+	 */
+	public static CompactTree read(CharSequence text, TreeReader reader, Builder builder){
+		builder.clear();
+		reader.read(text, builder);
+		return builder.build();
+	}
+
+	/**
+	 * Get the number of nodes in the tree
+	 *
+	 * @return the number of nodes, terminals included
+	 */
+	public int size(){
+		return labels.length;
+	}
+
+	/**
+	 * Get the symbol table of the labels and words of the tree
+	 *
+	 * @return the symbol table
+	 */
+	public SymbolTable getSymbols(){
+		return symbols;
+	}
+
+	/**
+	 * Checks if a node is a terminal
+	 *
+	 * @param node the node
+	 * @return whether the node is a terminal (a word)
+	 */
+	public boolean isTerminal(int node){
+		return labels[node] < 0;
+	}
+
+	/**
+	 * Get the symbol id of the label of a node
+	 *
+	 * @param node the node
+	 * @return the symbol id of the label, or of the word if the node is a terminal (its position
+	 *   among the terminals if the tree keeps its own words)
+	 */
+	public int getLabelId(int node){
+		return labels[node] < 0 ? ~labels[node] : labels[node];
+	}
+
+	/**
+	 * Get the label of a node
+	 *
+	 * @param node the node
+	 * @return the constituent label, or the word if the node is a terminal
+	 */
+	public String getLabel(int node){
+		return labels[node] < 0 && words != null ? words[~labels[node]] : symbols.getSymbol(getLabelId(node));
+	}
+
+	/**
+	 * Get the first child of a node
+	 *
+	 * @param node the node
+	 * @return the first child, or -1 if the node is a terminal
+	 */
+	public int firstChild(int node){
+		return labels[node] < 0 ? -1 : node + 1;
+	}
+
+	/**
+	 * Get the next sibling of a node
+	 *
+	 * @param node the node
+	 * @return the next child of the parent of the node, or -1 if the node is the last one
+	 */
+	public int nextSibling(int node){
+		return next[node];
+	}
+
+	/**
+	 * Convert the tree to a ParseTree
+	 *
+	 * @return a parse tree with the same labels and words
+	 */
+	public ParseTree toParseTree(){
+		int[] open = new int[16]; // the nonterminals whose children are being added
+		ParseTree[] trees = new ParseTree[16];
+		int depth = 0;
+		ParseTree root = null;
+
+		for( int node = 0; node < labels.length; node++ ){
+			ParseTree tree = new ParseTree(getLabel(node), isTerminal(node));
+
+			if( depth == 0 ){
+				root = tree;
+			}else{
+				trees[depth-1].addChild(tree);
+			}
+
+			if( !isTerminal(node) ){
+				if( depth == open.length ){
+					open = Arrays.copyOf(open, 2 * depth);
+					trees = Arrays.copyOf(trees, 2 * depth);
+				}
+
+				open[depth] = node;
+				trees[depth] = tree;
+				depth++;
+			}else{
+				// a last child ends its parent, which may in turn be a last child
+				for( int closed = node; depth > 0 && next[closed] == -1; ){
+					closed = open[--depth];
+				}
+			}
+		}
+
+		return root;
+	}
+
+	/**
+	 * Append the parenthesized form of the tree, the same as ParseTree.toString(), to a buffer
+	 *
+	 * @param buffer the buffer
+	 */
+	public void appendTo(StringBuilder buffer){
+		int[] open = new int[16]; // the open nonterminals
+		int depth = 0;
+
+		for( int node = 0; node < labels.length; node++ ){
+			if( node > 0 ){
+				buffer.append(' ');
+			}
+
+			if( !isTerminal(node) ){
+				buffer.append('(').append(symbols.getSymbol(labels[node]));
+
+				if( depth == open.length ){
+					open = Arrays.copyOf(open, 2 * depth);
+				}
+
+				open[depth++] = node;
+			}else{
+				buffer.append(getLabel(node));
+
+				for( int closed = node; depth > 0 && next[closed] == -1; ){
+					closed = open[--depth];
+					buffer.append(')');
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the parenthesized form of the tree
+	 */
+	public String toString(){
+		StringBuilder buffer = new StringBuilder(16 * labels.length);
+		appendTo(buffer);
+		return buffer.toString();
+	}
+
+	/**
+	 * Builds compact trees, from the events of a TreeReader or from ParseTrees.  A builder keeps
+	 * its buffers from tree to tree, so reuse it.  It is not thread safe.
+	 */
+	public static class Builder implements TreeHandler {
+		private final SymbolTable symbols;
+		private final ArrayList<String> words; // the words of the tree being built, or null if they are interned
+		private int[] labels = new int[64];
+		private int[] next = new int[64];
+		private int[] open = new int[16]; // the open nonterminals
+		private int[] last = new int[16]; // the last child so far of each open nonterminal, or -1
+		private int depth = 0;
+		private int size = 0;
+
+		/**
+		 * Create a builder
+		 *
+		 * @param symbols the table the labels and words are interned in
+		 */
+		public Builder(SymbolTable symbols){
+			this(symbols, false);
+		}
+
+		/**
+		 * Create a builder
+		 *
+		 * @param symbols the table the labels (and words, unless keepWords) are interned in
+		 * @param keepWords whether each tree keeps its own words instead of interning them in symbols
+		 */
+		public Builder(SymbolTable symbols, boolean keepWords){
+			this.symbols = symbols;
+			this.words = keepWords ? new ArrayList<String>() : null;
+		}
+
+		/**
+		 * Get the tree that was built, and start the next one
+		 *
+		 * @return the tree
+		 */
+		public CompactTree build(){
+			if( depth != 0 || size == 0 ){
+				throw new RuntimeException("Incomplete tree");
+			}
+
+			CompactTree tree = new CompactTree(symbols, Arrays.copyOf(labels, size), Arrays.copyOf(next, size),
+					words == null ? null : words.toArray(new String[0]));
+			clear();
+
+			return tree;
+		}
+
+		/**
+		 * Drop the nodes of a tree that wasn't finished, e.g. because it was malformed
+		 */
+		public void clear(){
+			depth = 0;
+			size = 0;
+
+			if( words != null ){
+				words.clear();
+			}
+		}
+
+		public void openNode(CharSequence text, int start, int end){
+			int node = addNode(symbols.intern(text, start, end));
+
+			if( depth == open.length ){
+				open = Arrays.copyOf(open, 2 * depth);
+				last = Arrays.copyOf(last, 2 * depth);
+			}
+
+			open[depth] = node;
+			last[depth] = -1;
+			depth++;
+		}
+
+		public void leaf(CharSequence text, int start, int end){
+			if( words == null ){
+				addNode(~symbols.intern(text, start, end));
+			}else{
+				addNode(~words.size());
+				words.add(text.subSequence(start, end).toString());
+			}
+		}
+
+		public void closeNode(){
+			if( last[depth-1] == -1 ){
+				throw new RuntimeException("Nonterminal without children: " + symbols.getSymbol(labels[open[depth-1]]));
+			}
+
+			depth--;
+		}
+
+		/**
+		 * Add the nodes of a parse tree
+		 */
+		void add(ParseTree tree){
+			String label = tree.getLabel();
+
+			if( tree.isTerminal() ){
+				leaf(label, 0, label.length());
+			}else{
+				openNode(label, 0, label.length());
+
+				for( ParseTree child: tree.getChildren() ){
+					add(child);
+				}
+
+				closeNode();
+			}
+		}
+
+		private int addNode(int label){
+			if( size == labels.length ){
+				labels = Arrays.copyOf(labels, 2 * size);
+				next = Arrays.copyOf(next, 2 * size);
+			}
+
+			int node = size++;
+			labels[node] = label;
+			next[node] = -1;
+
+			if( depth > 0 ){
+				if( last[depth-1] != -1 ){
+					next[last[depth-1]] = node;
+				}
+
+				last[depth-1] = node;
+			}else if( node != 0 ){
+				throw new RuntimeException("More than one root");
+			}
+
+			return node;
+		}
+	}
+}
@@ -0,0 +1,787 @@
+package nlp.parser;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A binarized grammar in a compiled, binary file format that is memory-mapped when it is loaded.
+ * Loading a compiled grammar doesn't parse any text or create any objects per rule or per symbol:
+ * all of the accessors read directly from the mapped file.
+ *
+ * The file (big-endian, at most 2GB) consists of:
+ *   - a header: magic, version, #symbols, #words, #binary, #unary and #lexical rules
+ *   - the symbol and word tables: UTF-8 names with their offsets, and open addressing hash
+ *     tables to look up the id of a name
+ *   - for each kind of rule (binary, unary, lexical), the rules sorted by LHS with a CSR index
+ *     by LHS (the rules with LHS A are start[A] until start[A+1]) and a CSR index by the first
+ *     RHS symbol (or the word, for lexical rules)
+ *   - the log probabilities of the rules
+ *
+ * Use compile() to create a compiled grammar from a text grammar.  Grammar(String) loads a
+ * compiled grammar file too, as well as text grammars and the streaming format of
+ * BinaryGrammarSink, which is for writing a grammar rule by rule rather than for loading it fast.
+ *
+ */
+public class CompiledGrammar {
+	static final int MAGIC = 0x50434647; // "PCFG"
+	private static final int VERSION = 1;
+	private static final int HEADER_INTS = 7;
+
+	private final MappedByteBuffer buffer;
+	private int position; // used while loading: the offset of the next section
+
+	private final int numSymbols;
+	private final int numWords;
+	private final int numBinary;
+	private final int numUnary;
+	private final int numLexical;
+
+	private final Names symbols;
+	private final Names words;
+
+	private final IntBuffer binaryParent, binaryLeft, binaryRight, binaryByParent, binaryByLeftStart, binaryByLeft;
+	private final IntBuffer unaryParent, unaryChild, unaryByParent, unaryByChildStart, unaryByChild;
+	private final IntBuffer lexicalTag, lexicalWord, lexicalByTag, lexicalByWordStart, lexicalByWord;
+	private final DoubleBuffer binaryScore, unaryScore, lexicalScore;
+
+	/**
+	 * Load (memory-map) a compiled grammar
+	 *
+	 * @param filename the compiled grammar file
+	 * @throws IOException if the file can't be read or isn't a compiled grammar
+	 */
+	public CompiledGrammar(String filename) throws IOException{
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+
+		try{
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}finally{
+			channel.close();
+		}
+
+		if( buffer.capacity() < 4 * HEADER_INTS || buffer.getInt(0) != MAGIC ){
+			throw new IOException("Not a compiled grammar: " + filename);
+		}else if( buffer.getInt(4) != VERSION ){
+			throw new IOException("Unsupported compiled grammar version " + buffer.getInt(4) + ": " + filename);
+		}
+
+		numSymbols = buffer.getInt(8);
+		numWords = buffer.getInt(12);
+		numBinary = buffer.getInt(16);
+		numUnary = buffer.getInt(20);
+		numLexical = buffer.getInt(24);
+		position = 4 * HEADER_INTS;
+
+		symbols = readNames(numSymbols);
+		words = readNames(numWords);
+
+		binaryParent = ints(numBinary);
+		binaryLeft = ints(numBinary);
+		binaryRight = ints(numBinary);
+		binaryByParent = ints(numSymbols + 1);
+		binaryByLeftStart = ints(numSymbols + 1);
+		binaryByLeft = ints(numBinary);
+
+		unaryParent = ints(numUnary);
+		unaryChild = ints(numUnary);
+		unaryByParent = ints(numSymbols + 1);
+		unaryByChildStart = ints(numSymbols + 1);
+		unaryByChild = ints(numUnary);
+
+		lexicalTag = ints(numLexical);
+		lexicalWord = ints(numLexical);
+		lexicalByTag = ints(numSymbols + 1);
+		lexicalByWordStart = ints(numWords + 1);
+		lexicalByWord = ints(numLexical);
+
+		align();
+		binaryScore = doubles(numBinary);
+		unaryScore = doubles(numUnary);
+		lexicalScore = doubles(numLexical);
+	}
+
+	/**
+	 * Compile a text grammar (see Grammar(String)) into a compiled grammar file
+	 *
+	 * @param textFilename the text grammar file
+	 * @param compiledFilename the compiled grammar file to write
+	 * @throws IOException if a file can't be read or written
+	 */
+	public static void compile(String textFilename, String compiledFilename) throws IOException{
+		compile(new Grammar(textFilename), compiledFilename);
+	}
+
+	/**
+	 * Write a grammar as a compiled grammar file
+	 *
+	 * @param grammar the grammar
+	 * @param filename the compiled grammar file to write
+	 * @throws IOException if the file can't be written
+	 */
+	public static void compile(Grammar grammar, String filename) throws IOException{
+		int numSymbols = grammar.numSymbols();
+		int numWords = grammar.getWords().size();
+		int numBinary = grammar.numBinaryRules();
+		int numUnary = grammar.numUnaryRules();
+		int numLexical = grammar.numLexicalRules();
+
+		// the order of the rules of each kind, sorted by LHS
+		int[] binaryParents = new int[numBinary];
+		int[] unaryParents = new int[numUnary];
+		int[] lexicalTags = new int[numLexical];
+
+		for( int r = 0; r < numBinary; r++ ){
+			binaryParents[r] = grammar.getBinaryParent(r);
+		}
+
+		for( int r = 0; r < numUnary; r++ ){
+			unaryParents[r] = grammar.getUnaryParent(r);
+		}
+
+		for( int r = 0; r < numLexical; r++ ){
+			lexicalTags[r] = grammar.getLexicalTag(r);
+		}
+
+		int[] binaryOrder = sortBy(binaryParents, numSymbols);
+		int[] unaryOrder = sortBy(unaryParents, numSymbols);
+		int[] lexicalOrder = sortBy(lexicalTags, numSymbols);
+
+		// the rules of each kind in their new order
+		int[] binaryLeft = new int[numBinary];
+		int[] binaryRight = new int[numBinary];
+		int[] unaryChild = new int[numUnary];
+		int[] lexicalWord = new int[numLexical];
+
+		for( int r = 0; r < numBinary; r++ ){
+			binaryParents[r] = grammar.getBinaryParent(binaryOrder[r]);
+			binaryLeft[r] = grammar.getBinaryLeft(binaryOrder[r]);
+			binaryRight[r] = grammar.getBinaryRight(binaryOrder[r]);
+		}
+
+		for( int r = 0; r < numUnary; r++ ){
+			unaryParents[r] = grammar.getUnaryParent(unaryOrder[r]);
+			unaryChild[r] = grammar.getUnaryChild(unaryOrder[r]);
+		}
+
+		for( int r = 0; r < numLexical; r++ ){
+			lexicalTags[r] = grammar.getLexicalTag(lexicalOrder[r]);
+			lexicalWord[r] = grammar.getLexicalWord(lexicalOrder[r]);
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numSymbols);
+			out.writeInt(numWords);
+			out.writeInt(numBinary);
+			out.writeInt(numUnary);
+			out.writeInt(numLexical);
+
+			writeNames(out, grammar.getSymbols());
+			writeNames(out, grammar.getWords());
+
+			writeInts(out, binaryParents);
+			writeInts(out, binaryLeft);
+			writeInts(out, binaryRight);
+			writeInts(out, starts(binaryParents, numSymbols));
+			writeIndex(out, binaryLeft, numSymbols);
+
+			writeInts(out, unaryParents);
+			writeInts(out, unaryChild);
+			writeInts(out, starts(unaryParents, numSymbols));
+			writeIndex(out, unaryChild, numSymbols);
+
+			writeInts(out, lexicalTags);
+			writeInts(out, lexicalWord);
+			writeInts(out, starts(lexicalTags, numSymbols));
+			writeIndex(out, lexicalWord, numWords);
+
+			pad(out);
+
+			for( int r = 0; r < numBinary; r++ ){
+				out.writeDouble(grammar.getBinaryScore(binaryOrder[r]));
+			}
+
+			for( int r = 0; r < numUnary; r++ ){
+				out.writeDouble(grammar.getUnaryScore(unaryOrder[r]));
+			}
+
+			for( int r = 0; r < numLexical; r++ ){
+				out.writeDouble(grammar.getLexicalScore(lexicalOrder[r]));
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * The number of nonterminals
+	 *
+	 * @return the number of nonterminals
+	 */
+	public int numSymbols(){
+		return numSymbols;
+	}
+
+	/**
+	 * The number of words
+	 *
+	 * @return the number of words
+	 */
+	public int numWords(){
+		return numWords;
+	}
+
+	/**
+	 * Get the name of a nonterminal
+	 *
+	 * @param symbol the nonterminal id
+	 * @return the name of the nonterminal
+	 */
+	public String getSymbol(int symbol){
+		return symbols.get(symbol);
+	}
+
+	/**
+	 * Get the id of a nonterminal
+	 *
+	 * @param symbol the name of the nonterminal
+	 * @return the nonterminal id or -1 if it isn't in the grammar
+	 */
+	public int getSymbolId(String symbol){
+		return symbols.getId(symbol);
+	}
+
+	/**
+	 * Get a word
+	 *
+	 * @param word the word id
+	 * @return the word
+	 */
+	public String getWord(int word){
+		return words.get(word);
+	}
+
+	/**
+	 * Get the id of a word
+	 *
+	 * @param word the word
+	 * @return the word id or -1 if it isn't in the grammar
+	 */
+	public int getWordId(String word){
+		return words.getId(word);
+	}
+
+	/**
+	 * The number of binary rules
+	 *
+	 * @return the number of binary rules
+	 */
+	public int numBinaryRules(){
+		return numBinary;
+	}
+
+	/**
+	 * Get the LHS of a binary rule
+	 *
+	 * @param rule the binary rule id
+	 * @return the LHS nonterminal id
+	 */
+	public int getBinaryParent(int rule){
+		return binaryParent.get(rule);
+	}
+
+	/**
+	 * Get the first RHS symbol of a binary rule
+	 *
+	 * @param rule the binary rule id
+	 * @return the left child nonterminal id
+	 */
+	public int getBinaryLeft(int rule){
+		return binaryLeft.get(rule);
+	}
+
+	/**
+	 * Get the second RHS symbol of a binary rule
+	 *
+	 * @param rule the binary rule id
+	 * @return the right child nonterminal id
+	 */
+	public int getBinaryRight(int rule){
+		return binaryRight.get(rule);
+	}
+
+	/**
+	 * Get the log probability of a binary rule
+	 *
+	 * @param rule the binary rule id
+	 * @return the log probability
+	 */
+	public double getBinaryScore(int rule){
+		return binaryScore.get(rule);
+	}
+
+	/**
+	 * The binary rules with LHS symbol are the rule ids from binaryStart(symbol) until
+	 * binaryStart(symbol+1)
+	 *
+	 * @param symbol the LHS nonterminal id (or numSymbols())
+	 * @return the first binary rule id with the LHS
+	 */
+	public int binaryStart(int symbol){
+		return binaryByParent.get(symbol);
+	}
+
+	/**
+	 * The binary rules with left child symbol are binaryByLeft(i) for i from
+	 * binaryByLeftStart(symbol) until binaryByLeftStart(symbol+1)
+	 *
+	 * @param symbol the left child nonterminal id (or numSymbols())
+	 * @return the first index into binaryByLeft for the left child
+	 */
+	public int binaryByLeftStart(int symbol){
+		return binaryByLeftStart.get(symbol);
+	}
+
+	/**
+	 * Get a binary rule from the index by left child
+	 *
+	 * @param index the index, see binaryByLeftStart()
+	 * @return the binary rule id
+	 */
+	public int binaryByLeft(int index){
+		return binaryByLeft.get(index);
+	}
+
+	/**
+	 * The number of unary rules
+	 *
+	 * @return the number of unary rules
+	 */
+	public int numUnaryRules(){
+		return numUnary;
+	}
+
+	/**
+	 * Get the LHS of a unary rule
+	 *
+	 * @param rule the unary rule id
+	 * @return the LHS nonterminal id
+	 */
+	public int getUnaryParent(int rule){
+		return unaryParent.get(rule);
+	}
+
+	/**
+	 * Get the RHS symbol of a unary rule
+	 *
+	 * @param rule the unary rule id
+	 * @return the child nonterminal id
+	 */
+	public int getUnaryChild(int rule){
+		return unaryChild.get(rule);
+	}
+
+	/**
+	 * Get the log probability of a unary rule
+	 *
+	 * @param rule the unary rule id
+	 * @return the log probability
+	 */
+	public double getUnaryScore(int rule){
+		return unaryScore.get(rule);
+	}
+
+	/**
+	 * The unary rules with LHS symbol are the rule ids from unaryStart(symbol) until
+	 * unaryStart(symbol+1)
+	 *
+	 * @param symbol the LHS nonterminal id (or numSymbols())
+	 * @return the first unary rule id with the LHS
+	 */
+	public int unaryStart(int symbol){
+		return unaryByParent.get(symbol);
+	}
+
+	/**
+	 * The unary rules with child symbol are unaryByChild(i) for i from unaryByChildStart(symbol)
+	 * until unaryByChildStart(symbol+1)
+	 *
+	 * @param symbol the child nonterminal id (or numSymbols())
+	 * @return the first index into unaryByChild for the child
+	 */
+	public int unaryByChildStart(int symbol){
+		return unaryByChildStart.get(symbol);
+	}
+
+	/**
+	 * Get a unary rule from the index by child
+	 *
+	 * @param index the index, see unaryByChildStart()
+	 * @return the unary rule id
+	 */
+	public int unaryByChild(int index){
+		return unaryByChild.get(index);
+	}
+
+	/**
+	 * The number of lexical rules
+	 *
+	 * @return the number of lexical rules
+	 */
+	public int numLexicalRules(){
+		return numLexical;
+	}
+
+	/**
+	 * Get the part of speech (LHS) of a lexical rule
+	 *
+	 * @param rule the lexical rule id
+	 * @return the part of speech nonterminal id
+	 */
+	public int getLexicalTag(int rule){
+		return lexicalTag.get(rule);
+	}
+
+	/**
+	 * Get the word of a lexical rule
+	 *
+	 * @param rule the lexical rule id
+	 * @return the word id
+	 */
+	public int getLexicalWord(int rule){
+		return lexicalWord.get(rule);
+	}
+
+	/**
+	 * Get the log probability of a lexical rule
+	 *
+	 * @param rule the lexical rule id
+	 * @return the log probability
+	 */
+	public double getLexicalScore(int rule){
+		return lexicalScore.get(rule);
+	}
+
+	/**
+	 * The lexical rules with part of speech symbol are the rule ids from lexicalStart(symbol) until
+	 * lexicalStart(symbol+1)
+	 *
+	 * @param symbol the part of speech nonterminal id (or numSymbols())
+	 * @return the first lexical rule id with the part of speech
+	 */
+	public int lexicalStart(int symbol){
+		return lexicalByTag.get(symbol);
+	}
+
+	/**
+	 * The lexical rules for word are lexicalByWord(i) for i from lexicalByWordStart(word) until
+	 * lexicalByWordStart(word+1)
+	 *
+	 * @param word the word id (or numWords())
+	 * @return the first index into lexicalByWord for the word
+	 */
+	public int lexicalByWordStart(int word){
+		return lexicalByWordStart.get(word);
+	}
+
+	/**
+	 * Get a lexical rule from the index by word
+	 *
+	 * @param index the index, see lexicalByWordStart()
+	 * @return the lexical rule id
+	 */
+	public int lexicalByWord(int index){
+		return lexicalByWord.get(index);
+	}
+
+	// bulk copies of the rule arrays and the CSR indexes, for Grammar and GrammarIndex
+
+	int[] binaryParents(){
+		return toArray(binaryParent);
+	}
+
+	int[] binaryLefts(){
+		return toArray(binaryLeft);
+	}
+
+	int[] binaryRights(){
+		return toArray(binaryRight);
+	}
+
+	double[] binaryScores(){
+		return toArray(binaryScore);
+	}
+
+	int[] binaryByLeftStarts(){
+		return toArray(binaryByLeftStart);
+	}
+
+	int[] unaryParents(){
+		return toArray(unaryParent);
+	}
+
+	int[] unaryChildren(){
+		return toArray(unaryChild);
+	}
+
+	double[] unaryScores(){
+		return toArray(unaryScore);
+	}
+
+	int[] unaryByChildStarts(){
+		return toArray(unaryByChildStart);
+	}
+
+	int[] unaryByChildren(){
+		return toArray(unaryByChild);
+	}
+
+	int[] lexicalTags(){
+		return toArray(lexicalTag);
+	}
+
+	int[] lexicalWords(){
+		return toArray(lexicalWord);
+	}
+
+	double[] lexicalScores(){
+		return toArray(lexicalScore);
+	}
+
+	int[] lexicalByWordStarts(){
+		return toArray(lexicalByWordStart);
+	}
+
+	int[] lexicalByWords(){
+		return toArray(lexicalByWord);
+	}
+
+	private static int[] toArray(IntBuffer view){
+		int[] values = new int[view.limit()];
+		view.get(0, values);
+		return values;
+	}
+
+	private static double[] toArray(DoubleBuffer view){
+		double[] values = new double[view.limit()];
+		view.get(0, values);
+		return values;
+	}
+
+	/**
+	 * A view of the next count ints of the file
+	 */
+	private IntBuffer ints(int count){
+		IntBuffer view = slice(4 * count).asIntBuffer();
+		position += 4 * count;
+		return view;
+	}
+
+	/**
+	 * A view of the next count doubles of the file
+	 */
+	private DoubleBuffer doubles(int count){
+		DoubleBuffer view = slice(8 * count).asDoubleBuffer();
+		position += 8 * count;
+		return view;
+	}
+
+	private ByteBuffer slice(int bytes){
+		if( position + bytes > buffer.capacity() ){
+			throw new RuntimeException("Truncated compiled grammar at offset " + position);
+		}
+
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		view.limit(position + bytes);
+		return view.slice();
+	}
+
+	private void align(){
+		position = (position + 7) & ~7;
+	}
+
+	private Names readNames(int count){
+		IntBuffer offsets = ints(count + 1);
+		int numBytes = offsets.get(count);
+		ByteBuffer bytes = slice(numBytes);
+		position += numBytes;
+		align();
+		IntBuffer slots = ints(slotCount(count));
+
+		return new Names(offsets, bytes, slots);
+	}
+
+	/**
+	 * Write a symbol table as the offsets of the names, the UTF-8 bytes of the names (padded to a
+	 * multiple of 8 bytes) and the hash table of the names
+	 */
+	private static void writeNames(DataOutputStream out, SymbolTable table) throws IOException{
+		int count = table.size();
+		byte[][] names = new byte[count][];
+		int offset = 0;
+
+		out.writeInt(0);
+
+		for( int i = 0; i < count; i++ ){
+			names[i] = table.getSymbol(i).getBytes(StandardCharsets.UTF_8);
+			offset += names[i].length;
+			out.writeInt(offset);
+		}
+
+		for( byte[] name: names ){
+			out.write(name);
+		}
+
+		pad(out);
+
+		int[] slots = new int[slotCount(count)];
+		Arrays.fill(slots, -1);
+
+		for( int i = 0; i < count; i++ ){
+			int slot = hash(table.getSymbol(i)) & (slots.length - 1);
+
+			while( slots[slot] != -1 ){
+				slot = (slot + 1) & (slots.length - 1);
+			}
+
+			slots[slot] = i;
+		}
+
+		writeInts(out, slots);
+	}
+
+	/**
+	 * The hash table size for count names: a power of two that is at least twice count
+	 */
+	private static int slotCount(int count){
+		return Integer.highestOneBit(Math.max(count, 1)) << 2;
+	}
+
+	private static int hash(String name){
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException{
+		for( int v: values ){
+			out.writeInt(v);
+		}
+	}
+
+	private static void pad(DataOutputStream out) throws IOException{
+		while( out.size() % 8 != 0 ){
+			out.writeByte(0);
+		}
+	}
+
+	/**
+	 * Given the key of every rule, find an order of the rules that is sorted by key (stable)
+	 */
+	private static int[] sortBy(int[] keys, int numKeys){
+		int[] starts = starts(keys, numKeys);
+		int[] order = new int[keys.length];
+
+		for( int r = 0; r < keys.length; r++ ){
+			order[starts[keys[r]]++] = r;
+		}
+
+		return order;
+	}
+
+	/**
+	 * Given the key of every rule, the CSR start offsets of each key (numKeys + 1 of them)
+	 */
+	private static int[] starts(int[] keys, int numKeys){
+		int[] starts = new int[numKeys + 1];
+
+		for( int key: keys ){
+			starts[key + 1]++;
+		}
+
+		for( int k = 0; k < numKeys; k++ ){
+			starts[k + 1] += starts[k];
+		}
+
+		return starts;
+	}
+
+	/**
+	 * Write a CSR index of the rules by key: the start offsets followed by the rule ids
+	 */
+	private static void writeIndex(DataOutputStream out, int[] keys, int numKeys) throws IOException{
+		writeInts(out, starts(keys, numKeys));
+		writeInts(out, sortBy(keys, numKeys));
+	}
+
+	/**
+	 * A mapped symbol table
+	 */
+	private static class Names {
+		private final IntBuffer offsets;
+		private final ByteBuffer bytes;
+		private final IntBuffer slots;
+
+		private Names(IntBuffer offsets, ByteBuffer bytes, IntBuffer slots){
+			this.offsets = offsets;
+			this.bytes = bytes;
+			this.slots = slots;
+		}
+
+		private String get(int id){
+			int start = offsets.get(id);
+			byte[] name = new byte[offsets.get(id + 1) - start];
+
+			for( int i = 0; i < name.length; i++ ){
+				name[i] = bytes.get(start + i);
+			}
+
+			return new String(name, StandardCharsets.UTF_8);
+		}
+
+		private int getId(String name){
+			byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+			int mask = slots.limit() - 1;
+			int slot = hash(name) & mask;
+
+			while( true ){
+				int id = slots.get(slot);
+
+				if( id == -1 || matches(id, utf8) ){
+					return id;
+				}
+
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		private boolean matches(int id, byte[] utf8){
+			int start = offsets.get(id);
+
+			if( offsets.get(id + 1) - start != utf8.length ){
+				return false;
+			}
+
+			for( int i = 0; i < utf8.length; i++ ){
+				if( bytes.get(start + i) != utf8[i] ){
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+}
@@ -1,44 +1,340 @@
 package nlp.parser;
 
 import java.io.*;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 
 public class ConstructPCFG {
-    protected HashMap<String, Double> counts; //a hash map with counts of each string
-    protected HashMap<String, HashMap<GrammarRule, Double>> rules; //a hash map with the strings as keys and rules
-    // and their counts as values
+    protected SymbolTable symbols; //the ids of the labels and words
+    protected RuleTable table; //the rules as symbol ids, with their counts and weights and the counts of each label
 
+    private int[] childIds = new int[16]; //reused to hold the ids of the children labels in updateCounts
+    private int[] sorted = new int[0]; //the rule ids in sorted order, kept until rules are added
+
+    private static final int CHUNK_SIZE = 1000; //the number of trees each worker counts at a time in parallel mode
+
+    private static final int SNAPSHOT_MAGIC = 0x50434643; //"PCFC", the start of a count snapshot
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Constructs an empty PCFG without any counts, e.g. to collect the counts of one chunk of a treebank or to add
+     * treebanks to one at a time with addTreebank.
+     */
+    public ConstructPCFG() {
+        symbols = new SymbolTable();
+        table = new RuleTable();
+    }
 
     /**
      * Given a file name, the method constructs a PCFG by reading through a file and running several functions on it.
+     * The treebank can also be a directory or a glob of many files, which may be gzipped (see TreebankSource).
      *
      * @param filename the file name of the file we are working with
      *
      */
     public ConstructPCFG(String filename) {
         // initialize counts & rules
-        counts = new HashMap<>();
-        rules = new HashMap<>();
+        this();
 
-        // create bufferedReader, go through every line, and update the counts
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(filename));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                ParseTree pt = new ParseTree(line);
-                updateCounts(pt);
-            }
+            addTreebank(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Given a file name and a number of threads, the method constructs the same PCFG as ConstructPCFG(filename), but
+     * splits the file into chunks of trees that are parsed and counted on numThreads workers. Every chunk gets its
+     * own counts, and the chunk counts are merged in file order before the weights are updated, so the result does
+     * not depend on how the work was scheduled.
+     *
+     * @param filename the file name of the file we are working with
+     * @param numThreads the number of worker threads to use
+     *
+     */
+    public ConstructPCFG(String filename, int numThreads) {
+        this();
 
-            //update the weights and close the reader
-            updateWeights();
-            reader.close();
+        try {
+            addTreebank(filename, numThreads);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Given a treebank (a file, directory or glob), the method adds the counts of its trees to the counts of this
+     * PCFG and updates the weights. Only the weights of the labels that appear in the new trees are recomputed, so
+     * new data can be folded into a big grammar without reading the old treebank again. The trees are counted on
+     * their own first, so if a tree can't be read this PCFG is left as it was.
+     *
+     * @param treebank the treebank to add
+     * @throws IOException if the treebank can't be read
+     */
+    public void addTreebank(String treebank) throws IOException {
+        ConstructPCFG counts = new ConstructPCFG();
+        TreeReader treeReader = new TreeReader();
+        RuleCounter counter = new RuleCounter(counts.symbols, counts.table);
+
+        //counts the rules straight from each line, without building a ParseTree
+        new TreebankSource(treebank).forEachLine(line -> treeReader.read(line, counter));
+
+        //add the counts and update the weights
+        mergeCounts(counts);
+    }
+
+    /**
+     * Given a treebank and a number of threads, the method does the same as addTreebank(treebank), but counts chunks
+     * of the trees on numThreads workers and merges the chunk counts in file order. As with addTreebank(treebank), this
+     * PCFG is left as it was if a tree can't be read.
+     *
+     * @param treebank the treebank to add
+     * @param numThreads the number of worker threads to use
+     * @throws IOException if the treebank can't be read
+     */
+    public void addTreebank(String treebank, int numThreads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        ConstructPCFG counts = new ConstructPCFG();
+
+        // chunks that have been handed to the workers but not merged yet, in file order
+        ArrayDeque<Future<ConstructPCFG>> pending = new ArrayDeque<>();
+
+        try {
+            ArrayList<String> chunk = new ArrayList<>(CHUNK_SIZE);
+            ArrayList<String> locations = new ArrayList<>(CHUNK_SIZE);
+            new TreebankSource(treebank).forEachLine((line, file, lineNumber) -> {
+                //the line is only valid during this call, so keep a copy, and where it came from for errors
+                chunk.add(line.toString());
+                locations.add(file + ":" + lineNumber);
+
+                if (chunk.size() == CHUNK_SIZE) {
+                    pending.add(pool.submit(countChunk(new ArrayList<>(chunk), new ArrayList<>(locations))));
+                    chunk.clear();
+                    locations.clear();
+
+                    //merge the oldest chunk once enough work is queued, which keeps memory bounded
+                    if (pending.size() > 2 * numThreads) {
+                        counts.mergeOldest(pending);
+                    }
+                }
+            });
+
+            if (!chunk.isEmpty()) {
+                pending.add(pool.submit(countChunk(chunk, locations)));
+            }
+
+            //merge the rest of the chunks, then add all of them to this PCFG and update the weights
+            while (!pending.isEmpty()) {
+                counts.mergeOldest(pending);
+            }
+            mergeCounts(counts);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Given the chunks that are being counted, the method waits for the oldest one and merges its counts.
+     *
+     * @param pending the chunks that are being counted, in file order
+     */
+    private void mergeOldest(ArrayDeque<Future<ConstructPCFG>> pending) {
+        try {
+            addCounts(pending.remove().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while counting", e);
+        } catch (ExecutionException e) {
+            //the chunk already prefixed its message with the file:line of the line that failed, which may be far
+            //behind the line being read, so forEachLine must not prefix it again
+            if (e.getCause() instanceof TreebankSource.TreebankException) {
+                throw new TreebankSource.TreebankException(e.getCause().getMessage(), e.getCause());
+            }
+            throw new RuntimeException("Failed to count a chunk", e.getCause());
+        }
+    }
+
+    /**
+     * Given a chunk of lines of a treebank, the method creates a task that counts the rules of these trees
+     * in a new, empty PCFG. A line that can't be read fails the task with its file and line number.
+     *
+     * @param lines the lines of the chunk
+     * @param locations the file:line of each line
+     * @return the task that returns the counts of the chunk
+     */
+    private static Callable<ConstructPCFG> countChunk(ArrayList<String> lines, ArrayList<String> locations) {
+        return () -> {
+            ConstructPCFG shard = new ConstructPCFG();
+            TreeReader treeReader = new TreeReader();
+            RuleCounter counter = new RuleCounter(shard.symbols, shard.table);
+            for (int i = 0; i < lines.size(); i++) {
+                try {
+                    treeReader.read(lines.get(i), counter);
+                } catch (RuntimeException e) {
+                    throw new TreebankSource.TreebankException(locations.get(i) + ": " + e.getMessage(), e);
+                }
+            }
+            return shard;
+        };
+    }
+
+    /**
+     * Given another PCFG, the method adds its counts to the counts of this PCFG and updates the weights of the labels
+     * whose counts changed, as mergeCounts does for a snapshot. The weights of the other PCFG are not used.
+     *
+     * @param other the PCFG whose counts are added
+     *
+     */
+    public void mergeCounts(ConstructPCFG other) {
+        addCounts(other);
+        updateWeights();
+    }
+
+    /**
+     * Given another PCFG, the method adds its counts to the counts of this PCFG without updating the weights, e.g. to
+     * gather the counts of many chunks before the weights are updated once.
+     *
+     * @param other the PCFG whose counts are added
+     *
+     */
+    void addCounts(ConstructPCFG other) {
+        //translates the symbol ids of the other PCFG into ids of this PCFG
+        int[] ids = new int[other.symbols.size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = symbols.intern(other.symbols.getSymbol(id));
+        }
+
+        int[] rhs = new int[16];
+        for (int rule = 0; rule < other.table.size(); rule++) {
+            int rhsSize = other.table.numRhs(rule);
+            if (rhsSize > rhs.length) {
+                rhs = new int[Math.max(rhsSize, 2 * rhs.length)];
+            }
+            for (int i = 0; i < rhsSize; i++) {
+                rhs[i] = ids[other.table.getRhs(rule, i)];
+            }
+
+            table.add(ids[other.table.getLhs(rule)], rhs, rhsSize, other.table.isLexical(rule), other.table.getCount(rule));
+        }
+    }
+
+    /**
+     * Given a file name, the method saves the counts of this PCFG as a snapshot that can be loaded with loadCounts or
+     * merged into another PCFG with mergeCounts, so that a grammar can be updated with new trees later without reading
+     * the old treebank again. The snapshot is gzipped if the file name ends in .gz.
+     *
+     * The snapshot is a DataOutputStream of: the magic number and version, the number of symbols and the symbols, and
+     * the number of rules and for each rule its LHS id, whether it is lexical, the number of RHS ids, the RHS ids and
+     * its count.
+     *
+     * @param filename the file to write the snapshot to
+     * @throws IOException if the snapshot can't be written
+     */
+    public void saveCounts(String filename) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(openSnapshot(filename)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+
+            out.writeInt(symbols.size());
+            for (int id = 0; id < symbols.size(); id++) {
+                out.writeUTF(symbols.getSymbol(id));
+            }
+
+            out.writeInt(table.size());
+            for (int rule = 0; rule < table.size(); rule++) {
+                out.writeInt(table.getLhs(rule));
+                out.writeBoolean(table.isLexical(rule));
+                out.writeInt(table.numRhs(rule));
+                for (int i = 0; i < table.numRhs(rule); i++) {
+                    out.writeInt(table.getRhs(rule, i));
+                }
+                out.writeLong(table.getCount(rule));
+            }
+        }
+    }
+
+    /**
+     * Given the file name of a snapshot written by saveCounts, the method adds its counts to the counts of this PCFG
+     * and updates the weights of the labels whose counts changed. The snapshot is read in full first, so if it can't be
+     * read this PCFG is left as it was.
+     *
+     * @param filename the snapshot
+     * @throws IOException if the snapshot can't be read or isn't a snapshot
+     */
+    public void mergeCounts(String filename) throws IOException {
+        ConstructPCFG counts = new ConstructPCFG();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(readSnapshot(filename)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a count snapshot: " + filename);
+            }
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported count snapshot version " + version + ": " + filename);
+            }
+
+            //translates the symbol ids of the snapshot into ids of the counts
+            int[] ids = new int[in.readInt()];
+            for (int id = 0; id < ids.length; id++) {
+                ids[id] = counts.symbols.intern(in.readUTF());
+            }
+
+            int numRules = in.readInt();
+            int[] rhs = new int[16];
+            for (int rule = 0; rule < numRules; rule++) {
+                int lhs = ids[in.readInt()];
+                boolean lexical = in.readBoolean();
+                int rhsSize = in.readInt();
+                if (rhsSize > rhs.length) {
+                    rhs = new int[Math.max(rhsSize, 2 * rhs.length)];
+                }
+                for (int i = 0; i < rhsSize; i++) {
+                    rhs[i] = ids[in.readInt()];
+                }
+                counts.table.add(lhs, rhs, rhsSize, lexical, in.readLong());
+            }
+        } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt count snapshot: " + filename, e);
+        }
+
+        mergeCounts(counts);
+    }
+
+    /**
+     * Given the file name of a snapshot written by saveCounts, the method constructs the PCFG with those counts.
+     *
+     * @param filename the snapshot
+     * @return the PCFG, with its weights updated
+     * @throws IOException if the snapshot can't be read or isn't a snapshot
+     */
+    public static ConstructPCFG loadCounts(String filename) throws IOException {
+        ConstructPCFG pcfg = new ConstructPCFG();
+        pcfg.mergeCounts(filename);
+        return pcfg;
+    }
+
+    private static OutputStream openSnapshot(String filename) throws IOException {
+        OutputStream out = new FileOutputStream(filename);
+        return filename.endsWith(".gz") ? new GZIPOutputStream(out) : out;
+    }
+
+    private static InputStream readSnapshot(String filename) throws IOException {
+        InputStream in = new FileInputStream(filename);
+        return filename.endsWith(".gz") ? new GZIPInputStream(in) : in;
+    }
+
     /**
      * Given a ParseTree,the method updates the counts of each string and rules following it
      *
@@ -48,24 +344,19 @@ public class ConstructPCFG {
     public void updateCounts(ParseTree pt) {
         if (!pt.isTerminal()){
 
-            //gets the label of the tree and updates the count/creates a new hashmap
-            String label = pt.getLabel();
-            counts.put(label, counts.getOrDefault(label, 0.0) + 1.0);
-
-            GrammarRule rule;
-
-            // if there is only one child, and the child is terminal, set the correct isLexical value
-            if (pt.getChild(0).isTerminal()){
-                rule = new GrammarRule(label, pt.getChildrenLabels(), true);
-            } else {
-                rule = new GrammarRule(label, pt.getChildrenLabels(), false);
+            //gets the ids of the label of the tree and of the labels of its children
+            int label = symbols.intern(pt.getLabel());
+            int numChildren = pt.numChildren();
+            if (numChildren > childIds.length) {
+                childIds = new int[Math.max(numChildren, 2 * childIds.length)];
             }
-
-            //adds new rule to rules
-            if (!rules.containsKey(label)) {
-                rules.put(label, new HashMap<>());
+            for (int i = 0; i < numChildren; i++) {
+                childIds[i] = symbols.intern(pt.getChild(i).getLabel());
             }
-            rules.get(label).put(rule, rules.get(label).getOrDefault(rule, 0.0) + 1.0);
+
+            // if there is only one child, and the child is terminal, it is a lexical rule. adding the rule
+            // also updates the count of the label
+            table.add(label, childIds, numChildren, pt.getChild(0).isTerminal(), 1);
 
             //recursively goes over every child and updates the rest of the counts
             for (ParseTree child : pt.getChildren()) {
@@ -76,29 +367,11 @@ public class ConstructPCFG {
 
 
     /**
-     * Updates the weights of each GrammarRule in the tree
+     * Updates the weights of each rule by taking its count and dividing it by the count of its label. Only the rules
+     * of the labels whose counts changed since the last update are reweighted.
      */
     public void updateWeights() {
-
-        //goes over every String in the rules
-        for (String key : rules.keySet()) {
-
-            //creates the hashmaps
-            HashMap<GrammarRule, Double> temp = rules.get(key);
-            HashMap<GrammarRule, Double> updatedRules = new HashMap<>();
-
-            //updates the weight by taking the count of the specific string and dividing it by the total
-            //number of counts of strings following that string
-            for (GrammarRule rule : temp.keySet()){
-                double numerator = temp.get(rule);
-                double denominator = counts.get(key);
-                double weight = numerator / denominator;
-                GrammarRule updatedRule = new GrammarRule(rule.getLhs(), rule.getRhs(), rule.isLexical());
-                updatedRule.setWeight(weight);
-                updatedRules.put(updatedRule, numerator);
-            }
-            rules.put(key, updatedRules);
-        }
+        table.updateWeights();
     }
 
     /**
@@ -107,168 +380,235 @@ public class ConstructPCFG {
      * with probability 1.0., and continues this process until the rule is binary) and generates file accordingly.
      */
     public void binarizePCFG() {
-        try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter("short.binary.pcfg"));
-
-            //initializes the prefix and total count
-            String prefix = "X";
-            int totalCount = 1;
-
-            //goes over all String representations of rules
-            for (String key : rules.keySet()) {
-                for (GrammarRule rule : rules.get(key).keySet()) {
-
-                    //creates a variabloe for the left and right hand sides
-                    String lhs = rule.getLhs();
-                    ArrayList<String> rhs = rule.getRhs();
-
-                    //enters this section if needs to be binarized
-                    if (rhs.size() > 2) {
-
-                        String prev = rhs.get(0);
-
-                        // Binarize rule and write the new rule to the file
-                        for (int i = 1; i < rhs.size() - 1; i++) {
-                            String new_lhs = prefix + totalCount;
-                            ArrayList<String> new_rhs = new ArrayList<>();
-                            new_rhs.add(prev);
-                            new_rhs.add(rhs.get(i));
-                            GrammarRule g = new GrammarRule(new_lhs, new_rhs, 1.0);
-                            writer.write(g.toString());
-                            writer.newLine();
-                            totalCount++;
-                            prev = new_lhs;
-                        }
-
-                        //writes the rule to the file for the last case
-                        ArrayList<String> new_rhs = new ArrayList<>();
-                        new_rhs.add(prev);
-                        new_rhs.add(rhs.get(rhs.size() - 1));
-                        GrammarRule g2 = new GrammarRule(lhs, new_rhs, rule.getWeight());
-                        writer.write(g2.toString());
-                        writer.newLine();
-
-                    // write rule to file if already binary
-                    } else {
-                        writer.write(rule.toString());
-                        writer.newLine();
-                    }
-
-                }
-            }
-            writer.close();
+        try (GrammarSink sink = GrammarSink.open(Paths.get("short.binary.pcfg"))) {
+            binarizePCFG(sink);
         } catch (IOException e) {
             e.printStackTrace();
         }
-
     }
 
     /**
-     * Binarizes the PCFG similarly to binarizePCFG(), but without duplicate intermediary rules with the
-     * same right hand side.
+     * Given a grammar sink, the method binarizes the PCFG like binarizePCFG() and writes the rules to the sink, going
+     * through the rules in sorted order.
+     *
+     * @param sink the sink for the binarized rules, which is not closed
+     * @throws IOException if the rules can't be written
      */
-    public void betterBinarizePCFG() {
-        try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter("simple.binary.shared.pcfg"));
-
-            //initializes the prefix and total count
-            String prefix = "X";
-            int totalCount = 1;
-
-            //initialize memory
-            HashMap<ArrayList<String>, String> memory = new HashMap<>();
-
-            //goes over all String representations of rules
-            for (String key : rules.keySet()) {
-                for (GrammarRule rule : rules.get(key).keySet()) {
-
-                    //creates a variabloe for the left and right hand sides
-                    String lhs = rule.getLhs();
-                    ArrayList<String> rhs = rule.getRhs();
-
-                    //enters this section if needs to be binarized
-                    if (rhs.size() > 2) {
-
-                        String prev = rhs.get(0);
-
-                        // Binarize rule and write the new rule to the file
-                        for (int i = 1; i < rhs.size() - 1; i++) {
-                            String new_lhs = prefix + totalCount;
-                            ArrayList<String> new_rhs = new ArrayList<>();
-                            new_rhs.add(prev);
-                            new_rhs.add(rhs.get(i));
-
-                            // If already seen the rhs point to old rule instead of generating a new rule
-                            if (memory.containsKey(new_rhs)) {
-                                prev = memory.get(new_rhs);
-                            } else {
-                                memory.put(new_rhs, new_lhs);
-                                GrammarRule g = new GrammarRule(new_lhs, new_rhs, 1.0);
-                                writer.write(g.toString());
-                                writer.newLine();
-                                totalCount++;
-                                prev = new_lhs;
-                            }
-                        }
-
-                        //writes the rule to the file for the last case
-                        ArrayList<String> new_rhs = new ArrayList<>();
-                        new_rhs.add(prev);
-                        new_rhs.add(rhs.get(rhs.size() - 1));
-                        GrammarRule g2 = new GrammarRule(lhs, new_rhs, rule.getWeight());
-                        writer.write(g2.toString());
-                        writer.newLine();
-
-                    // write rule to file if already binary
-                    } else {
-                        writer.write(rule.toString());
-                        writer.newLine();
-                    }
+    public void binarizePCFG(GrammarSink sink) throws IOException {
+        //the symbols of the binarized rules: the symbols of this PCFG (with the same ids) and the new @X symbols
+        SymbolTable names = new SymbolTable();
+        for (int id = 0; id < symbols.size(); id++) {
+            names.intern(symbols.getSymbol(id));
+        }
+
+        //initializes the prefix and total count
+        String prefix = Grammar.INTERMEDIATE_PREFIX;
+        int totalCount = 1;
+        int[] rhs = new int[16];
 
+        //goes over all rules
+        for (int rule : sortedRules()) {
+            int rhsSize = table.numRhs(rule);
+            if (rhsSize > rhs.length) {
+                rhs = new int[Math.max(rhsSize, 2 * rhs.length)];
+            }
+
+            //enters this section if needs to be binarized
+            if (rhsSize > 2) {
+
+                int prev = table.getRhs(rule, 0);
+
+                // Binarize rule and write the new rule to the sink
+                for (int i = 1; i < rhsSize - 1; i++) {
+                    int new_lhs = names.intern(prefix + totalCount);
+                    rhs[0] = prev;
+                    rhs[1] = table.getRhs(rule, i);
+                    sink.write(names, new_lhs, rhs, 2, false, 1.0);
+                    totalCount++;
+                    prev = new_lhs;
                 }
+
+                //writes the rule to the sink for the last case
+                rhs[0] = prev;
+                rhs[1] = table.getRhs(rule, rhsSize - 1);
+                sink.write(names, table.getLhs(rule), rhs, 2, false, table.getWeight(rule));
+
+            // write rule to sink if already binary
+            } else {
+                for (int i = 0; i < rhsSize; i++) {
+                    rhs[i] = table.getRhs(rule, i);
+                }
+                sink.write(names, table.getLhs(rule), rhs, rhsSize, table.isLexical(rule), table.getWeight(rule));
             }
-            writer.close();
+        }
+    }
+
+    /**
+     * Binarizes the PCFG similarly to binarizePCFG(), but without duplicate intermediary rules with the
+     * same right hand side: rules that start with the same symbols share the intermediary symbols for them
+     * (see Binarizer for other ways to share them).
+     */
+    public void betterBinarizePCFG() {
+        try (GrammarSink sink = GrammarSink.open(Paths.get("simple.binary.shared.pcfg"))) {
+            betterBinarizePCFG(sink);
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
+    /**
+     * Given a grammar sink, the method binarizes the PCFG like betterBinarizePCFG() and writes the rules to the sink.
+     *
+     * @param sink the sink for the binarized rules, which is not closed
+     * @throws IOException if the rules can't be written
+     */
+    public void betterBinarizePCFG(GrammarSink sink) throws IOException {
+        new Binarizer().binarize(this).writeRules(sink);
     }
 
     /**
      * Generates the file.
      */
     public void printProbs() {
+        try (GrammarSink sink = GrammarSink.open(Paths.get("short.binary.pcfg"))) {
+            writeRules(sink);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        //creates BufferedWriter
-        try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter("short.binary.pcfg"));
+    /**
+     * Given a grammar sink, the method writes every rule with its weight to the sink, in sorted order (see sortedRules).
+     *
+     * @param sink the sink for the rules, which is not closed
+     * @throws IOException if the rules can't be written
+     */
+    public void writeRules(GrammarSink sink) throws IOException {
+        int[] rhs = new int[16];
+
+        //goes over every rule and writes it to the sink
+        for (int rule : sortedRules()) {
+            int rhsSize = table.numRhs(rule);
+            if (rhsSize > rhs.length) {
+                rhs = new int[Math.max(rhsSize, 2 * rhs.length)];
+            }
+            for (int i = 0; i < rhsSize; i++) {
+                rhs[i] = table.getRhs(rule, i);
+            }
+            sink.write(symbols, table.getLhs(rule), rhs, rhsSize, table.isLexical(rule), table.getWeight(rule));
+        }
+    }
 
-            //goes over every rule and writes it to the new file
-            for (String key : rules.keySet()) {
-                for (GrammarRule rule : rules.get(key).keySet()) {
-                    writer.write(rule.toString());
-                    writer.newLine();
-                }
+    /**
+     * Gets the rule ids sorted by their label, then their right hand side and then whether they are lexical (comparing
+     * the symbols by name, not by id), which is the same order however the rules were counted. Adding counts doesn't
+     * change the order, so it is only sorted again after new rules are added.
+     *
+     * @return the sorted rule ids, which must not be modified
+     */
+    public int[] sortedRules() {
+        if (sorted.length == table.size()) {
+            return sorted;
+        }
+
+        //ranks the symbols by name once, so that sorting the rules only compares ints
+        Integer[] byName = new Integer[symbols.size()];
+        for (int id = 0; id < byName.length; id++) {
+            byName[id] = id;
+        }
+        Arrays.sort(byName, (a, b) -> symbols.getSymbol(a).compareTo(symbols.getSymbol(b)));
+        int[] rank = new int[byName.length];
+        for (int i = 0; i < rank.length; i++) {
+            rank[byName[i]] = i;
+        }
+
+        Integer[] rules = new Integer[table.size()];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = i;
+        }
+
+        Arrays.sort(rules, (a, b) -> {
+            int c = Integer.compare(rank[table.getLhs(a)], rank[table.getLhs(b)]);
+            for (int i = 0; c == 0 && i < Math.min(table.numRhs(a), table.numRhs(b)); i++) {
+                c = Integer.compare(rank[table.getRhs(a, i)], rank[table.getRhs(b, i)]);
             }
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (c == 0) {
+                c = Integer.compare(table.numRhs(a), table.numRhs(b));
+            }
+            return c != 0 ? c : Boolean.compare(table.isLexical(a), table.isLexical(b));
+        });
+
+        sorted = new int[rules.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = rules[i];
         }
+        return sorted;
     }
 
     /**
-     * Get the counts hashmap
+     * Given a rule id, the method creates the GrammarRule for it, with its current weight.
+     *
+     * @param rule the rule id
+     * @return the GrammarRule
+     */
+    public GrammarRule toGrammarRule(int rule) {
+        int rhsSize = table.numRhs(rule);
+        ArrayList<String> rhs = new ArrayList<>(rhsSize);
+        for (int i = 0; i < rhsSize; i++) {
+            rhs.add(symbols.getSymbol(table.getRhs(rule, i)));
+        }
+
+        GrammarRule grammarRule = new GrammarRule(symbols.getSymbol(table.getLhs(rule)), rhs, table.isLexical(rule));
+        grammarRule.setWeight(table.getWeight(rule));
+        return grammarRule;
+    }
+
+    /**
+     * Get the counts hashmap, which is built from the rule table
      *
      * @return the counts hashmap for the pcfg
      */
-    public HashMap<String, Double> getCounts() { return counts; }
+    public HashMap<String, Double> getCounts() {
+        HashMap<String, Double> counts = new HashMap<>();
+        for (int symbol = 0; symbol < symbols.size(); symbol++) {
+            long count = table.getLhsCount(symbol);
+            if (count > 0) {
+                counts.put(symbols.getSymbol(symbol), (double) count);
+            }
+        }
+        return counts;
+    }
 
     /**
-     * Get the rules hashmap
+     * Get the rules hashmap, which is built from the rule table
      *
      * @return the rules hashmap for the pcfg
      */
-    public HashMap<String, HashMap<GrammarRule, Double>> getRules() { return rules; }
+    public HashMap<String, HashMap<GrammarRule, Double>> getRules() {
+        HashMap<String, HashMap<GrammarRule, Double>> rules = new HashMap<>();
+        for (int rule = 0; rule < table.size(); rule++) {
+            String label = symbols.getSymbol(table.getLhs(rule));
+            if (!rules.containsKey(label)) {
+                rules.put(label, new HashMap<>());
+            }
+            rules.get(label).put(toGrammarRule(rule), (double) table.getCount(rule));
+        }
+        return rules;
+    }
+
+    /**
+     * Get the symbol table
+     *
+     * @return the symbol table for the pcfg
+     */
+    public SymbolTable getSymbols() { return symbols; }
+
+    /**
+     * Get the rule table
+     *
+     * @return the rule table for the pcfg
+     */
+    public RuleTable getTable() { return table; }
 
 //    public static void main(String[] args) {
 //        String filename = "/Users/ezraford/git/assign3-starter/data/simple.parsed";
@@ -0,0 +1,404 @@
+package nlp.parser;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A binarized PCFG with its rules coded as integers in flat arrays, for parsing.  There are
+ * three kinds of rules:
+ *   - binary rules: A -> B C
+ *   - unary rules: A -> B
+ *   - lexical rules: A -> * word
+ *
+ * Nonterminals (including part of speech tags) and words have separate symbol tables, so the
+ * nonterminal ids can be used directly to index the cells of a chart.  Scores are natural log
+ * probabilities.
+ *
+ * A grammar is not modified once it's created, so it can be shared between parsers.
+ *
+ * A grammar can be loaded from three kinds of files (see Grammar(String)), which Grammar(String)
+ * tells apart by their first bytes:
+ *   - text, one rule per line: for reading and editing grammars, and for other tools
+ *   - the streaming binary format of BinaryGrammarSink (magic "PCFB"): written rule by rule
+ *     while a grammar is estimated, without holding it in memory, and can be gzipped
+ *   - a CompiledGrammar (magic "PCFG"): indexed rule arrays that are memory-mapped, for loading
+ *     a grammar to parse with as fast as possible; it can't be gzipped
+ *
+ */
+public class Grammar {
+	static final String INTERMEDIATE_PREFIX = "@X"; // the new symbols of the binarization are @X1, @X2, ..., which no treebank label starts with
+	private static final Pattern INTERMEDIATE = Pattern.compile("@X\\d+");
+	private static final Pattern OLD_INTERMEDIATE = Pattern.compile("X\\d+"); // the same, in grammars binarized before the @ was reserved
+
+	private SymbolTable symbols = new SymbolTable(); // the nonterminals
+	private SymbolTable words = new SymbolTable(); // the words
+	private boolean[] intermediate; // symbol id -> whether it was introduced by binarizing the grammar
+	private CompiledGrammar compiled; // the compiled grammar this was loaded from, or null
+
+	private int numBinary = 0;
+	private int[] binaryParent = new int[16];
+	private int[] binaryLeft = new int[16];
+	private int[] binaryRight = new int[16];
+	private double[] binaryScore = new double[16];
+
+	private int numUnary = 0;
+	private int[] unaryParent = new int[16];
+	private int[] unaryChild = new int[16];
+	private double[] unaryScore = new double[16];
+
+	private int numLexical = 0;
+	private int[] lexicalTag = new int[16];
+	private int[] lexicalWord = new int[16];
+	private double[] lexicalScore = new double[16];
+
+	/**
+	 * Load a grammar from a file with one rule per line in the format read by GrammarRule(String),
+	 * e.g. one written by ConstructPCFG.binarizePCFG(), from a file written by a
+	 * BinaryGrammarSink, or from a CompiledGrammar file.  Files ending in .gz are gunzipped.
+	 *
+	 * @param filename the grammar file
+	 * @throws IOException if the file can't be read, or is a gzipped compiled grammar
+	 */
+	public Grammar(String filename) throws IOException{
+		InputStream in = new FileInputStream(filename);
+
+		try{
+			if( filename.endsWith(".gz") ){
+				in = new GZIPInputStream(in, 1 << 16);
+			}
+
+			in = new BufferedInputStream(in, 1 << 16);
+
+			// the binary formats start with their magic numbers
+			in.mark(4);
+			byte[] bytes = in.readNBytes(4);
+			int magic = bytes.length == 4 ? ByteBuffer.wrap(bytes).getInt() : 0;
+			in.reset();
+
+			if( magic == CompiledGrammar.MAGIC ){
+				if( filename.endsWith(".gz") ){
+					throw new IOException("A compiled grammar can't be gzipped: " + filename);
+				}
+
+				copy(new CompiledGrammar(filename));
+			}else if( magic == BinaryGrammarSink.MAGIC ){
+				BinaryGrammarSink.read(in, this::addRule);
+			}else{
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+				String line;
+
+				while( (line = reader.readLine()) != null ){
+					if( !line.isEmpty() ){
+						addRule(new GrammarRule(line));
+					}
+				}
+			}
+		}finally{
+			in.close();
+		}
+
+		finish();
+	}
+
+	/**
+	 * Create a grammar from a collection of rules
+	 *
+	 * @param rules the rules, all of which have at most two RHS symbols
+	 */
+	public Grammar(Iterable<GrammarRule> rules){
+		for( GrammarRule rule: rules ){
+			addRule(rule);
+		}
+
+		finish();
+	}
+
+	/**
+	 * Create a grammar from a compiled (memory-mapped) grammar.  This copies the rule arrays in
+	 * bulk and doesn't parse any text; only the names of the symbols and words are interned one
+	 * by one.  A GrammarIndex of the grammar takes its offsets from the indexes of the compiled
+	 * grammar instead of sorting the rules again.
+	 *
+	 * @param compiled the compiled grammar
+	 */
+	public Grammar(CompiledGrammar compiled){
+		copy(compiled);
+		finish();
+	}
+
+	/**
+	 * Copy the symbols and rules of a compiled grammar, keeping its ids
+	 */
+	private void copy(CompiledGrammar compiled){
+		for( int i = 0; i < compiled.numSymbols(); i++ ){
+			symbols.intern(compiled.getSymbol(i));
+		}
+
+		for( int i = 0; i < compiled.numWords(); i++ ){
+			words.intern(compiled.getWord(i));
+		}
+
+		numBinary = compiled.numBinaryRules();
+		binaryParent = compiled.binaryParents();
+		binaryLeft = compiled.binaryLefts();
+		binaryRight = compiled.binaryRights();
+		binaryScore = compiled.binaryScores();
+
+		numUnary = compiled.numUnaryRules();
+		unaryParent = compiled.unaryParents();
+		unaryChild = compiled.unaryChildren();
+		unaryScore = compiled.unaryScores();
+
+		numLexical = compiled.numLexicalRules();
+		lexicalTag = compiled.lexicalTags();
+		lexicalWord = compiled.lexicalWords();
+		lexicalScore = compiled.lexicalScores();
+
+		this.compiled = compiled;
+	}
+
+	private void addRule(GrammarRule rule){
+		int parent = symbols.intern(rule.getLhs());
+		double score = Math.log(rule.getWeight());
+		ArrayList<String> rhs = rule.getRhs();
+
+		if( rule.isLexical() ){
+			if( numLexical == lexicalTag.length ){
+				lexicalTag = Arrays.copyOf(lexicalTag, 2 * numLexical);
+				lexicalWord = Arrays.copyOf(lexicalWord, 2 * numLexical);
+				lexicalScore = Arrays.copyOf(lexicalScore, 2 * numLexical);
+			}
+
+			lexicalTag[numLexical] = parent;
+			lexicalWord[numLexical] = words.intern(rhs.get(0));
+			lexicalScore[numLexical] = score;
+			numLexical++;
+		}else if( rhs.size() == 1 ){
+			if( numUnary == unaryParent.length ){
+				unaryParent = Arrays.copyOf(unaryParent, 2 * numUnary);
+				unaryChild = Arrays.copyOf(unaryChild, 2 * numUnary);
+				unaryScore = Arrays.copyOf(unaryScore, 2 * numUnary);
+			}
+
+			unaryParent[numUnary] = parent;
+			unaryChild[numUnary] = symbols.intern(rhs.get(0));
+			unaryScore[numUnary] = score;
+			numUnary++;
+		}else if( rhs.size() == 2 ){
+			if( numBinary == binaryParent.length ){
+				binaryParent = Arrays.copyOf(binaryParent, 2 * numBinary);
+				binaryLeft = Arrays.copyOf(binaryLeft, 2 * numBinary);
+				binaryRight = Arrays.copyOf(binaryRight, 2 * numBinary);
+				binaryScore = Arrays.copyOf(binaryScore, 2 * numBinary);
+			}
+
+			binaryParent[numBinary] = parent;
+			binaryLeft[numBinary] = symbols.intern(rhs.get(0));
+			binaryRight[numBinary] = symbols.intern(rhs.get(1));
+			binaryScore[numBinary] = score;
+			numBinary++;
+		}else{
+			throw new RuntimeException("Grammar is not binary: " + rule);
+		}
+	}
+
+	private void finish(){
+		intermediate = new boolean[symbols.size()];
+		Pattern pattern = OLD_INTERMEDIATE;
+
+		for( int i = 0; i < symbols.size(); i++ ){
+			if( symbols.getSymbol(i).startsWith("@") ){
+				pattern = INTERMEDIATE;
+				break;
+			}
+		}
+
+		for( int i = 0; i < symbols.size(); i++ ){
+			intermediate[i] = pattern.matcher(symbols.getSymbol(i)).matches();
+		}
+	}
+
+	/**
+	 * Get the compiled grammar this grammar was loaded from, whose rule ids are the same
+	 *
+	 * @return the compiled grammar, or null if the grammar wasn't loaded from one
+	 */
+	CompiledGrammar getCompiled(){
+		return compiled;
+	}
+
+	/**
+	 * Get the nonterminal symbol table
+	 *
+	 * @return the nonterminal symbol table
+	 */
+	public SymbolTable getSymbols(){
+		return symbols;
+	}
+
+	/**
+	 * Get the word symbol table
+	 *
+	 * @return the word symbol table
+	 */
+	public SymbolTable getWords(){
+		return words;
+	}
+
+	/**
+	 * The number of nonterminals
+	 *
+	 * @return the number of nonterminals
+	 */
+	public int numSymbols(){
+		return symbols.size();
+	}
+
+	/**
+	 * Whether a nonterminal was introduced by binarizing the grammar (@X1, @X2, ...) and should
+	 * be removed from parse trees.  In a grammar without any symbol starting with @, which was
+	 * binarized before the @ was reserved, X1, X2, ... are the intermediate symbols instead.
+	 *
+	 * @param symbol the nonterminal id
+	 * @return whether the nonterminal is an intermediate symbol
+	 */
+	public boolean isIntermediate(int symbol){
+		return intermediate[symbol];
+	}
+
+	/**
+	 * The number of binary rules
+	 *
+	 * @return the number of binary rules
+	 */
+	public int numBinaryRules(){
+		return numBinary;
+	}
+
+	/**
+	 * Get the LHS of a binary rule
+	 *
+	 * @param rule the binary rule id
+	 * @return the LHS nonterminal id
+	 */
+	public int getBinaryParent(int rule){
+		return binaryParent[rule];
+	}
+
+	/**
+	 * Get the first RHS symbol of a binary rule
+	 *
+	 * @param rule the binary rule id
+	 * @return the left child nonterminal id
+	 */
+	public int getBinaryLeft(int rule){
+		return binaryLeft[rule];
+	}
+
+	/**
+	 * Get the second RHS symbol of a binary rule
+	 *
+	 * @param rule the binary rule id
+	 * @return the right child nonterminal id
+	 */
+	public int getBinaryRight(int rule){
+		return binaryRight[rule];
+	}
+
+	/**
+	 * Get the log probability of a binary rule
+	 *
+	 * @param rule the binary rule id
+	 * @return the log probability
+	 */
+	public double getBinaryScore(int rule){
+		return binaryScore[rule];
+	}
+
+	/**
+	 * The number of unary rules
+	 *
+	 * @return the number of unary rules
+	 */
+	public int numUnaryRules(){
+		return numUnary;
+	}
+
+	/**
+	 * Get the LHS of a unary rule
+	 *
+	 * @param rule the unary rule id
+	 * @return the LHS nonterminal id
+	 */
+	public int getUnaryParent(int rule){
+		return unaryParent[rule];
+	}
+
+	/**
+	 * Get the RHS symbol of a unary rule
+	 *
+	 * @param rule the unary rule id
+	 * @return the child nonterminal id
+	 */
+	public int getUnaryChild(int rule){
+		return unaryChild[rule];
+	}
+
+	/**
+	 * Get the log probability of a unary rule
+	 *
+	 * @param rule the unary rule id
+	 * @return the log probability
+	 */
+	public double getUnaryScore(int rule){
+		return unaryScore[rule];
+	}
+
+	/**
+	 * The number of lexical rules
+	 *
+	 * @return the number of lexical rules
+	 */
+	public int numLexicalRules(){
+		return numLexical;
+	}
+
+	/**
+	 * Get the part of speech (LHS) of a lexical rule
+	 *
+	 * @param rule the lexical rule id
+	 * @return the part of speech nonterminal id
+	 */
+	public int getLexicalTag(int rule){
+		return lexicalTag[rule];
+	}
+
+	/**
+	 * Get the word of a lexical rule
+	 *
+	 * @param rule the lexical rule id
+	 * @return the word id
+	 */
+	public int getLexicalWord(int rule){
+		return lexicalWord[rule];
+	}
+
+	/**
+	 * Get the log probability of a lexical rule
+	 *
+	 * @param rule the lexical rule id
+	 * @return the log probability
+	 */
+	public double getLexicalScore(int rule){
+		return lexicalScore[rule];
+	}
+}
@@ -0,0 +1,540 @@
+package nlp.parser;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compacts a PCFG before it's binarized, by dropping its rare rules:
+ *   - a rule is dropped if its count is below minCount, or its weight (its count over the count
+ *     of its LHS) is below minWeight
+ *   - a rare unary rule A -> B, with a count below foldCount, can be folded instead: its count is
+ *     shared out over the kept rules B -> C D ... of B with two or more RHS symbols, in proportion
+ *     to their counts, as rules A -> C D ...  (The shares are rounded to whole counts by largest
+ *     remainder, so the count of A doesn't change.)  If B has no such rules the unary is dropped.
+ *   - the rules whose LHS can't be reached from the roots of the trees any more are dropped
+ * and the weights of the rules that are left are their relative frequencies again.  Lexical
+ * rules are always kept, whether or not their tags can still be reached, so that every known
+ * word keeps its tags (as with CKYParser.setMinRuleWeight()).  Every LHS keeps at least its
+ * most frequent rule, so that no symbol is left without a way to rewrite it, and every symbol
+ * keeps at least the most frequent rule it's a child in, so that no symbol (a tag in particular)
+ * is left without a way to be used.
+ *
+ * The counts don't say which symbols rooted the trees, so the roots are taken to be the start
+ * symbol, the symbols that are never a child in a rule (e.g. FRAG, if it only roots trees), and
+ * any other symbols that those can't reach in the whole grammar.  So a compactor without
+ * thresholds leaves the grammar as it is.
+ *
+ * The rules are compacted in sorted order, so the compacted grammar is the same from run to run.
+ * The sizes of the grammar before and after, unbinarized and binarized, are reported by
+ * toString().
+ *
+ */
+public class GrammarCompactor {
+	private final String startSymbol;
+	private long minCount = 1;
+	private double minWeight = 0.0;
+	private long foldCount = 0; // unary rules with a lower count are folded; 0 doesn't fold any
+
+	// the statistics of the last compaction
+	private final int[] before = new int[4]; // rules, lexical rules, symbols, binarized rules
+	private final int[] after = new int[4];
+	private int numDropped = 0;
+	private int numFolded = 0;
+	private int numUnreachable = 0;
+
+	/**
+	 * Create a compactor with the start symbol S that doesn't drop any rules until thresholds are
+	 * set
+	 */
+	public GrammarCompactor(){
+		this("S");
+	}
+
+	/**
+	 * Create a compactor that doesn't drop any rules until thresholds are set
+	 *
+	 * @param startSymbol the label of the root of most trees, from which the kept symbols must be
+	 *   reachable (if the grammar has it), as well as from the other roots
+	 */
+	public GrammarCompactor(String startSymbol){
+		this.startSymbol = startSymbol;
+	}
+
+	/**
+	 * Drop the rules that were seen fewer than minCount times
+	 *
+	 * @param minCount the lowest count of the rules that are kept
+	 */
+	public void setMinCount(long minCount){
+		this.minCount = minCount;
+	}
+
+	/**
+	 * Drop the rules with a low probability given their LHS
+	 *
+	 * @param minWeight the lowest weight of the rules that are kept
+	 */
+	public void setMinWeight(double minWeight){
+		this.minWeight = minWeight;
+	}
+
+	/**
+	 * Fold the unary rules that were seen fewer than foldCount times into the rules of their child
+	 * instead of keeping or dropping them
+	 *
+	 * @param foldCount the lowest count of the unary rules that aren't folded, or 0 to fold none
+	 */
+	public void setFoldCount(long foldCount){
+		this.foldCount = foldCount;
+	}
+
+	/**
+	 * Compact a PCFG
+	 *
+	 * @param pcfg the PCFG, with its counts
+	 * @return the compacted PCFG, with its counts and weights
+	 */
+	public ConstructPCFG compact(ConstructPCFG pcfg){
+		SymbolTable symbols = pcfg.getSymbols();
+		RuleTable table = pcfg.getTable();
+		int numSymbols = symbols.size();
+		int[] sorted = pcfg.sortedRules();
+
+		// the most frequent rule of each LHS and the most frequent rule each symbol is a child in,
+		// which are always kept
+		int[] best = new int[numSymbols];
+		int[] bestParent = new int[numSymbols];
+		Arrays.fill(best, -1);
+		Arrays.fill(bestParent, -1);
+
+		for( int rule: sorted ){
+			int lhs = table.getLhs(rule);
+
+			if( best[lhs] == -1 || table.getCount(rule) > table.getCount(best[lhs]) ){
+				best[lhs] = rule;
+			}
+
+			for( int i = 0; !table.isLexical(rule) && i < table.numRhs(rule); i++ ){
+				int child = table.getRhs(rule, i);
+
+				if( bestParent[child] == -1 || table.getCount(rule) > table.getCount(bestParent[child]) ){
+					bestParent[child] = rule;
+				}
+			}
+		}
+
+		boolean[] essential = new boolean[table.size()];
+
+		for( int id = 0; id < numSymbols; id++ ){
+			if( best[id] != -1 ){
+				essential[best[id]] = true;
+			}
+
+			if( bestParent[id] != -1 ){
+				essential[bestParent[id]] = true;
+			}
+		}
+
+		// which rules are kept as they are, and which unaries are folded
+		boolean[] kept = new boolean[table.size()];
+		ArrayList<Integer> folds = new ArrayList<Integer>();
+		numDropped = 0;
+
+		for( int rule: sorted ){
+			long count = table.getCount(rule);
+			boolean frequent = count >= minCount && count >= minWeight * table.getLhsCount(table.getLhs(rule));
+
+			if( table.isLexical(rule) || essential[rule] ){
+				kept[rule] = true;
+			}else if( table.numRhs(rule) == 1 && count < foldCount ){
+				folds.add(rule);
+			}else if( frequent ){
+				kept[rule] = true;
+			}else{
+				numDropped++;
+			}
+		}
+
+		// the kept rules of each symbol that a unary can be folded into
+		int[] foldStart = new int[numSymbols + 1];
+
+		for( int rule: sorted ){
+			if( kept[rule] && !table.isLexical(rule) && table.numRhs(rule) > 1 ){
+				foldStart[table.getLhs(rule) + 1]++;
+			}
+		}
+
+		for( int i = 1; i < foldStart.length; i++ ){
+			foldStart[i] += foldStart[i-1];
+		}
+
+		int[] foldRules = new int[foldStart[numSymbols]];
+		int[] next = Arrays.copyOf(foldStart, numSymbols);
+
+		for( int rule: sorted ){
+			if( kept[rule] && !table.isLexical(rule) && table.numRhs(rule) > 1 ){
+				foldRules[next[table.getLhs(rule)]++] = rule;
+			}
+		}
+
+		// the compacted rules, with the original symbols keeping their ids
+		ConstructPCFG compact = new ConstructPCFG();
+
+		for( int id = 0; id < numSymbols; id++ ){
+			compact.symbols.intern(symbols.getSymbol(id));
+		}
+
+		boolean[] reachable = reachable(pcfg, kept, folds, foldStart, foldRules);
+		int[] rhs = new int[16];
+		numUnreachable = 0;
+
+		for( int rule: sorted ){
+			if( !kept[rule] ){
+				continue;
+			}else if( !table.isLexical(rule) && !reachable[table.getLhs(rule)] ){
+				numUnreachable++;
+				continue;
+			}
+
+			int rhsSize = table.numRhs(rule);
+
+			if( rhsSize > rhs.length ){
+				rhs = new int[Math.max(rhsSize, 2 * rhs.length)];
+			}
+
+			for( int i = 0; i < rhsSize; i++ ){
+				rhs[i] = table.getRhs(rule, i);
+			}
+
+			compact.table.add(table.getLhs(rule), rhs, rhsSize, table.isLexical(rule), table.getCount(rule));
+		}
+
+		numFolded = 0;
+
+		for( int unary: folds ){
+			int lhs = table.getLhs(unary);
+			int child = table.getRhs(unary, 0);
+
+			if( foldStart[child] == foldStart[child + 1] ){
+				numDropped++;
+			}else if( reachable[lhs] ){
+				fold(table, compact.table, unary, foldRules, foldStart[child], foldStart[child + 1]);
+				numFolded++;
+			}else{
+				numUnreachable++;
+			}
+		}
+
+		compact.updateWeights();
+		measure(pcfg, before);
+		measure(compact, after);
+
+		return compact;
+	}
+
+	/**
+	 * Get the number of rules dropped by the last compaction for being rare, including the rare
+	 * unaries that couldn't be folded
+	 *
+	 * @return the number of dropped rules
+	 */
+	public int getNumDropped(){
+		return numDropped;
+	}
+
+	/**
+	 * Get the number of unary rules folded by the last compaction
+	 *
+	 * @return the number of folded rules
+	 */
+	public int getNumFolded(){
+		return numFolded;
+	}
+
+	/**
+	 * Get the number of rules dropped by the last compaction because their LHS couldn't be reached
+	 * from the roots any more
+	 *
+	 * @return the number of unreachable rules
+	 */
+	public int getNumUnreachable(){
+		return numUnreachable;
+	}
+
+	/**
+	 * The thresholds and the size of the last compacted PCFG, e.g.
+	 *   minCount=2 minWeight=0.0 foldCount=0: 1333 -> 1124 rules (1002 -> 988 lexical), 52 -> 41 symbols,
+	 *   1570 -> 1176 binarized rules; 191 dropped, 0 folded, 18 unreachable
+	 */
+	public String toString(){
+		return "minCount=" + minCount + " minWeight=" + minWeight + " foldCount=" + foldCount + ": "
+			+ before[0] + " -> " + after[0] + " rules (" + before[1] + " -> " + after[1] + " lexical), "
+			+ before[2] + " -> " + after[2] + " symbols, " + before[3] + " -> " + after[3] + " binarized rules; "
+			+ numDropped + " dropped, " + numFolded + " folded, " + numUnreachable + " unreachable";
+	}
+
+	/**
+	 * Add the rules a rare unary A -> B is folded into: A -> C D ... for each rule B -> C D ...
+	 * from foldRules[from] up to foldRules[to], with the count of the unary shared out in
+	 * proportion to the counts of those rules
+	 */
+	private static void fold(RuleTable table, RuleTable compact, int unary, int[] foldRules, int from, int to){
+		long count = table.getCount(unary);
+		long total = 0;
+
+		for( int x = from; x < to; x++ ){
+			total += table.getCount(foldRules[x]);
+		}
+
+		// the whole shares first, and then one more for the largest remainders until the count is used up
+		long[] shares = new long[to - from];
+		long[] remainders = new long[to - from];
+		long left = count;
+
+		for( int x = from; x < to; x++ ){
+			long product = count * table.getCount(foldRules[x]);
+			shares[x - from] = product / total;
+			remainders[x - from] = product % total;
+			left -= shares[x - from];
+		}
+
+		for( ; left > 0; left-- ){
+			int largest = 0;
+
+			for( int i = 1; i < remainders.length; i++ ){
+				if( remainders[i] > remainders[largest] ){
+					largest = i;
+				}
+			}
+
+			shares[largest]++;
+			remainders[largest] = -1;
+		}
+
+		int lhs = table.getLhs(unary);
+		int[] rhs = new int[16];
+
+		for( int x = from; x < to; x++ ){
+			if( shares[x - from] == 0 ){
+				continue;
+			}
+
+			int rule = foldRules[x];
+			int rhsSize = table.numRhs(rule);
+
+			if( rhsSize > rhs.length ){
+				rhs = new int[rhsSize];
+			}
+
+			for( int i = 0; i < rhsSize; i++ ){
+				rhs[i] = table.getRhs(rule, i);
+			}
+
+			compact.add(lhs, rhs, rhsSize, false, shares[x - from]);
+		}
+	}
+
+	/**
+	 * Find the symbols that can be reached from the roots with the kept and folded rules
+	 */
+	private boolean[] reachable(ConstructPCFG pcfg, boolean[] kept, ArrayList<Integer> folds, int[] foldStart, int[] foldRules){
+		return reach(pcfg, kept, folds, foldStart, foldRules, roots(pcfg));
+	}
+
+	/**
+	 * Find the roots of the trees: the start symbol, the symbols that are never a child, and the
+	 * symbols those can't reach with all of the rules
+	 */
+	private boolean[] roots(ConstructPCFG pcfg){
+		RuleTable table = pcfg.getTable();
+		int numSymbols = pcfg.getSymbols().size();
+		boolean[] child = new boolean[numSymbols];
+
+		for( int rule = 0; rule < table.size(); rule++ ){
+			if( !table.isLexical(rule) ){
+				for( int i = 0; i < table.numRhs(rule); i++ ){
+					child[table.getRhs(rule, i)] = true;
+				}
+			}
+		}
+
+		boolean[] roots = new boolean[numSymbols];
+		int start = pcfg.getSymbols().getId(startSymbol);
+
+		if( start != -1 ){
+			roots[start] = true;
+		}
+
+		for( int id = 0; id < numSymbols; id++ ){
+			roots[id] |= table.getLhsCount(id) > 0 && !child[id];
+		}
+
+		// symbols that only occur under each other, below roots that are children too
+		boolean[] all = new boolean[table.size()];
+		Arrays.fill(all, true);
+		boolean[] reached = reach(pcfg, all, new ArrayList<Integer>(), null, null, roots);
+
+		for( int id = 0; id < numSymbols; id++ ){
+			roots[id] |= table.getLhsCount(id) > 0 && !reached[id];
+		}
+
+		return roots;
+	}
+
+	/**
+	 * Find the symbols that can be reached from the roots with the kept and folded rules
+	 */
+	private static boolean[] reach(ConstructPCFG pcfg, boolean[] kept, ArrayList<Integer> folds, int[] foldStart, int[] foldRules, boolean[] roots){
+		RuleTable table = pcfg.getTable();
+		int numSymbols = pcfg.getSymbols().size();
+		boolean[] reachable = new boolean[numSymbols];
+
+		// the rules by LHS, with the folded unaries standing for the rules they're folded into
+		int[] ruleStart = new int[numSymbols + 1];
+
+		for( int rule = 0; rule < table.size(); rule++ ){
+			if( kept[rule] ){
+				ruleStart[table.getLhs(rule) + 1]++;
+			}
+		}
+
+		for( int unary: folds ){
+			ruleStart[table.getLhs(unary) + 1]++;
+		}
+
+		for( int i = 1; i < ruleStart.length; i++ ){
+			ruleStart[i] += ruleStart[i-1];
+		}
+
+		int[] rules = new int[ruleStart[numSymbols]];
+		int[] next = Arrays.copyOf(ruleStart, numSymbols);
+
+		for( int rule = 0; rule < table.size(); rule++ ){
+			if( kept[rule] ){
+				rules[next[table.getLhs(rule)]++] = rule;
+			}
+		}
+
+		for( int unary: folds ){
+			rules[next[table.getLhs(unary)]++] = ~unary;
+		}
+
+		int[] stack = new int[numSymbols];
+		int size = 0;
+
+		for( int id = 0; id < numSymbols; id++ ){
+			if( roots[id] ){
+				stack[size++] = id;
+				reachable[id] = true;
+			}
+		}
+
+		while( size > 0 ){
+			int symbol = stack[--size];
+
+			for( int x = ruleStart[symbol]; x < ruleStart[symbol + 1]; x++ ){
+				if( rules[x] >= 0 ){
+					size = visitRhs(table, rules[x], reachable, stack, size);
+				}else{
+					int child = table.getRhs(~rules[x], 0);
+
+					for( int y = foldStart[child]; y < foldStart[child + 1]; y++ ){
+						size = visitRhs(table, foldRules[y], reachable, stack, size);
+					}
+				}
+			}
+		}
+
+		return reachable;
+	}
+
+	/**
+	 * Mark the RHS symbols of a rule reachable, pushing the new ones on the stack
+	 *
+	 * @return the new size of the stack
+	 */
+	private static int visitRhs(RuleTable table, int rule, boolean[] reachable, int[] stack, int size){
+		if( table.isLexical(rule) ){
+			return size;
+		}
+
+		for( int i = 0; i < table.numRhs(rule); i++ ){
+			int symbol = table.getRhs(rule, i);
+
+			if( !reachable[symbol] ){
+				reachable[symbol] = true;
+				stack[size++] = symbol;
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * Count the rules, lexical rules, LHS symbols and binarized rules of a PCFG
+	 */
+	private static void measure(ConstructPCFG pcfg, int[] sizes){
+		RuleTable table = pcfg.getTable();
+		sizes[0] = table.size();
+		sizes[1] = 0;
+		sizes[2] = 0;
+
+		for( int rule = 0; rule < table.size(); rule++ ){
+			sizes[1] += table.isLexical(rule) ? 1 : 0;
+		}
+
+		for( int id = 0; id < pcfg.getSymbols().size(); id++ ){
+			sizes[2] += table.getLhsCount(id) > 0 ? 1 : 0;
+		}
+
+		sizes[3] = new Binarizer().binarize(pcfg).getTable().size();
+	}
+
+	/**
+	 * Print the size of the compacted grammar of a treebank for a few thresholds, or write the
+	 * binarized grammar compacted with given thresholds
+	 *
+	 * @param args the treebank (a file, directory or glob), and optionally the minimum count, the
+	 *   minimum weight, the fold count and the file to write the binarized grammar to
+	 * @throws IOException if the grammar can't be written
+	 */
+	public static void main(String[] args) throws IOException{
+		if( args.length != 1 && args.length != 5 ){
+			System.err.println("usage: java nlp.parser.GrammarCompactor <treebank> [<min count> <min weight> <fold count> <output>]");
+			System.exit(1);
+		}
+
+		ConstructPCFG pcfg = new ConstructPCFG(args[0]);
+
+		if( args.length == 5 ){
+			GrammarCompactor compactor = new GrammarCompactor();
+			compactor.setMinCount(Long.parseLong(args[1]));
+			compactor.setMinWeight(Double.parseDouble(args[2]));
+			compactor.setFoldCount(Long.parseLong(args[3]));
+			ConstructPCFG compact = compactor.compact(pcfg);
+			System.out.println(compactor);
+
+			try( GrammarSink sink = GrammarSink.open(Paths.get(args[4])) ){
+				compact.binarizePCFG(sink);
+			}
+
+			return;
+		}
+
+		for( long minCount: new long[]{1, 2, 3, 5} ){
+			for( long foldCount: new long[]{0, 2} ){
+				GrammarCompactor compactor = new GrammarCompactor();
+				compactor.setMinCount(minCount);
+				compactor.setFoldCount(foldCount);
+				compactor.compact(pcfg);
+				System.out.println(compactor);
+			}
+		}
+
+		GrammarCompactor compactor = new GrammarCompactor();
+		compactor.setMinWeight(0.01);
+		compactor.compact(pcfg);
+		System.out.println(compactor);
+	}
+}
@@ -0,0 +1,670 @@
+package nlp.parser;
+import java.util.Arrays;
+
+/**
+ * The rules of a Grammar indexed for filling in a chart with array lookups:
+ *   - the lexicon: for each word, its tags and their log probabilities
+ *   - the binary rules by left child and then right child, with the right child, parent and
+ *     score of each rule next to each other, and the offsets of the same rules by right child
+ *     and by parent
+ *   - the (left child, right child) pairs of the binary rules, so that the score of the two
+ *     children is looked up once for all of the parents of a pair (see ChartKernel)
+ *   - the unary closure: for each symbol B, every symbol A with a chain of unary rules
+ *     A -> ... -> B, with the log probability of the best chain
+ * With the closure, a chart cell gets all of its unary entries in one pass over its entries,
+ * instead of applying the unary rules until nothing changes.
+ *
+ * The closure is kept sparse, by child, since most pairs of symbols have no unary chain.  A best
+ * chain A -> C -> ... -> B is stored as its first step C (via) and the closure entry for C -> ... -> B
+ * (next), so that the chain can be followed to build a tree.  The entries are indexed by parent as
+ * well, for going down from a symbol (see KBestParser).
+ *
+ * When the grammar was loaded from a CompiledGrammar, the lexicon and the offsets of the rules by
+ * left child and of the unary rules by child are taken from its CSR indexes rather than counted
+ * again (the binary and unary ones only when no rules are left out).
+ *
+ * An index can be restricted to the binary and unary rules with at least a minimum weight.  It is
+ * not modified once it's created, so it can be shared between parsers.
+ *
+ */
+public class GrammarIndex {
+	private static final double NONE = Double.NEGATIVE_INFINITY;
+
+	private final Grammar grammar;
+	private final int numSymbols;
+
+	private final int[] lexiconStart; // word -> the offset of its first tag in the lexicon arrays
+	private final int[] lexiconTag;
+	private final double[] lexiconScore;
+
+	private final int[] binaryStart; // left child -> the offset of its first rule in the binary arrays
+	private final int[] binaryRule; // the rule id in the grammar
+	private final int[] binaryLeft;
+	private final int[] binaryRight;
+	private final int[] binaryParent;
+	private final double[] binaryScore;
+	private final int[] byRightStart; // right child -> the offset of its first rule in byRight
+	private final int[] byRight; // the offsets in the binary arrays of the rules, by right child
+	private final int[] byParentStart; // parent -> the offset of its first rule in byParent
+	private final int[] byParent; // the offsets in the binary arrays of the rules, by parent
+	private final int[] pairStart; // left child -> its first pair
+	private final int[] pairRight; // pair -> the right child
+	private final int[] pairRuleStart; // pair -> the offset of its first rule in the binary arrays
+
+	private final int[] closureStart; // child -> the offset of its first entry in the closure arrays
+	private int[] closureParent;
+	private int[] closureChild;
+	private double[] closureScore; // the log probability of the best chain from the parent to the child
+	private int[] closureVia; // the child of the first rule of the best chain
+	private int[] closureNext; // the closure entry from via to the child, or -1 if via is the child
+	private int numClosure = 0;
+	private final int[] closureByParentStart; // parent -> the offset of its first entry in closureByParent
+	private int[] closureByParent; // the closure entries, by parent
+
+	/**
+	 * Index all of the rules of a grammar
+	 *
+	 * @param grammar the binarized grammar
+	 */
+	public GrammarIndex(Grammar grammar){
+		this(grammar, 0.0);
+	}
+
+	/**
+	 * Index the lexical rules and the binary and unary rules with at least a minimum weight
+	 *
+	 * @param grammar the binarized grammar
+	 * @param minRuleWeight the lowest weight (probability) of the binary and unary rules that are used
+	 */
+	public GrammarIndex(Grammar grammar, double minRuleWeight){
+		this.grammar = grammar;
+		this.numSymbols = grammar.numSymbols();
+		double minScore = Math.log(minRuleWeight);
+		CompiledGrammar compiled = grammar.getCompiled();
+		boolean allRules = minScore == NONE; // whether every rule is indexed, as in the compiled indexes
+
+		// the lexicon, with a counting sort by word unless the compiled grammar has it already
+		int numWords = grammar.getWords().size();
+		int[] lexicalByWord;
+
+		if( compiled != null ){
+			lexiconStart = compiled.lexicalByWordStarts();
+			lexicalByWord = compiled.lexicalByWords();
+		}else{
+			lexiconStart = new int[numWords + 1];
+
+			for( int r = 0; r < grammar.numLexicalRules(); r++ ){
+				lexiconStart[grammar.getLexicalWord(r) + 1]++;
+			}
+
+			prefixSum(lexiconStart);
+			lexicalByWord = new int[grammar.numLexicalRules()];
+			int[] next = Arrays.copyOf(lexiconStart, numWords);
+
+			for( int r = 0; r < grammar.numLexicalRules(); r++ ){
+				lexicalByWord[next[grammar.getLexicalWord(r)]++] = r;
+			}
+		}
+
+		lexiconTag = new int[lexicalByWord.length];
+		lexiconScore = new double[lexicalByWord.length];
+
+		for( int i = 0; i < lexicalByWord.length; i++ ){
+			lexiconTag[i] = grammar.getLexicalTag(lexicalByWord[i]);
+			lexiconScore[i] = grammar.getLexicalScore(lexicalByWord[i]);
+		}
+
+		// the binary rules, with a counting sort by right child and then a stable one by left child
+		int[] rightStart = new int[numSymbols + 1];
+		boolean countLeft = compiled == null || !allRules;
+		binaryStart = countLeft ? new int[numSymbols + 1] : compiled.binaryByLeftStarts();
+
+		for( int r = 0; r < grammar.numBinaryRules(); r++ ){
+			if( grammar.getBinaryScore(r) >= minScore ){
+				rightStart[grammar.getBinaryRight(r) + 1]++;
+
+				if( countLeft ){
+					binaryStart[grammar.getBinaryLeft(r) + 1]++;
+				}
+			}
+		}
+
+		prefixSum(rightStart);
+
+		if( countLeft ){
+			prefixSum(binaryStart);
+		}
+
+		int numBinary = binaryStart[numSymbols];
+		int[] rulesByRight = new int[numBinary];
+		int[] next = Arrays.copyOf(rightStart, numSymbols);
+
+		for( int r = 0; r < grammar.numBinaryRules(); r++ ){
+			if( grammar.getBinaryScore(r) >= minScore ){
+				rulesByRight[next[grammar.getBinaryRight(r)]++] = r;
+			}
+		}
+
+		binaryRule = new int[numBinary];
+		binaryLeft = new int[numBinary];
+		binaryRight = new int[numBinary];
+		binaryParent = new int[numBinary];
+		binaryScore = new double[numBinary];
+		next = Arrays.copyOf(binaryStart, numSymbols);
+
+		for( int r: rulesByRight ){
+			int i = next[grammar.getBinaryLeft(r)]++;
+			binaryRule[i] = r;
+			binaryLeft[i] = grammar.getBinaryLeft(r);
+			binaryRight[i] = grammar.getBinaryRight(r);
+			binaryParent[i] = grammar.getBinaryParent(r);
+			binaryScore[i] = grammar.getBinaryScore(r);
+		}
+
+		// the runs of rules with the same children
+		pairStart = new int[numSymbols + 1];
+		int numPairs = 0;
+
+		for( int i = 0; i < numBinary; i++ ){
+			if( i == 0 || binaryLeft[i] != binaryLeft[i-1] || binaryRight[i] != binaryRight[i-1] ){
+				pairStart[binaryLeft[i] + 1]++;
+				numPairs++;
+			}
+		}
+
+		prefixSum(pairStart);
+		pairRight = new int[numPairs];
+		pairRuleStart = new int[numPairs + 1];
+		int pair = 0;
+
+		for( int i = 0; i < numBinary; i++ ){
+			if( i == 0 || binaryLeft[i] != binaryLeft[i-1] || binaryRight[i] != binaryRight[i-1] ){
+				pairRight[pair] = binaryRight[i];
+				pairRuleStart[pair] = i;
+				pair++;
+			}
+		}
+
+		pairRuleStart[numPairs] = numBinary;
+
+		// the same rules by right child
+		byRightStart = new int[numSymbols + 1];
+
+		for( int i = 0; i < numBinary; i++ ){
+			byRightStart[binaryRight[i] + 1]++;
+		}
+
+		prefixSum(byRightStart);
+		byRight = new int[numBinary];
+		next = Arrays.copyOf(byRightStart, numSymbols);
+
+		for( int i = 0; i < numBinary; i++ ){
+			byRight[next[binaryRight[i]]++] = i;
+		}
+
+		// and by parent
+		byParentStart = new int[numSymbols + 1];
+
+		for( int i = 0; i < numBinary; i++ ){
+			byParentStart[binaryParent[i] + 1]++;
+		}
+
+		prefixSum(byParentStart);
+		byParent = new int[numBinary];
+		next = Arrays.copyOf(byParentStart, numSymbols);
+
+		for( int i = 0; i < numBinary; i++ ){
+			byParent[next[binaryParent[i]]++] = i;
+		}
+
+		closureStart = new int[numSymbols + 1];
+		closureByParentStart = new int[numSymbols + 1];
+		buildClosure(minScore, allRules ? compiled : null);
+	}
+
+	/**
+	 * Get the grammar
+	 *
+	 * @return the grammar that is indexed
+	 */
+	public Grammar getGrammar(){
+		return grammar;
+	}
+
+	/**
+	 * Get the offset of the first tag of a word in the lexicon.  The tags of word are at offsets
+	 * lexiconStart(word) up to lexiconStart(word+1).
+	 *
+	 * @param word the word id
+	 * @return the offset of the first tag of the word
+	 */
+	public int lexiconStart(int word){
+		return lexiconStart[word];
+	}
+
+	/**
+	 * Get a tag in the lexicon
+	 *
+	 * @param index the offset in the lexicon
+	 * @return the tag symbol id
+	 */
+	public int getLexiconTag(int index){
+		return lexiconTag[index];
+	}
+
+	/**
+	 * Get the score of a tag in the lexicon
+	 *
+	 * @param index the offset in the lexicon
+	 * @return the log probability of the word given the tag
+	 */
+	public double getLexiconScore(int index){
+		return lexiconScore[index];
+	}
+
+	/**
+	 * Get the offset of the first binary rule with a left child.  The rules are at offsets
+	 * binaryStart(left) up to binaryStart(left+1).
+	 *
+	 * @param left the left child symbol id
+	 * @return the offset of the first rule with the left child
+	 */
+	public int binaryStart(int left){
+		return binaryStart[left];
+	}
+
+	/**
+	 * Get the grammar rule id of an indexed binary rule
+	 *
+	 * @param index the offset of the rule
+	 * @return the rule id in the grammar
+	 */
+	public int getBinaryRule(int index){
+		return binaryRule[index];
+	}
+
+	/**
+	 * Get the left child of an indexed binary rule
+	 *
+	 * @param index the offset of the rule
+	 * @return the left child symbol id
+	 */
+	public int getBinaryLeft(int index){
+		return binaryLeft[index];
+	}
+
+	/**
+	 * Get the right child of an indexed binary rule
+	 *
+	 * @param index the offset of the rule
+	 * @return the right child symbol id
+	 */
+	public int getBinaryRight(int index){
+		return binaryRight[index];
+	}
+
+	/**
+	 * Get the parent of an indexed binary rule
+	 *
+	 * @param index the offset of the rule
+	 * @return the parent symbol id
+	 */
+	public int getBinaryParent(int index){
+		return binaryParent[index];
+	}
+
+	/**
+	 * Get the score of an indexed binary rule
+	 *
+	 * @param index the offset of the rule
+	 * @return the log probability of the rule
+	 */
+	public double getBinaryScore(int index){
+		return binaryScore[index];
+	}
+
+	/**
+	 * Get the position of the first binary rule with a right child.  The offsets (in the binary
+	 * arrays) of the rules are getBinaryByRight(x) for x from binaryByRightStart(right) up to
+	 * binaryByRightStart(right+1).
+	 *
+	 * @param right the right child symbol id
+	 * @return the position of the first rule with the right child
+	 */
+	public int binaryByRightStart(int right){
+		return byRightStart[right];
+	}
+
+	/**
+	 * Get the offset of a binary rule by its position in the rules by right child
+	 *
+	 * @param x the position in the rules by right child
+	 * @return the offset of the rule in the binary arrays
+	 */
+	public int getBinaryByRight(int x){
+		return byRight[x];
+	}
+
+	/**
+	 * Get the position of the first binary rule with a parent.  The offsets (in the binary arrays)
+	 * of the rules are getBinaryByParent(x) for x from binaryByParentStart(parent) up to
+	 * binaryByParentStart(parent+1).
+	 *
+	 * @param parent the parent symbol id
+	 * @return the position of the first rule with the parent
+	 */
+	public int binaryByParentStart(int parent){
+		return byParentStart[parent];
+	}
+
+	/**
+	 * Get the offset of a binary rule by its position in the rules by parent
+	 *
+	 * @param x the position in the rules by parent
+	 * @return the offset of the rule in the binary arrays
+	 */
+	public int getBinaryByParent(int x){
+		return byParent[x];
+	}
+
+	/**
+	 * Get the first (left child, right child) pair of the binary rules with a left child.  The
+	 * pairs are pairStart(left) up to pairStart(left+1), by right child.
+	 *
+	 * @param left the left child symbol id
+	 * @return the first pair with the left child
+	 */
+	public int pairStart(int left){
+		return pairStart[left];
+	}
+
+	/**
+	 * Get the right child of a pair
+	 *
+	 * @param pair the pair
+	 * @return the right child symbol id
+	 */
+	public int getPairRight(int pair){
+		return pairRight[pair];
+	}
+
+	/**
+	 * Get the offset of the first binary rule of a pair.  The rules with the children of the pair
+	 * are at offsets pairRuleStart(pair) up to pairRuleStart(pair+1).
+	 *
+	 * @param pair the pair
+	 * @return the offset of the first rule of the pair
+	 */
+	public int pairRuleStart(int pair){
+		return pairRuleStart[pair];
+	}
+
+	// the binary arrays themselves, for the vectorized ChartKernel
+
+	int[] binaryRules(){
+		return binaryRule;
+	}
+
+	int[] binaryParents(){
+		return binaryParent;
+	}
+
+	double[] binaryScores(){
+		return binaryScore;
+	}
+
+	/**
+	 * Get the offset of the first closure entry for a child.  The entries are at offsets
+	 * closureStart(child) up to closureStart(child+1).
+	 *
+	 * @param child the child symbol id
+	 * @return the offset of the first closure entry with the child
+	 */
+	public int closureStart(int child){
+		return closureStart[child];
+	}
+
+	/**
+	 * Get the position of the first closure entry with a parent.  The entries are
+	 * getClosureByParent(x) for x from closureByParentStart(parent) up to
+	 * closureByParentStart(parent+1), by child.
+	 *
+	 * @param parent the parent symbol id
+	 * @return the position of the first closure entry with the parent
+	 */
+	public int closureByParentStart(int parent){
+		return closureByParentStart[parent];
+	}
+
+	/**
+	 * Get a closure entry by its position in the entries by parent
+	 *
+	 * @param x the position in the entries by parent
+	 * @return the closure entry
+	 */
+	public int getClosureByParent(int x){
+		return closureByParent[x];
+	}
+
+	/**
+	 * Get the parent of a closure entry
+	 *
+	 * @param entry the closure entry
+	 * @return the symbol at the top of the chain
+	 */
+	public int getClosureParent(int entry){
+		return closureParent[entry];
+	}
+
+	/**
+	 * Get the child of a closure entry
+	 *
+	 * @param entry the closure entry
+	 * @return the symbol at the bottom of the chain
+	 */
+	public int getClosureChild(int entry){
+		return closureChild[entry];
+	}
+
+	/**
+	 * Get the score of a closure entry
+	 *
+	 * @param entry the closure entry
+	 * @return the log probability of the best chain from the parent to the child
+	 */
+	public double getClosureScore(int entry){
+		return closureScore[entry];
+	}
+
+	/**
+	 * Get the first step of the best chain of a closure entry
+	 *
+	 * @param entry the closure entry
+	 * @return the child of the first unary rule of the chain
+	 */
+	public int getClosureVia(int entry){
+		return closureVia[entry];
+	}
+
+	/**
+	 * Get the rest of the best chain of a closure entry
+	 *
+	 * @param entry the closure entry
+	 * @return the closure entry from the via symbol to the child, or -1 if the chain is one rule
+	 */
+	public int getClosureNext(int entry){
+		return closureNext[entry];
+	}
+
+	/**
+	 * The number of entries in the unary closure
+	 *
+	 * @return the number of (parent, child) pairs with a unary chain
+	 */
+	public int numClosureEntries(){
+		return numClosure;
+	}
+
+	/**
+	 * Find the best unary chain from every symbol to every other symbol, one child at a time,
+	 * by relaxing the unary rules up from the child until no chain improves.  The unary rules by
+	 * child are taken from compiled if it isn't null.
+	 */
+	private void buildClosure(double minScore, CompiledGrammar compiled){
+		// the unary rules by child
+		int[] unaryStart;
+		int[] unaryRules;
+
+		if( compiled != null ){
+			unaryStart = compiled.unaryByChildStarts();
+			unaryRules = compiled.unaryByChildren();
+		}else{
+			unaryStart = new int[numSymbols + 1];
+
+			for( int r = 0; r < grammar.numUnaryRules(); r++ ){
+				if( grammar.getUnaryScore(r) >= minScore ){
+					unaryStart[grammar.getUnaryChild(r) + 1]++;
+				}
+			}
+
+			prefixSum(unaryStart);
+			unaryRules = new int[unaryStart[numSymbols]];
+			int[] next = Arrays.copyOf(unaryStart, numSymbols);
+
+			for( int r = 0; r < grammar.numUnaryRules(); r++ ){
+				if( grammar.getUnaryScore(r) >= minScore ){
+					unaryRules[next[grammar.getUnaryChild(r)]++] = r;
+				}
+			}
+		}
+
+		closureParent = new int[16];
+		closureChild = new int[16];
+		closureScore = new double[16];
+		closureVia = new int[16];
+		closureNext = new int[16];
+
+		double[] best = new double[numSymbols]; // symbol -> the best chain from it down to the child
+		int[] via = new int[numSymbols];
+		boolean[] queued = new boolean[numSymbols];
+		int[] queue = new int[numSymbols]; // a circular queue of the symbols whose chains improved
+		int[] reached = new int[numSymbols]; // the symbols with a chain to the child
+		Arrays.fill(best, NONE);
+
+		for( int child = 0; child < numSymbols; child++ ){
+			closureStart[child] = numClosure;
+			int numReached = 0;
+			int head = 0;
+			int size = 1;
+			queue[0] = child;
+			best[child] = 0.0;
+
+			while( size > 0 ){
+				int symbol = queue[head];
+				head = (head + 1) % numSymbols;
+				size--;
+				queued[symbol] = false;
+
+				for( int x = unaryStart[symbol]; x < unaryStart[symbol+1]; x++ ){
+					int r = unaryRules[x];
+					int parent = grammar.getUnaryParent(r);
+					double s = best[symbol] + grammar.getUnaryScore(r);
+
+					if( parent != child && s > best[parent] ){
+						if( best[parent] == NONE ){
+							reached[numReached++] = parent;
+						}
+
+						best[parent] = s;
+						via[parent] = symbol;
+
+						if( !queued[parent] ){
+							queued[parent] = true;
+							queue[(head + size) % numSymbols] = parent;
+							size++;
+						}
+					}
+				}
+			}
+
+			// the entries of the child, by parent
+			Arrays.sort(reached, 0, numReached);
+
+			for( int i = 0; i < numReached; i++ ){
+				int parent = reached[i];
+				addClosure(parent, child, best[parent], via[parent]);
+				best[parent] = NONE;
+			}
+
+			best[child] = NONE;
+		}
+
+		closureStart[numSymbols] = numClosure;
+
+		// link every chain to the rest of it
+		for( int e = 0; e < numClosure; e++ ){
+			closureNext[e] = closureVia[e] == closureChild[e] ? -1 : findClosure(closureVia[e], closureChild[e]);
+		}
+
+		// the entries by parent
+		for( int e = 0; e < numClosure; e++ ){
+			closureByParentStart[closureParent[e] + 1]++;
+		}
+
+		prefixSum(closureByParentStart);
+		closureByParent = new int[numClosure];
+		int[] next = Arrays.copyOf(closureByParentStart, numSymbols);
+
+		for( int e = 0; e < numClosure; e++ ){
+			closureByParent[next[closureParent[e]]++] = e;
+		}
+	}
+
+	private void addClosure(int parent, int child, double score, int via){
+		if( numClosure == closureParent.length ){
+			int capacity = 2 * numClosure;
+			closureParent = Arrays.copyOf(closureParent, capacity);
+			closureChild = Arrays.copyOf(closureChild, capacity);
+			closureScore = Arrays.copyOf(closureScore, capacity);
+			closureVia = Arrays.copyOf(closureVia, capacity);
+			closureNext = Arrays.copyOf(closureNext, capacity);
+		}
+
+		closureParent[numClosure] = parent;
+		closureChild[numClosure] = child;
+		closureScore[numClosure] = score;
+		closureVia[numClosure] = via;
+		numClosure++;
+	}
+
+	/**
+	 * Find the closure entry from parent to child, whose entries are sorted by parent
+	 */
+	private int findClosure(int parent, int child){
+		int low = closureStart[child];
+		int high = closureStart[child+1] - 1;
+
+		while( low <= high ){
+			int mid = (low + high) >>> 1;
+
+			if( closureParent[mid] < parent ){
+				low = mid + 1;
+			}else if( closureParent[mid] > parent ){
+				high = mid - 1;
+			}else{
+				return mid;
+			}
+		}
+
+		throw new RuntimeException("No unary chain from " + parent + " to " + child);
+	}
+
+	/**
+	 * Turn counts at offsets 1.. into the offsets of the first element of each bucket
+	 */
+	private static void prefixSum(int[] start){
+		for( int i = 1; i < start.length; i++ ){
+			start[i] += start[i-1];
+		}
+	}
+}
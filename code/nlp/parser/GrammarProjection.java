@@ -0,0 +1,239 @@
+package nlp.parser;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A coarser version of a binarized grammar, made by mapping its symbols onto clusters: every
+ * rule of the fine grammar becomes the rule over the clusters of its symbols, and the rules that
+ * end up the same are merged.  The weight of a coarse rule is the weighted average of the weights
+ * of the fine rules that were merged into it, where each fine LHS counts as much as the number of
+ * times it's expected to occur in a parse, so the coarse grammar is a proper PCFG again, and the
+ * probability of a coarse tree is close to the sum of the probabilities of the fine trees that
+ * map onto it (Petrov and Klein 2007, "Improved Inference for Unlexicalized Parsing").
+ *
+ * The expected counts are worked out from the grammar itself, starting from one start symbol
+ * and following the rules down until the counts stop changing.  The symbols that can't be
+ * reached from the start symbol count the same as each other.
+ *
+ * Projections can be stacked, by projecting the coarse grammar of one projection again, and
+ * CoarseToFineParser uses a stack of them to prune its chart.
+ *
+ */
+public class GrammarProjection {
+	private static final String INTERMEDIATE = Grammar.INTERMEDIATE_PREFIX; // the cluster of the intermediate symbols of the binarization
+	private static final String PUNCTUATION = "PUNC"; // the cluster of the tags without letters
+	private static final int MAX_ITERATIONS = 1000; // the most passes over the rules for the expected counts
+	private static final double EPSILON = 1e-9; // the expected counts are done when they change by less than this
+
+	private final Grammar fine;
+	private final Grammar coarse;
+	private final int[] map; // fine symbol id -> coarse symbol id
+
+	/**
+	 * Project a grammar
+	 *
+	 * @param fine the binarized grammar
+	 * @param startSymbol the label of the root of every parse, which should be its own cluster
+	 * @param cluster maps the label of a fine symbol to the label of its coarse symbol
+	 */
+	public GrammarProjection(Grammar fine, String startSymbol, Function<String, String> cluster){
+		this.fine = fine;
+		int numSymbols = fine.numSymbols();
+		SymbolTable symbols = fine.getSymbols();
+		int start = symbols.getId(startSymbol);
+
+		if( start == -1 ){
+			throw new RuntimeException("Start symbol not in grammar: " + startSymbol);
+		}
+
+		// the name of the cluster of each fine symbol, and how much each fine symbol counts
+		String[] names = new String[numSymbols];
+		double[] count = expectedCounts(fine, start);
+		Map<String, Double> total = new LinkedHashMap<String, Double>();
+
+		for( int a = 0; a < numSymbols; a++ ){
+			names[a] = cluster.apply(symbols.getSymbol(a));
+			total.merge(names[a], count[a], Double::sum);
+		}
+
+		for( int a = 0; a < numSymbols; a++ ){
+			if( total.get(names[a]) == 0 ){
+				count[a] = 1.0;
+			}
+		}
+
+		total.clear();
+
+		for( int a = 0; a < numSymbols; a++ ){
+			total.merge(names[a], count[a], Double::sum);
+		}
+
+		// the coarse rules, with the sum of the counts of the fine rules merged into each
+		Map<GrammarRule, Double> rules = new LinkedHashMap<GrammarRule, Double>();
+
+		for( int r = 0; r < fine.numBinaryRules(); r++ ){
+			int parent = fine.getBinaryParent(r);
+			GrammarRule rule = new GrammarRule(names[parent], names(names[fine.getBinaryLeft(r)], names[fine.getBinaryRight(r)]), false);
+			rules.merge(rule, count[parent] * Math.exp(fine.getBinaryScore(r)), Double::sum);
+		}
+
+		for( int r = 0; r < fine.numUnaryRules(); r++ ){
+			int parent = fine.getUnaryParent(r);
+			GrammarRule rule = new GrammarRule(names[parent], names(names[fine.getUnaryChild(r)]), false);
+			rules.merge(rule, count[parent] * Math.exp(fine.getUnaryScore(r)), Double::sum);
+		}
+
+		for( int r = 0; r < fine.numLexicalRules(); r++ ){
+			int tag = fine.getLexicalTag(r);
+			GrammarRule rule = new GrammarRule(names[tag], names(fine.getWords().getSymbol(fine.getLexicalWord(r))), true);
+			rules.merge(rule, count[tag] * Math.exp(fine.getLexicalScore(r)), Double::sum);
+		}
+
+		ArrayList<GrammarRule> weighted = new ArrayList<GrammarRule>(rules.size());
+
+		for( Map.Entry<GrammarRule, Double> entry: rules.entrySet() ){
+			GrammarRule rule = entry.getKey();
+			rule.setWeight(entry.getValue() / total.get(rule.getLhs()));
+			weighted.add(rule);
+		}
+
+		coarse = new Grammar(weighted);
+		map = new int[numSymbols];
+
+		for( int a = 0; a < numSymbols; a++ ){
+			map[a] = coarse.getSymbols().getId(names[a]);
+		}
+	}
+
+	/**
+	 * Project the intermediate symbols of the binarization (@X1, @X2, ...) onto one symbol @X
+	 *
+	 * @param fine the binarized grammar
+	 * @param startSymbol the label of the root of every parse
+	 * @return the projection
+	 */
+	public static GrammarProjection collapseIntermediates(Grammar fine, String startSymbol){
+		boolean[] intermediate = new boolean[fine.numSymbols()];
+
+		for( int a = 0; a < intermediate.length; a++ ){
+			intermediate[a] = fine.isIntermediate(a);
+		}
+
+		return new GrammarProjection(fine, startSymbol,
+				label -> intermediate[fine.getSymbols().getId(label)] ? INTERMEDIATE : label);
+	}
+
+	/**
+	 * Project the intermediate symbols onto @X, and the part of speech tags onto their families:
+	 * the tags with letters onto their first two letters (NN, NNS, NNP and NNPS onto NN, VB, VBD,
+	 * ... onto VB) and the punctuation tags onto PUNC.  The phrasal symbols stay the same.
+	 *
+	 * @param fine the binarized grammar
+	 * @param startSymbol the label of the root of every parse
+	 * @return the projection
+	 */
+	public static GrammarProjection collapseTagFamilies(Grammar fine, String startSymbol){
+		boolean[] tag = new boolean[fine.numSymbols()];
+
+		for( int r = 0; r < fine.numLexicalRules(); r++ ){
+			tag[fine.getLexicalTag(r)] = true;
+		}
+
+		return new GrammarProjection(fine, startSymbol, label -> {
+			int a = fine.getSymbols().getId(label);
+
+			if( fine.isIntermediate(a) ){
+				return INTERMEDIATE;
+			}else if( !tag[a] || label.equals(startSymbol) ){
+				return label;
+			}else if( !Character.isLetter(label.charAt(0)) ){
+				return PUNCTUATION;
+			}else{
+				return label.substring(0, Math.min(2, label.length()));
+			}
+		});
+	}
+
+	/**
+	 * Get the grammar that was projected
+	 *
+	 * @return the fine grammar
+	 */
+	public Grammar getFineGrammar(){
+		return fine;
+	}
+
+	/**
+	 * Get the projected grammar
+	 *
+	 * @return the coarse grammar
+	 */
+	public Grammar getCoarseGrammar(){
+		return coarse;
+	}
+
+	/**
+	 * Get the coarse symbol of a fine symbol
+	 *
+	 * @param symbol the id of a symbol of the fine grammar
+	 * @return the id of its cluster in the coarse grammar
+	 */
+	public int project(int symbol){
+		return map[symbol];
+	}
+
+	public String toString(){
+		return fine.numSymbols() + " symbols onto " + coarse.numSymbols() + ", "
+				+ (fine.numBinaryRules() + fine.numUnaryRules()) + " rules onto " + (coarse.numBinaryRules() + coarse.numUnaryRules());
+	}
+
+	/**
+	 * The expected number of times each symbol occurs in a parse: 1 for the start symbol, plus
+	 * for every rule the expected count of its LHS times its weight, for each of its RHS symbols.
+	 * The sums are iterated from the start symbol down until they settle.
+	 */
+	private static double[] expectedCounts(Grammar grammar, int start){
+		int numSymbols = grammar.numSymbols();
+		double[] count = new double[numSymbols];
+		double[] next = new double[numSymbols];
+		count[start] = 1.0;
+
+		for( int iteration = 0; iteration < MAX_ITERATIONS; iteration++ ){
+			Arrays.fill(next, 0.0);
+			next[start] = 1.0;
+
+			for( int r = 0; r < grammar.numBinaryRules(); r++ ){
+				double c = count[grammar.getBinaryParent(r)] * Math.exp(grammar.getBinaryScore(r));
+				next[grammar.getBinaryLeft(r)] += c;
+				next[grammar.getBinaryRight(r)] += c;
+			}
+
+			for( int r = 0; r < grammar.numUnaryRules(); r++ ){
+				next[grammar.getUnaryChild(r)] += count[grammar.getUnaryParent(r)] * Math.exp(grammar.getUnaryScore(r));
+			}
+
+			double change = 0.0;
+
+			for( int a = 0; a < numSymbols; a++ ){
+				change = Math.max(change, Math.abs(next[a] - count[a]) / Math.max(1.0, next[a]));
+			}
+
+			double[] swap = count;
+			count = next;
+			next = swap;
+
+			if( change < EPSILON ){
+				break;
+			}
+		}
+
+		return count;
+	}
+
+	private static ArrayList<String> names(String... names){
+		return new ArrayList<String>(Arrays.asList(names));
+	}
+}
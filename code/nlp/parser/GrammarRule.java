@@ -183,19 +183,32 @@ public class GrammarRule {
 	}
 	
 	/**
-	 * The hashcode utilizes the String's hashcode method.
+	 * The hashcode is computed element-wise, so that hashing doesn't have to build the String
+	 * representation.
 	 */
 	public int hashCode(){
-		return toString().hashCode();
+		int hash = lhs.hashCode();
+		hash = 31 * hash + rhs.hashCode();
+		hash = 31 * hash + (lexical ? 1 : 0);
+		hash = 31 * hash + Double.hashCode(weight);
+		
+		return hash;
 	}
 
 	/**
-	 * Checks if this rule is equal to another object (most frequently another PCFGRule).  Again
-	 * We'll use string equality, though the results would be the same if we did it element-wise.
+	 * Checks if this rule is equal to another object (most frequently another PCFGRule): the LHS,
+	 * the list of RHS symbols, the lexical flag and the weight are compared.  This is not the same
+	 * as comparing the String representations, which can't tell apart e.g. an RHS symbol with a
+	 * space in it from two symbols.
 	 */
 	public boolean equals(Object o){
 		if( o instanceof GrammarRule ){
-			return toString().equals(((GrammarRule)o).toString());
+			GrammarRule other = (GrammarRule)o;
+			
+			return lexical == other.lexical &&
+				Double.compare(weight, other.weight) == 0 &&
+				lhs.equals(other.lhs) &&
+				rhs.equals(other.rhs);
 		}else{
 			return false;
 		}
@@ -0,0 +1,69 @@
+package nlp.parser;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Where the rules of a grammar are written to, one rule at a time, e.g. by
+ * ConstructPCFG.writeRules().  The symbols of a rule are ids from a SymbolTable, so writing a
+ * rule doesn't need to build a GrammarRule; all of the rules written to a sink must use the same
+ * symbol table.
+ *
+ * There are sinks for the text format read by GrammarRule(String) (TextGrammarSink) and for a
+ * compact binary format (BinaryGrammarSink), either of which can be gzipped.  Grammar(String)
+ * reads all of them.
+ *
+ */
+public interface GrammarSink extends Closeable {
+	/**
+	 * Write a rule
+	 *
+	 * @param symbols the symbol table of the ids
+	 * @param lhs the LHS symbol id
+	 * @param rhs the RHS symbol ids (only the first rhsLength are used)
+	 * @param rhsLength the number of RHS symbols
+	 * @param lexical whether this is a lexical rule
+	 * @param weight the weight of the rule
+	 * @throws IOException if the rule can't be written
+	 */
+	void write(SymbolTable symbols, int lhs, int[] rhs, int rhsLength, boolean lexical, double weight) throws IOException;
+
+	/**
+	 * Open a sink that writes to a file.  Files ending in .pcfgb (or .pcfgb.gz) get the binary
+	 * format, others the text format, and files ending in .gz are gzipped.
+	 *
+	 * @param path the file
+	 * @return the sink, which has to be closed
+	 * @throws IOException if the file can't be opened
+	 */
+	static GrammarSink open(Path path) throws IOException{
+		String name = path.getFileName().toString();
+		boolean gzip = name.endsWith(".gz");
+
+		if( gzip ){
+			name = name.substring(0, name.length() - ".gz".length());
+		}
+
+		return open(Files.newOutputStream(path), name.endsWith(".pcfgb"), gzip);
+	}
+
+	/**
+	 * Open a sink that writes to a stream
+	 *
+	 * @param out the stream, which is closed when the sink is closed
+	 * @param binary whether to write the binary format instead of the text format
+	 * @param gzip whether to gzip the output
+	 * @return the sink, which has to be closed
+	 * @throws IOException if the stream can't be written to
+	 */
+	static GrammarSink open(OutputStream out, boolean binary, boolean gzip) throws IOException{
+		OutputStream stream = gzip ? new GZIPOutputStream(out, 1 << 16) : out;
+		stream = new BufferedOutputStream(stream, 1 << 16);
+
+		return binary ? new BinaryGrammarSink(stream) : new TextGrammarSink(stream);
+	}
+}
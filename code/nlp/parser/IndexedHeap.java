@@ -0,0 +1,181 @@
+package nlp.parser;
+import java.util.Arrays;
+
+/**
+ * A priority queue of int ids with double priorities, highest priority first, kept in primitive
+ * arrays: a binary heap of ids and, for every id, its position in the heap.  The position makes
+ * it possible to raise the priority of an id that is already in the queue, instead of adding it
+ * again.  The ids go from 0 up to the capacity.
+ *
+ * An indexed heap is not thread safe.
+ *
+ */
+public class IndexedHeap {
+	private static final int ABSENT = -1; // the position of an id that isn't in the heap
+
+	private int[] heap = new int[16]; // the ids, as a binary heap
+	private double[] priorities = new double[16]; // the priority of the id at each heap position
+	private int[] positions; // id -> its position in the heap, or ABSENT
+	private int size = 0;
+
+	/**
+	 * Create an empty queue
+	 *
+	 * @param capacity one more than the largest id
+	 */
+	public IndexedHeap(int capacity){
+		positions = new int[capacity];
+		Arrays.fill(positions, ABSENT);
+	}
+
+	/**
+	 * Make room for more ids
+	 *
+	 * @param capacity one more than the largest id
+	 */
+	public void ensureCapacity(int capacity){
+		if( capacity > positions.length ){
+			int old = positions.length;
+			positions = Arrays.copyOf(positions, capacity);
+			Arrays.fill(positions, old, capacity, ABSENT);
+		}
+	}
+
+	/**
+	 * Add an id, or raise its priority if it's already in the queue with a lower one
+	 *
+	 * @param id the id
+	 * @param priority its priority
+	 */
+	public void push(int id, double priority){
+		int position = positions[id];
+
+		if( position == ABSENT ){
+			if( size == heap.length ){
+				heap = Arrays.copyOf(heap, 2 * size);
+				priorities = Arrays.copyOf(priorities, 2 * size);
+			}
+
+			position = size++;
+		}else if( priority <= priorities[position] ){
+			return;
+		}
+
+		siftUp(position, id, priority);
+	}
+
+	/**
+	 * Remove the id with the highest priority
+	 *
+	 * @return the id
+	 */
+	public int pop(){
+		int top = heap[0];
+		positions[top] = ABSENT;
+		size--;
+
+		if( size > 0 ){
+			siftDown(0, heap[size], priorities[size]);
+		}
+
+		return top;
+	}
+
+	/**
+	 * Get the highest priority
+	 *
+	 * @return the priority of the id pop() would return
+	 */
+	public double peekPriority(){
+		return priorities[0];
+	}
+
+	/**
+	 * Checks if an id is in the queue
+	 *
+	 * @param id the id
+	 * @return whether the id is in the queue
+	 */
+	public boolean contains(int id){
+		return positions[id] != ABSENT;
+	}
+
+	/**
+	 * Checks if the queue is empty
+	 *
+	 * @return whether there are no ids in the queue
+	 */
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	/**
+	 * Get the number of ids in the queue
+	 *
+	 * @return the number of ids
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Remove all of the ids, in time proportional to their number
+	 */
+	public void clear(){
+		for( int i = 0; i < size; i++ ){
+			positions[heap[i]] = ABSENT;
+		}
+
+		size = 0;
+	}
+
+	/**
+	 * Move an id up from a position until its parent has at least its priority
+	 */
+	private void siftUp(int position, int id, double priority){
+		while( position > 0 ){
+			int parent = (position - 1) >>> 1;
+
+			if( priorities[parent] >= priority ){
+				break;
+			}
+
+			place(position, heap[parent], priorities[parent]);
+			position = parent;
+		}
+
+		place(position, id, priority);
+	}
+
+	/**
+	 * Move an id down from a position until both of its children have at most its priority
+	 */
+	private void siftDown(int position, int id, double priority){
+		while( true ){
+			int child = 2 * position + 1;
+
+			if( child >= size ){
+				break;
+			}
+
+			if( child + 1 < size && priorities[child + 1] > priorities[child] ){
+				child++;
+			}
+
+			if( priorities[child] <= priority ){
+				break;
+			}
+
+			place(position, heap[child], priorities[child]);
+			position = child;
+		}
+
+		place(position, id, priority);
+	}
+
+	private void place(int position, int id, double priority){
+		heap[position] = id;
+		priorities[position] = priority;
+		positions[id] = position;
+	}
+}
@@ -0,0 +1,482 @@
+package nlp.parser;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-estimates the weights of a binarized grammar from sentences without trees, with the
+ * inside-outside algorithm (EM).  Each iteration computes the expected number of times each rule
+ * is used in the parses of the sentences under the current weights (the E-step), and then sets
+ * the weight of each rule to its expected count over the expected count of its LHS (the M-step),
+ * which never lowers the likelihood of the sentences.  The rules of the grammar stay the same;
+ * only their weights change.
+ *
+ * The E-step runs on a pool of worker threads, each with its own chart and its own expected
+ * counts, which are added up at the end of the iteration.  The sentences are handed out longest
+ * first, as in BatchParser.
+ *
+ * The chart of a worker is a ScaledChart: it holds probabilities scaled per cell rather than log
+ * probabilities, so that the inside and outside sums are plain additions, and applies the unary
+ * rules through the sum over the unary chains, which is rebuilt from the new weights after every
+ * iteration.  Sentences that can't be parsed don't count towards the likelihood or the expected
+ * counts.
+ *
+ * Close the trainer to stop its workers.
+ *
+ */
+public class InsideOutside implements AutoCloseable {
+	private static final double NONE = ScaledChart.NONE;
+
+	private final Grammar grammar;
+	private final int numSymbols;
+	private final int start; // the id of the start symbol
+	private final ForkJoinPool pool;
+	private final Worker[] workers;
+	private int lengthLimit = Integer.MAX_VALUE; // longer sentences are skipped
+
+	// the current weights, indexed like the rules of the grammar, and the closure of the unary
+	// rules, which the charts of the workers share
+	private final ScaledChart.Rules rules;
+	private final double[] binaryWeight;
+	private final double[] unaryWeight;
+	private final double[] lexicalWeight;
+
+	// the statistics of the last iteration
+	private int iteration = 0;
+	private double logLikelihood = NONE;
+	private int numParsed = 0;
+	private int numSentences = 0;
+	private long time = 0; // in nanoseconds
+
+	/**
+	 * Create a trainer that starts from the weights of a grammar
+	 *
+	 * @param grammar the binarized grammar
+	 * @param startSymbol the label of the root of every parse
+	 * @param numThreads the number of workers
+	 */
+	public InsideOutside(Grammar grammar, String startSymbol, int numThreads){
+		if( numThreads < 1 ){
+			throw new RuntimeException("Need at least one thread: " + numThreads);
+		}
+
+		this.grammar = grammar;
+		this.numSymbols = grammar.numSymbols();
+		this.start = grammar.getSymbols().getId(startSymbol);
+
+		if( start == -1 ){
+			throw new RuntimeException("Start symbol not in grammar: " + startSymbol);
+		}
+
+		rules = new ScaledChart.Rules(grammar);
+		binaryWeight = rules.binaryWeight;
+		unaryWeight = rules.unaryWeight;
+		lexicalWeight = rules.lexicalWeight;
+
+		pool = new ForkJoinPool(numThreads);
+		workers = new Worker[numThreads];
+
+		for( int i = 0; i < numThreads; i++ ){
+			workers[i] = new Worker();
+		}
+	}
+
+	/**
+	 * Skip the sentences that are longer than a limit, e.g. to bound the memory of the charts
+	 *
+	 * @param lengthLimit the longest sentence that is used
+	 */
+	public void setLengthLimit(int lengthLimit){
+		this.lengthLimit = lengthLimit;
+	}
+
+	/**
+	 * Run one iteration of EM: compute the expected rule counts for the sentences and re-estimate
+	 * the weights from them
+	 *
+	 * @param sentences the sentences of space separated words
+	 * @return the log likelihood of the sentences that could be parsed, under the weights before
+	 *   this iteration
+	 */
+	public double iterate(List<String> sentences){
+		long startTime = System.nanoTime();
+		String[][] words = new String[sentences.size()][];
+
+		for( int i = 0; i < words.length; i++ ){
+			words[i] = sentences.get(i).trim().split("\\s+");
+		}
+
+		int[] order = BatchParser.longestFirst(words);
+		AtomicInteger next = new AtomicInteger(); // the next position in order to use
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(workers.length);
+
+		for( Worker worker: workers ){
+			tasks.add(() -> {
+				for( int i = next.getAndIncrement(); i < order.length; i = next.getAndIncrement() ){
+					if( words[order[i]].length <= lengthLimit ){
+						worker.expect(words[order[i]]);
+					}
+				}
+
+				return null;
+			});
+		}
+
+		try{
+			for( Future<Void> task: pool.invokeAll(tasks) ){
+				task.get();
+			}
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while computing expected counts", e);
+		}catch( ExecutionException e ){
+			throw new RuntimeException("Failed to compute expected counts", e.getCause());
+		}
+
+		maximize();
+
+		iteration++;
+		numSentences = words.length;
+		time = System.nanoTime() - startTime;
+
+		return logLikelihood;
+	}
+
+	/**
+	 * Stop the workers
+	 */
+	public void close(){
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Get the log likelihood of the sentences of the last iteration
+	 *
+	 * @return the sum of the log probabilities of the sentences that could be parsed
+	 */
+	public double getLogLikelihood(){
+		return logLikelihood;
+	}
+
+	/**
+	 * Get the number of sentences of the last iteration that could be parsed
+	 *
+	 * @return the number of sentences used
+	 */
+	public int getNumParsed(){
+		return numParsed;
+	}
+
+	/**
+	 * Get the time the last iteration took
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getTimeMillis(){
+		return time / 1000000;
+	}
+
+	/**
+	 * Get the grammar with the current weights
+	 *
+	 * @return a new grammar, without the rules whose weight went to 0
+	 */
+	public Grammar getGrammar(){
+		ArrayList<GrammarRule> rules = new ArrayList<GrammarRule>();
+		SymbolTable symbols = grammar.getSymbols();
+
+		for( int r = 0; r < binaryWeight.length; r++ ){
+			if( binaryWeight[r] > 0 ){
+				rules.add(new GrammarRule(symbols.getSymbol(grammar.getBinaryParent(r)),
+						names(symbols.getSymbol(grammar.getBinaryLeft(r)), symbols.getSymbol(grammar.getBinaryRight(r))), binaryWeight[r]));
+			}
+		}
+
+		for( int r = 0; r < unaryWeight.length; r++ ){
+			if( unaryWeight[r] > 0 ){
+				rules.add(new GrammarRule(symbols.getSymbol(grammar.getUnaryParent(r)),
+						names(symbols.getSymbol(grammar.getUnaryChild(r))), unaryWeight[r]));
+			}
+		}
+
+		for( int r = 0; r < lexicalWeight.length; r++ ){
+			if( lexicalWeight[r] > 0 ){
+				GrammarRule rule = new GrammarRule(symbols.getSymbol(grammar.getLexicalTag(r)),
+						names(grammar.getWords().getSymbol(grammar.getLexicalWord(r))), true);
+				rule.setWeight(lexicalWeight[r]);
+				rules.add(rule);
+			}
+		}
+
+		return new Grammar(rules);
+	}
+
+	/**
+	 * Write the rules with the current weights, without the rules whose weight went to 0
+	 *
+	 * @param sink where the rules are written
+	 * @throws IOException if a rule can't be written
+	 */
+	public void writeRules(GrammarSink sink) throws IOException{
+		// one table for the nonterminals and the words
+		SymbolTable names = new SymbolTable();
+		int[] symbolIds = new int[numSymbols];
+		int[] wordIds = new int[grammar.getWords().size()];
+
+		for( int i = 0; i < symbolIds.length; i++ ){
+			symbolIds[i] = names.intern(grammar.getSymbols().getSymbol(i));
+		}
+
+		for( int i = 0; i < wordIds.length; i++ ){
+			wordIds[i] = names.intern(grammar.getWords().getSymbol(i));
+		}
+
+		int[] rhs = new int[2];
+
+		for( int r = 0; r < binaryWeight.length; r++ ){
+			if( binaryWeight[r] > 0 ){
+				rhs[0] = symbolIds[grammar.getBinaryLeft(r)];
+				rhs[1] = symbolIds[grammar.getBinaryRight(r)];
+				sink.write(names, symbolIds[grammar.getBinaryParent(r)], rhs, 2, false, binaryWeight[r]);
+			}
+		}
+
+		for( int r = 0; r < unaryWeight.length; r++ ){
+			if( unaryWeight[r] > 0 ){
+				rhs[0] = symbolIds[grammar.getUnaryChild(r)];
+				sink.write(names, symbolIds[grammar.getUnaryParent(r)], rhs, 1, false, unaryWeight[r]);
+			}
+		}
+
+		for( int r = 0; r < lexicalWeight.length; r++ ){
+			if( lexicalWeight[r] > 0 ){
+				rhs[0] = wordIds[grammar.getLexicalWord(r)];
+				sink.write(names, symbolIds[grammar.getLexicalTag(r)], rhs, 1, true, lexicalWeight[r]);
+			}
+		}
+	}
+
+	public String toString(){
+		return "iteration " + iteration + ": log likelihood " + logLikelihood + " of " + numParsed + "/" + numSentences
+				+ " sentences, " + getTimeMillis() + " ms";
+	}
+
+	/**
+	 * Add up the expected counts of the workers and set the weights to their relative frequencies
+	 * (by LHS).  The rules of an LHS that wasn't used at all keep their weights.
+	 */
+	private void maximize(){
+		double[] binaryCount = new double[binaryWeight.length];
+		double[] unaryCount = new double[unaryWeight.length];
+		double[] lexicalCount = new double[lexicalWeight.length];
+		logLikelihood = 0.0;
+		numParsed = 0;
+
+		// in worker order, so that a run doesn't depend on the order the workers finish in
+		for( Worker worker: workers ){
+			worker.addCounts(binaryCount, unaryCount, lexicalCount);
+			logLikelihood += worker.logLikelihood;
+			numParsed += worker.numParsed;
+			worker.reset();
+		}
+
+		double[] lhsCount = new double[numSymbols];
+
+		for( int r = 0; r < binaryCount.length; r++ ){
+			lhsCount[grammar.getBinaryParent(r)] += binaryCount[r];
+		}
+
+		for( int r = 0; r < unaryCount.length; r++ ){
+			lhsCount[grammar.getUnaryParent(r)] += unaryCount[r];
+		}
+
+		for( int r = 0; r < lexicalCount.length; r++ ){
+			lhsCount[grammar.getLexicalTag(r)] += lexicalCount[r];
+		}
+
+		for( int r = 0; r < binaryCount.length; r++ ){
+			int lhs = grammar.getBinaryParent(r);
+
+			if( lhsCount[lhs] > 0 ){
+				binaryWeight[r] = binaryCount[r] / lhsCount[lhs];
+			}
+		}
+
+		for( int r = 0; r < unaryCount.length; r++ ){
+			int lhs = grammar.getUnaryParent(r);
+
+			if( lhsCount[lhs] > 0 ){
+				unaryWeight[r] = unaryCount[r] / lhsCount[lhs];
+			}
+		}
+
+		for( int r = 0; r < lexicalCount.length; r++ ){
+			int lhs = grammar.getLexicalTag(r);
+
+			if( lhsCount[lhs] > 0 ){
+				lexicalWeight[r] = lexicalCount[r] / lhsCount[lhs];
+			}
+		}
+
+		rules.buildClosure();
+	}
+
+	private static ArrayList<String> names(String... names){
+		return new ArrayList<String>(Arrays.asList(names));
+	}
+
+	/**
+	 * The chart and the expected counts of one worker thread
+	 */
+	private class Worker extends ScaledChart {
+		private final double[] binaryCount = new double[binaryWeight.length];
+		private final double[] unaryCount = new double[unaryWeight.length];
+		private final double[] lexicalCount = new double[lexicalWeight.length];
+		private double logLikelihood = 0.0;
+		private int numParsed = 0;
+
+		private Worker(){
+			super(InsideOutside.this.rules, InsideOutside.this.start);
+		}
+
+		/**
+		 * Add the expected rule counts of a sentence to the counts of this worker
+		 */
+		private void expect(String[] words){
+			if( fill(Arrays.asList(words)) ){
+				count();
+				logLikelihood += logZ;
+				numParsed++;
+			}
+		}
+
+		/**
+		 * Add the expected count of every rule in the chart: the outside probability of its LHS
+		 * times its weight times the inside probabilities of its RHS, over the probability of the
+		 * sentence
+		 */
+		private void count(){
+			for( int span = 1; span <= length; span++ ){
+				for( int i = 0; i + span <= length; i++ ){
+					int j = i + span;
+					int cell = cell(i, j);
+					int base = cell * numSymbols;
+
+					if( scale[cell] == NONE || outScale[cell] == NONE ){
+						continue;
+					}
+
+					// the unary rules A -> C: outIn[A] * weight * up[C]
+					double g = Math.exp(outScale[cell] + scale[cell] - logZ);
+
+					for( int l = 0; l < numLive[cell]; l++ ){
+						int c = live[base + l];
+						double cScore = up[base + c] * g;
+
+						for( int x = rules.byChildStart[c]; x < rules.byChildStart[c+1]; x++ ){
+							int r = rules.byChild[x];
+							unaryCount[r] += outIn[base + grammar.getUnaryParent(r)] * unaryWeight[r] * cScore;
+						}
+					}
+
+					if( span == 1 ){
+						int word = wordIds[i];
+						g = Math.exp(outScale[cell] - logZ);
+
+						if( word != -1 ){
+							for( int x = rules.byWordStart[word]; x < rules.byWordStart[word+1]; x++ ){
+								int r = rules.byWord[x];
+								lexicalCount[r] += outIn[base + grammar.getLexicalTag(r)] * lexicalWeight[r] * g;
+							}
+						}
+
+						continue;
+					}
+
+					// the binary rules A -> B C over each split: outIn[A] * weight * up[B] * up[C]
+					for( int k = i + 1; k < j; k++ ){
+						int left = cell(i, k);
+						int right = cell(k, j);
+
+						if( scale[left] == NONE || scale[right] == NONE ){
+							continue;
+						}
+
+						g = Math.exp(outScale[cell] + scale[left] + scale[right] - logZ);
+						int leftBase = left * numSymbols;
+						int rightBase = right * numSymbols;
+
+						for( int l = 0; l < numLive[left]; l++ ){
+							int b = live[leftBase + l];
+							double bScore = up[leftBase + b] * g;
+
+							for( int x = rules.byLeftStart[b]; x < rules.byLeftStart[b+1]; x++ ){
+								int r = rules.byLeft[x];
+								binaryCount[r] += outIn[base + grammar.getBinaryParent(r)] * binaryWeight[r] * bScore * up[rightBase + grammar.getBinaryRight(r)];
+							}
+						}
+					}
+				}
+			}
+		}
+
+		private void addCounts(double[] binary, double[] unary, double[] lexical){
+			for( int r = 0; r < binary.length; r++ ){
+				binary[r] += binaryCount[r];
+			}
+
+			for( int r = 0; r < unary.length; r++ ){
+				unary[r] += unaryCount[r];
+			}
+
+			for( int r = 0; r < lexical.length; r++ ){
+				lexical[r] += lexicalCount[r];
+			}
+		}
+
+		private void reset(){
+			Arrays.fill(binaryCount, 0);
+			Arrays.fill(unaryCount, 0);
+			Arrays.fill(lexicalCount, 0);
+			logLikelihood = 0.0;
+			numParsed = 0;
+		}
+	}
+
+	/**
+	 * Run EM on a grammar and write the re-estimated grammar
+	 *
+	 * @param args the binarized grammar, the sentences (one per line, space separated words), the
+	 *   number of iterations, the number of threads and the file to write the new grammar to
+	 * @throws IOException if a file can't be read or written
+	 */
+	public static void main(String[] args) throws IOException{
+		if( args.length != 5 ){
+			System.err.println("usage: java nlp.parser.InsideOutside <grammar> <sentences> <iterations> <threads> <output>");
+			System.exit(1);
+		}
+
+		Grammar grammar = new Grammar(args[0]);
+		List<String> sentences = Files.readAllLines(Paths.get(args[1]));
+
+		try( InsideOutside em = new InsideOutside(grammar, "S", Integer.parseInt(args[3])) ){
+			for( int i = 0; i < Integer.parseInt(args[2]); i++ ){
+				em.iterate(sentences);
+				System.out.println(em);
+			}
+
+			try( GrammarSink sink = GrammarSink.open(Paths.get(args[4])) ){
+				em.writeRules(sink);
+			}
+		}
+	}
+}
@@ -0,0 +1,417 @@
+package nlp.parser;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the k most probable parses of a sentence, with the lazy k-best algorithm of Huang and
+ * Chiang (2005, "Better k-best parsing", algorithm 3) on top of the chart of a CKYParser.
+ *
+ * The chart is a hypergraph whose nodes (items) are the entries of the two layers of a cell:
+ *   - an inside item (A over i to j before unary rules) is built by a lexical rule, or by a
+ *     binary rule A -> B C and a split point k from the items B over i to k and C over k to j
+ *   - a top item (A over i to j after unary rules) is the inside item A itself, or the best
+ *     unary chain from A down to an inside item B (from the unary closure of the GrammarIndex)
+ * The CKYParser finds the best derivation of every item.  The second, third, ... best derivation
+ * of an item is only worked out when it's asked for: each item keeps the derivations found so
+ * far and a heap of candidates, which starts with the best derivation along each incoming edge;
+ * after a derivation is taken off the heap, its successors (the same edge with the next
+ * derivation of one of the children) are added.  So only the items that the k best parses go
+ * through get any derivations past the first, and the work grows with k rather than with the
+ * size of the chart.
+ *
+ * The intermediate @X1, @X2, ... symbols of the binarization are removed from the trees.  With a
+ * Markovized grammar two derivations can give the same tree; only the first (most probable) of
+ * them is returned.  Only the best unary chain between two symbols is used, as in CKYParser.
+ * The first parse has the score of the CKYParser parse, but when several parses tie for the best
+ * score it may be a different one of them.
+ *
+ * The search is over the chart the CKYParser built, so its pruning settings apply; use
+ * getParser() to change them.  A k-best parser is not thread safe.
+ *
+ */
+public class KBestParser {
+	private static final int INSIDE = 0; // the layer of an item before unary rules
+	private static final int TOP = 1; // the layer of an item after unary rules
+
+	private static final int LEXICAL = 0; // the kinds of the edges of a derivation
+	private static final int BINARY = 1;
+	private static final int SELF = 2; // a top item that is its own inside item
+	private static final int UNARY = 3;
+
+	private static final int MAX_DERIVATIONS = 10; // times k: the most derivations of the root that are tried for k distinct trees
+
+	private final CKYParser parser;
+	private final Grammar grammar;
+	private final int numSymbols;
+
+	private final HashMap<Integer, Item> items = new HashMap<Integer, Item>(); // the items visited for this sentence, by key
+	private GrammarIndex index; // the index the chart was built with
+	private List<String> words; // the sentence being parsed
+	private int length;
+	private double[] scores = new double[0]; // the log probabilities of the last parses
+
+	/**
+	 * Create a k-best parser with the start symbol S
+	 *
+	 * @param grammar the binarized grammar
+	 */
+	public KBestParser(Grammar grammar){
+		this(new CKYParser(grammar));
+	}
+
+	/**
+	 * Create a k-best parser on top of a CKYParser
+	 *
+	 * @param parser the parser that fills in the chart
+	 */
+	public KBestParser(CKYParser parser){
+		this.parser = parser;
+		this.grammar = parser.getIndex().getGrammar();
+		this.numSymbols = grammar.numSymbols();
+	}
+
+	/**
+	 * Get the parser that fills in the chart, e.g. to set its pruning
+	 *
+	 * @return the CKY parser
+	 */
+	public CKYParser getParser(){
+		return parser;
+	}
+
+	/**
+	 * Find the k most probable parses of a sentence of space separated words
+	 *
+	 * @param sentence the sentence
+	 * @param k the number of parses
+	 * @return up to k parses, the most probable first, or none if the sentence can't be parsed
+	 */
+	public List<ParseTree> parse(String sentence, int k){
+		return parse(Arrays.asList(sentence.trim().split("\\s+")), k);
+	}
+
+	/**
+	 * Find the k most probable parses of a sentence
+	 *
+	 * @param words the words of the sentence
+	 * @param k the number of parses
+	 * @return up to k parses, the most probable first, or none if the sentence can't be parsed
+	 */
+	public List<ParseTree> parse(List<String> words, int k){
+		this.words = words;
+		this.length = words.size();
+		this.index = parser.getIndex();
+		items.clear();
+
+		List<ParseTree> parses = new ArrayList<ParseTree>(k);
+		scores = new double[k];
+
+		if( parser.parse(words) == null ){
+			scores = new double[0];
+			return parses;
+		}
+
+		Item root = item(0, length, parser.getStart(), TOP);
+		HashSet<String> seen = new HashSet<String>();
+
+		for( int rank = 0; parses.size() < k && rank < MAX_DERIVATIONS * k; rank++ ){
+			Derivation d = kth(root, rank);
+
+			if( d == null ){
+				break;
+			}
+
+			ParseTree tree = new ParseTree(grammar.getSymbols().getSymbol(root.symbol), false);
+			addChildren(tree, root, d);
+
+			if( seen.add(tree.toString()) ){
+				scores[parses.size()] = d.score;
+				parses.add(tree);
+			}
+		}
+
+		scores = Arrays.copyOf(scores, parses.size());
+		items.clear(); // don't hold on to the derivations between sentences
+
+		return parses;
+	}
+
+	/**
+	 * The log probabilities of the parses of the last sentence
+	 *
+	 * @return the log probability of each parse, in the same order
+	 */
+	public double[] getScores(){
+		return scores;
+	}
+
+	/**
+	 * Get the derivation of an item with a rank (0 is the best), working out the derivations
+	 * before it that haven't been yet (LazyKthBest)
+	 *
+	 * @return the derivation, or null if the item has no more than rank derivations
+	 */
+	private Derivation kth(Item item, int rank){
+		if( item.candidates == null ){
+			initialize(item);
+		}
+
+		while( item.derivations.size() <= rank ){
+			if( !item.derivations.isEmpty() ){
+				addSuccessors(item, item.derivations.get(item.derivations.size() - 1));
+			}
+
+			if( item.candidates.isEmpty() ){
+				return null;
+			}
+
+			item.derivations.add(item.candidates.poll());
+		}
+
+		return item.derivations.get(rank);
+	}
+
+	/**
+	 * Add the candidates that follow a derivation: the same edge with the next derivation of one
+	 * of its children (LazyNext)
+	 */
+	private void addSuccessors(Item item, Derivation d){
+		if( d.kind == LEXICAL ){
+			return;
+		}
+
+		addCandidate(item, d.kind, d.edge, d.split, d.rank1 + 1, d.rank2);
+
+		if( d.kind == BINARY ){
+			addCandidate(item, d.kind, d.edge, d.split, d.rank1, d.rank2 + 1);
+		}
+	}
+
+	private void addCandidate(Item item, int kind, int edge, int split, int rank1, int rank2){
+		Derivation d = new Derivation(kind, edge, split, rank1, rank2);
+
+		if( !item.seen.add(d) ){
+			return;
+		}
+
+		Derivation first = kth(child(item, d, 0), rank1);
+		Derivation second = kind == BINARY ? kth(child(item, d, 1), rank2) : null;
+
+		if( first == null || kind == BINARY && second == null ){
+			return;
+		}
+
+		d.score = weight(d) + first.score + (second == null ? 0.0 : second.score);
+		item.candidates.add(d);
+	}
+
+	/**
+	 * Fill in the candidates of an item with the best derivation along each of its edges, whose
+	 * scores come straight from the chart.  The edges are the closure entries and binary rules of
+	 * the symbol of the item, from the indexes by parent.
+	 */
+	private void initialize(Item item){
+		item.candidates = new PriorityQueue<Derivation>();
+		int i = item.i;
+		int j = item.j;
+
+		if( item.layer == TOP ){
+			if( parser.getInside(i, j, item.symbol) != Double.NEGATIVE_INFINITY ){
+				candidate(item, SELF, -1, -1, parser.getInside(i, j, item.symbol));
+			}
+
+			// the unary chains from the symbol down to each inside entry of the cell
+			for( int x = index.closureByParentStart(item.symbol); x < index.closureByParentStart(item.symbol+1); x++ ){
+				int e = index.getClosureByParent(x);
+				double inside = parser.getInside(i, j, index.getClosureChild(e));
+
+				if( inside != Double.NEGATIVE_INFINITY ){
+					candidate(item, UNARY, e, -1, index.getClosureScore(e) + inside);
+				}
+			}
+		}else if( j == i + 1 ){
+			candidate(item, LEXICAL, -1, -1, parser.getInside(i, j, item.symbol));
+		}else{
+			int start = index.binaryByParentStart(item.symbol);
+			int end = index.binaryByParentStart(item.symbol+1);
+
+			for( int k = i + 1; k < j; k++ ){
+				for( int y = start; y < end; y++ ){
+					int x = index.getBinaryByParent(y);
+					double left = parser.getScore(i, k, index.getBinaryLeft(x));
+
+					if( left != Double.NEGATIVE_INFINITY ){
+						double right = parser.getScore(k, j, index.getBinaryRight(x));
+
+						if( right != Double.NEGATIVE_INFINITY ){
+							candidate(item, BINARY, x, k, index.getBinaryScore(x) + left + right);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void candidate(Item item, int kind, int edge, int split, double score){
+		Derivation d = new Derivation(kind, edge, split, 0, 0);
+		d.score = score;
+		item.seen.add(d);
+		item.candidates.add(d);
+	}
+
+	/**
+	 * The log probability of the edge of a derivation, without its children
+	 */
+	private double weight(Derivation d){
+		switch( d.kind ){
+			case BINARY: return index.getBinaryScore(d.edge);
+			case UNARY: return index.getClosureScore(d.edge);
+			default: return 0.0;
+		}
+	}
+
+	/**
+	 * Get the first (0) or second (1) child item of a derivation of an item
+	 */
+	private Item child(Item item, Derivation d, int n){
+		switch( d.kind ){
+			case SELF:
+				return item(item.i, item.j, item.symbol, INSIDE);
+			case UNARY:
+				return item(item.i, item.j, index.getClosureChild(d.edge), INSIDE);
+			case BINARY:
+				if( n == 0 ){
+					return item(item.i, d.split, grammar.getBinaryLeft(index.getBinaryRule(d.edge)), TOP);
+				}else{
+					return item(d.split, item.j, index.getBinaryRight(d.edge), TOP);
+				}
+			default:
+				throw new RuntimeException("A lexical rule has no child items");
+		}
+	}
+
+	/**
+	 * Get the item for symbol over the span i to j in a layer, creating it if it's new
+	 */
+	private Item item(int i, int j, int symbol, int layer){
+		int key = ((i * (length + 1) + j) * numSymbols + symbol) * 2 + layer;
+		Item item = items.get(key);
+
+		if( item == null ){
+			item = new Item(i, j, symbol, layer);
+			items.put(key, item);
+		}
+
+		return item;
+	}
+
+	/**
+	 * Add the children of a derivation of an item to node.  The children of intermediate symbols
+	 * are added directly to node instead.
+	 */
+	private void addChildren(ParseTree node, Item item, Derivation d){
+		switch( d.kind ){
+			case LEXICAL:
+				node.addChild(new ParseTree(words.get(item.i), true));
+				break;
+			case SELF:
+				Item inside = child(item, d, 0);
+				addChildren(node, inside, kth(inside, d.rank1));
+				break;
+			case UNARY:
+				// follow the unary chain down to the inside item it starts from
+				int e = d.edge;
+
+				while( index.getClosureNext(e) != -1 ){
+					node = addNode(node, index.getClosureVia(e));
+					e = index.getClosureNext(e);
+				}
+
+				Item child = child(item, d, 0);
+				addChildren(addNode(node, child.symbol), child, kth(child, d.rank1));
+				break;
+			case BINARY:
+				Item left = child(item, d, 0);
+				Item right = child(item, d, 1);
+				addChildren(addNode(node, left.symbol), left, kth(left, d.rank1));
+				addChildren(addNode(node, right.symbol), right, kth(right, d.rank2));
+				break;
+		}
+	}
+
+	/**
+	 * Add a node for symbol to parent, unless the symbol is intermediate
+	 *
+	 * @return the new node, or parent for an intermediate symbol
+	 */
+	private ParseTree addNode(ParseTree parent, int symbol){
+		if( grammar.isIntermediate(symbol) ){
+			return parent;
+		}
+
+		ParseTree child = new ParseTree(grammar.getSymbols().getSymbol(symbol), false);
+		parent.addChild(child);
+		return child;
+	}
+
+	/**
+	 * An entry of the chart, with its derivations worked out so far
+	 */
+	private static class Item {
+		private final int i;
+		private final int j;
+		private final int symbol;
+		private final int layer; // INSIDE or TOP
+		private final ArrayList<Derivation> derivations = new ArrayList<Derivation>(1); // the best derivations found, in order
+		private PriorityQueue<Derivation> candidates; // the candidates for the next derivation, null until the item is first used
+		private final HashSet<Derivation> seen = new HashSet<Derivation>(); // every derivation that has been a candidate
+
+		private Item(int i, int j, int symbol, int layer){
+			this.i = i;
+			this.j = j;
+			this.symbol = symbol;
+			this.layer = layer;
+		}
+	}
+
+	/**
+	 * A derivation of an item: an edge into it and the rank of the derivation of each child
+	 */
+	private static class Derivation implements Comparable<Derivation> {
+		private final int kind; // LEXICAL, BINARY, SELF or UNARY
+		private final int edge; // the offset of the binary rule in the index, or the closure entry
+		private final int split; // the split point of a binary rule
+		private final int rank1; // the rank of the derivation of the first child
+		private final int rank2; // the rank of the derivation of the second child
+		private double score; // the log probability of the derivation
+
+		private Derivation(int kind, int edge, int split, int rank1, int rank2){
+			this.kind = kind;
+			this.edge = edge;
+			this.split = split;
+			this.rank1 = rank1;
+			this.rank2 = rank2;
+		}
+
+		public int compareTo(Derivation other){
+			return Double.compare(other.score, score); // the most probable first
+		}
+
+		public boolean equals(Object o){
+			if( !(o instanceof Derivation) ){
+				return false;
+			}
+
+			Derivation d = (Derivation)o;
+			return kind == d.kind && edge == d.edge && split == d.split && rank1 == d.rank1 && rank2 == d.rank2;
+		}
+
+		public int hashCode(){
+			return (((kind * 31 + edge) * 31 + split) * 31 + rank1) * 31 + rank2;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package nlp.parser;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps the tokens of the sentences being parsed to the word ids of a grammar, whose tags are
+ * then read off the lexicon of a GrammarIndex.  A token that is in the grammar maps to its own
+ * id.  An unknown token maps to its signature (see UnknownWords), or if the grammar hasn't got
+ * that one, to the first coarser signature it has (see UnknownWords.backoff()), down to the
+ * plain UNK signature, and the result is kept in a bounded LRU cache, since the
+ * same unknown tokens (names, numbers) tend to come up again and again.
+ *
+ * A lexicon cache is not thread safe.
+ *
+ */
+public class LexiconCache {
+	private final SymbolTable words;
+	private final LinkedHashMap<String, Integer> cache; // unknown token -> the word id of its signature, or -1
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Create a cache for the words of a grammar
+	 *
+	 * @param words the word symbol table of the grammar
+	 * @param capacity the most unknown tokens kept in the cache
+	 */
+	public LexiconCache(SymbolTable words, int capacity){
+		this.words = words;
+		this.cache = new LinkedHashMap<String, Integer>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest){
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Get the word id whose tags a token takes
+	 *
+	 * @param token the token
+	 * @return the word id of the token or of its signature or a coarser one, or -1 if the grammar
+	 *   has none of them
+	 */
+	public int lookup(String token){
+		int id = words.getId(token);
+
+		if( id != -1 ){
+			return id;
+		}
+
+		Integer cached = cache.get(token);
+
+		if( cached != null ){
+			hits++;
+			return cached;
+		}
+
+		misses++;
+		String signature = UnknownWords.signature(token);
+		id = words.getId(signature);
+
+		while( id == -1 && (signature = UnknownWords.backoff(signature)) != null ){
+			id = words.getId(signature);
+		}
+
+		cache.put(token, id);
+
+		return id;
+	}
+
+	/**
+	 * Get the number of unknown tokens found in the cache
+	 *
+	 * @return the number of cache hits
+	 */
+	public long getHits(){
+		return hits;
+	}
+
+	/**
+	 * Get the number of unknown tokens that weren't in the cache
+	 *
+	 * @return the number of cache misses
+	 */
+	public long getMisses(){
+		return misses;
+	}
+}
@@ -0,0 +1,324 @@
+package nlp.parser;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A bounded LRU cache of parses in front of a parser, for input that repeats itself (template
+ * sentences, boilerplate, retried requests).  A sentence is normalized to its tokens joined by
+ * single spaces, so sentences that only differ in whitespace share an entry, and its key is a
+ * 64 bit hash of the tokens and the version of the grammar, so that the parses of one grammar
+ * are never returned for another (see version()).  The tokens are kept too, so two sentences
+ * whose hashes collide don't share a parse.
+ *
+ * A parse is kept as a CompactTree that keeps its own words.  The labels of the nonterminals are
+ * interned in one SymbolTable for the whole cache, which only holds the symbols of the grammar, so
+ * it doesn't grow with the vocabulary of the sentences.  Sentences that can't be parsed are cached
+ * as well.
+ *
+ * The cache holds at most maxEntries entries and about maxBytes bytes, whichever fills up first,
+ * and evicts the least recently used entries to stay within both.  The size of an entry is an
+ * estimate from the length of its sentence, the words of its parse and the number of its nodes.
+ *
+ * A parse cache is thread safe.  The parser is called outside of its lock, so two threads that
+ * miss on the same sentence at the same time both parse it.
+ *
+ */
+public class ParseCache {
+	private static final long ENTRY_BYTES = 160; // the bytes of an entry besides its tokens and its tree: key, entry, map node, arrays
+	private static final long NODE_BYTES = 8; // the bytes of a node of a tree: its label and next sibling
+	private static final long WORD_BYTES = 48; // the bytes of a terminal besides its characters: its string and array slot
+
+	private final SymbolTable labels = new SymbolTable(); // the labels of the nonterminals of all of the parses
+	private final CompactTree.Builder builder = new CompactTree.Builder(labels, true);
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private final int maxEntries;
+	private final long maxBytes;
+	private long grammarVersion;
+	private long bytes = 0; // the estimated size of the entries
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * A normalized sentence, with the version of the grammar it was parsed with
+	 */
+	private static class Key {
+		private final String sentence; // the tokens, separated by single spaces
+		private final long hash;
+
+		private Key(String sentence, long grammarVersion){
+			this.sentence = sentence;
+			this.hash = hash(sentence, grammarVersion);
+		}
+
+		public int hashCode(){
+			return (int)(hash ^ (hash >>> 32));
+		}
+
+		public boolean equals(Object o){
+			return o instanceof Key && ((Key)o).hash == hash && ((Key)o).sentence.equals(sentence);
+		}
+	}
+
+	/**
+	 * A cached parse
+	 */
+	static class Entry {
+		private final CompactTree tree; // null if the sentence can't be parsed
+		private final long bytes;
+
+		private Entry(CompactTree tree, long bytes){
+			this.tree = tree;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Create an empty cache
+	 *
+	 * @param grammarVersion the version of the grammar the parses come from, e.g. version(grammar)
+	 * @param maxEntries the most sentences in the cache
+	 * @param maxBytes the most (estimated) bytes the entries may take
+	 */
+	public ParseCache(long grammarVersion, int maxEntries, long maxBytes){
+		this.grammarVersion = grammarVersion;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Compute a version for a grammar from its symbols and rules, which changes whenever the
+	 * grammar does
+	 *
+	 * @param grammar the grammar
+	 * @return a 64 bit hash of the grammar
+	 */
+	public static long version(Grammar grammar){
+		long h = mix(grammar.numSymbols(), grammar.getWords().size());
+
+		for( int i = 0; i < grammar.numSymbols(); i++ ){
+			h = mix(h, grammar.getSymbols().getSymbol(i).hashCode());
+		}
+
+		for( int r = 0; r < grammar.numBinaryRules(); r++ ){
+			h = mix(h, grammar.getBinaryParent(r));
+			h = mix(h, grammar.getBinaryLeft(r));
+			h = mix(h, grammar.getBinaryRight(r));
+			h = mix(h, Double.doubleToLongBits(grammar.getBinaryScore(r)));
+		}
+
+		for( int r = 0; r < grammar.numUnaryRules(); r++ ){
+			h = mix(h, grammar.getUnaryParent(r));
+			h = mix(h, grammar.getUnaryChild(r));
+			h = mix(h, Double.doubleToLongBits(grammar.getUnaryScore(r)));
+		}
+
+		for( int r = 0; r < grammar.numLexicalRules(); r++ ){
+			h = mix(h, grammar.getLexicalTag(r));
+			h = mix(h, grammar.getWords().getSymbol(grammar.getLexicalWord(r)).hashCode());
+			h = mix(h, Double.doubleToLongBits(grammar.getLexicalScore(r)));
+		}
+
+		return h;
+	}
+
+	/**
+	 * Switch to another grammar.  The parses of the old one stay in the cache until they're
+	 * evicted, but aren't returned any more.
+	 *
+	 * @param grammarVersion the version of the new grammar
+	 */
+	public synchronized void setGrammarVersion(long grammarVersion){
+		this.grammarVersion = grammarVersion;
+	}
+
+	/**
+	 * Get the parse of a sentence from the cache, or parse it and add it to the cache
+	 *
+	 * @param sentence the sentence, of space separated words
+	 * @param parser the parser, which returns null for a sentence it can't parse
+	 * @return the parse, or null if the sentence can't be parsed
+	 */
+	public ParseTree parse(String sentence, Function<List<String>, ParseTree> parser){
+		String normalized = normalize(sentence);
+		Entry entry = lookup(normalized);
+
+		if( entry != null ){
+			return toParseTree(entry);
+		}
+
+		ParseTree tree = parser.apply(Arrays.asList(normalized.split(" ")));
+		put(normalized, tree);
+
+		return tree;
+	}
+
+	/**
+	 * Get the parse of a sentence from the cache, or parse it and add it to the cache
+	 *
+	 * @param words the words of the sentence
+	 * @param parser the parser, which returns null for a sentence it can't parse
+	 * @return the parse, or null if the sentence can't be parsed
+	 */
+	public ParseTree parse(List<String> words, Function<List<String>, ParseTree> parser){
+		String normalized = String.join(" ", words);
+		Entry entry = lookup(normalized);
+
+		if( entry != null ){
+			return toParseTree(entry);
+		}
+
+		ParseTree tree = parser.apply(words);
+		put(normalized, tree);
+
+		return tree;
+	}
+
+	/**
+	 * Get the number of lookups that found their sentence
+	 *
+	 * @return the number of cache hits
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	/**
+	 * Get the number of lookups that didn't find their sentence
+	 *
+	 * @return the number of cache misses
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * Get the number of entries evicted to stay within the bounds
+	 *
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	/**
+	 * Get the number of sentences in the cache
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Get the estimated size of the entries
+	 *
+	 * @return the number of bytes
+	 */
+	public synchronized long getBytes(){
+		return bytes;
+	}
+
+	public synchronized String toString(){
+		long lookups = hits + misses;
+		return entries.size() + " entries (" + bytes / 1024 + " kB), " + hits + " hits, " + misses + " misses ("
+				+ String.format("%.1f", lookups == 0 ? 0.0 : 100.0 * hits / lookups) + "% hits), " + evictions + " evictions";
+	}
+
+	// the steps of parse(), for callers that parse the misses themselves, e.g. in batches
+
+	/**
+	 * Normalize a sentence: its tokens separated by single spaces
+	 */
+	static String normalize(String sentence){
+		return String.join(" ", sentence.trim().split("\\s+"));
+	}
+
+	/**
+	 * Look up a normalized sentence, counting a hit or a miss
+	 *
+	 * @return the entry, or null if the sentence isn't in the cache
+	 */
+	synchronized Entry lookup(String normalized){
+		Entry entry = entries.get(new Key(normalized, grammarVersion));
+
+		if( entry == null ){
+			misses++;
+		}else{
+			hits++;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Get the parse of an entry
+	 *
+	 * @return a new copy of the parse, or null if the sentence can't be parsed
+	 */
+	synchronized ParseTree toParseTree(Entry entry){
+		return entry.tree == null ? null : entry.tree.toParseTree();
+	}
+
+	/**
+	 * Add the parse of a normalized sentence, and evict the least recently used entries while the
+	 * cache is too big
+	 */
+	synchronized void put(String normalized, ParseTree tree){
+		Entry entry = tree == null ? new Entry(null, ENTRY_BYTES + 2L * normalized.length()) : toEntry(normalized, tree);
+		Entry old = entries.put(new Key(normalized, grammarVersion), entry);
+		bytes += entry.bytes - (old == null ? 0 : old.bytes);
+
+		Iterator<Entry> eldest = entries.values().iterator();
+
+		while( (entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext() ){
+			bytes -= eldest.next().bytes;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Encode a parse as an entry
+	 */
+	private Entry toEntry(String normalized, ParseTree tree){
+		builder.clear();
+		builder.add(tree);
+		CompactTree compact = builder.build();
+		long bytes = ENTRY_BYTES + 2L * normalized.length() + NODE_BYTES * compact.size();
+
+		for( int node = 0; node < compact.size(); node++ ){
+			if( compact.isTerminal(node) ){
+				bytes += WORD_BYTES + 2L * compact.getLabel(node).length();
+			}
+		}
+
+		return new Entry(compact, bytes);
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of a sentence, seeded with the grammar version
+	 */
+	private static long hash(String sentence, long grammarVersion){
+		long h = 0xcbf29ce484222325L ^ grammarVersion;
+
+		for( int i = 0; i < sentence.length(); i++ ){
+			h ^= sentence.charAt(i);
+			h *= 0x100000001b3L;
+		}
+
+		return h;
+	}
+
+	/**
+	 * Combine a hash with another value
+	 */
+	private static long mix(long h, long value){
+		h ^= value + 0x9e3779b97f4a7c15L + (h << 6) + (h >>> 2);
+		return h * 0xff51afd7ed558ccdL;
+	}
+}
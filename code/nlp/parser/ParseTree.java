@@ -1,8 +1,5 @@
 package nlp.parser;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A class representing a syntactic parse tree.  The parse tree is a recursive structure.
@@ -14,7 +11,7 @@ import java.util.regex.Pattern;
  *
  */
 public class ParseTree {
-	private static Pattern tagSplitPattern = Pattern.compile("(\\S+) (.+)");
+	private static final ThreadLocal<TreeReader> READER = ThreadLocal.withInitial(TreeReader::new); // reused for ParseTree(String)
 	
 	private boolean terminal; // whether or not this is a terminal node in the tree
 	private String label; // the label of this node of the tree, e.g. S, NP, VP, etc.
@@ -27,67 +24,11 @@ public class ParseTree {
 	 * @param treeString A single line containing a parenthesized version of a parse tree
 	 */
 	public ParseTree(String treeString){
-		if( treeString.charAt(0) != '(' ||
-			treeString.charAt(treeString.length()-1) != ')' ){
-			throw new RuntimeException("Malformed tree: " + treeString);
-		}
-		
-		// splice off the beginning and trailing parentheses
-		treeString = treeString.substring(1, treeString.length()-1);
-		
-		// if this still had parenthesis in it, it's a non-terminal
-		if( treeString.contains("(") ){
-			Matcher m = tagSplitPattern.matcher(treeString);
+		ParseTree tree = READER.get().read(treeString);
 		
-			// make sure this subtree is of the proper form
-			if( m.matches() ){
-				label = m.group(1);
-				String childrenString = m.group(2);
-				
-				terminal = false;
-				children = new ArrayList<ParseTree>();
-				
-				int leftParenCount = 0;
-				int start = 0;
-				
-				// find the subchildren and recursively create them
-				for( int i = 0; i < childrenString.length(); i++ ){
-					if( childrenString.charAt(i) == '(' ){
-						leftParenCount++;
-					}else if( childrenString.charAt(i) == ')' ){
-						leftParenCount--;
-						
-						if( leftParenCount == 0 ){
-							children.add(new ParseTree(childrenString.substring(start, i+1)));
-							
-							// the i+1th character should be a space (or we're off the end)
-							start = i+2;
-							
-						}else if( leftParenCount < 0 ){
-							throw new RuntimeException("Malformed subtree: " + treeString);
-						}
-					}
-				}
-			}else{
-				throw new RuntimeException("Malformed subtree: " + treeString);
-			}
-			
-		}else{
-			// this is a part of speech
-			// when we get down the the part of speech tag, create the POS node as a non-terminal
-			// and then link in the terminal node
-			terminal = false;
-			
-			Matcher m = tagSplitPattern.matcher(treeString);
-			
-			if( m.matches() ){
-				label = m.group(1);
-				children = new ArrayList<ParseTree>(1);
-				children.add(new ParseTree(m.group(2), true));
-			}else{
-				throw new RuntimeException("Malformed tree leaf: " + treeString);
-			}
-		}  
+		label = tree.label;
+		terminal = tree.terminal;
+		children = tree.children;
 	}
 	
 	/**
@@ -186,19 +127,32 @@ public class ParseTree {
 		if( terminal ){
 			return label;
 		}else{
-			StringBuffer buffer = new StringBuffer();
-		
+			StringBuilder buffer = new StringBuilder();
+			appendTo(buffer);
+
+			return buffer.toString();
+		}
+	}
+	
+	/**
+	 * Append the parenthesized form of this parse tree to a buffer, which is shared by the
+	 * whole tree rather than building a string for each subtree
+	 * 
+	 * @param buffer the buffer
+	 */
+	public void appendTo(StringBuilder buffer){
+		if( terminal ){
+			buffer.append(label);
+		}else{
 			buffer.append("(");
 			buffer.append(label);
 			
 			for(ParseTree child: children){
 				buffer.append(" ");
-				buffer.append(child.toString());
+				child.appendTo(buffer);
 			}
 			
 			buffer.append(")");
-			
-			return buffer.toString();
 		}
 	}
 }
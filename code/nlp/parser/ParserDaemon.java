@@ -0,0 +1,566 @@
+package nlp.parser;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-running parser that keeps its grammar and GrammarIndex loaded and parses sentences sent
+ * to it over a local socket: a TCP port on the loopback address, or a Unix domain socket file.
+ *
+ * The protocol is one line per sentence, of space separated words, and one line back per
+ * sentence, in the same order: the most probable parse in the form of ParseTree.toString(), an
+ * empty line if the sentence can't be parsed, BUSY if the daemon is overloaded, or ERROR and the
+ * reason if the sentence isn't parsed: a line longer than maxLineLength characters, a sentence
+ * longer than the length limit of the parser (see BatchParser.getLengthLimit()), or a parse that
+ * failed.  The connection stays open after an ERROR.  A client may send any number of sentences
+ * on a connection, and may send several before reading the parses.  For example:
+ *
+ *   echo "the dog barks" | nc -U parser.sock
+ *
+ * The connections put their sentences on one bounded queue, and a batching thread takes them off
+ * in micro-batches for a BatchParser: it waits for the first sentence, and then up to
+ * batchDelay milliseconds for more, up to maxBatchSize sentences.  So sentences sent at about
+ * the same time by different clients are parsed together on the worker pool.  If a batch
+ * fails, its sentences are parsed again one at a time, so only the sentence that fails gets an
+ * ERROR.
+ *
+ * There are two limits, for backpressure:
+ *   - the queue holds at most queueLimit sentences.  A connection waits up to queueTimeout
+ *     milliseconds for room, and answers BUSY for a sentence that doesn't get in.
+ *   - at most maxConnections connections are served at once.  Another connection gets a single
+ *     BUSY line and is closed.
+ *
+ * With a ParseCache, a sentence that is in the cache is answered by its connection straight
+ * away, without going through the queue, and the parses of the others are added to the cache.
+ *
+ */
+public class ParserDaemon implements AutoCloseable {
+	private static final int DEFAULT_QUEUE_LIMIT = 1000; // the most sentences waiting to be parsed
+	private static final int DEFAULT_MAX_CONNECTIONS = 64; // the most connections served at once
+	private static final int DEFAULT_MAX_BATCH_SIZE = 256; // the most sentences parsed together
+	private static final long DEFAULT_BATCH_DELAY = 2; // ms to wait for more sentences for a batch
+	private static final long DEFAULT_QUEUE_TIMEOUT = 1000; // ms a connection waits for room in the queue
+	private static final int DEFAULT_MAX_LINE_LENGTH = 1 << 16; // the most characters of a sentence
+	private static final long DEFAULT_CACHE_BYTES = 64L << 20; // the most bytes of parses main() caches
+	private static final long DEFAULT_CHART_MB = 256; // the most megabytes of the chart of each worker of main()
+
+	static final String BUSY = "BUSY"; // the answer to a sentence that was turned away
+	static final String ERROR = "ERROR"; // the start of the answer to a sentence that isn't parsed
+
+	private final BatchParser parser;
+	private final ServerSocketChannel server;
+	private final SocketAddress address;
+	private final BlockingQueue<Request> queue;
+	private final ThreadPoolExecutor connections; // one thread per connection
+	private final Thread acceptor;
+	private final Thread batcher;
+
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private long batchDelay = DEFAULT_BATCH_DELAY;
+	private long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+	private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+	private ParseCache cache = null; // the parses of earlier sentences, or null
+	private volatile boolean running = false;
+
+	private final AtomicLong numSentences = new AtomicLong(); // the sentences parsed
+	private final AtomicLong numRejected = new AtomicLong(); // the sentences and connections turned away
+	private final AtomicLong numErrors = new AtomicLong(); // the sentences answered with ERROR
+	private final AtomicLong numBatches = new AtomicLong();
+
+	/**
+	 * A sentence waiting for its parse
+	 */
+	private static class Request {
+		private final String sentence;
+		private final CompletableFuture<String> reply = new CompletableFuture<String>();
+
+		private Request(String sentence){
+			this.sentence = sentence;
+		}
+	}
+
+	/**
+	 * Create a daemon with the default queue and connection limits, bound to an address but not
+	 * yet serving
+	 *
+	 * @param parser the parser, which the daemon closes when it's closed
+	 * @param address the address to listen on, an InetSocketAddress or a UnixDomainSocketAddress
+	 * @throws IOException if the address can't be bound
+	 */
+	public ParserDaemon(BatchParser parser, SocketAddress address) throws IOException{
+		this(parser, address, DEFAULT_QUEUE_LIMIT, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Create a daemon, bound to an address but not yet serving
+	 *
+	 * @param parser the parser, which the daemon closes when it's closed
+	 * @param address the address to listen on, an InetSocketAddress or a UnixDomainSocketAddress
+	 * @param queueLimit the most sentences waiting to be parsed
+	 * @param maxConnections the most connections served at once
+	 * @throws IOException if the address can't be bound
+	 */
+	public ParserDaemon(BatchParser parser, SocketAddress address, int queueLimit, int maxConnections) throws IOException{
+		this.parser = parser;
+		this.queue = new ArrayBlockingQueue<Request>(queueLimit);
+
+		if( address instanceof UnixDomainSocketAddress ){
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		}else{
+			server = ServerSocketChannel.open();
+		}
+
+		server.bind(address);
+		this.address = server.getLocalAddress();
+
+		connections = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "parser-connection");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		acceptor = new Thread(this::accept, "parser-acceptor");
+		batcher = new Thread(this::batch, "parser-batcher");
+	}
+
+	/**
+	 * Set the most sentences parsed together
+	 *
+	 * @param maxBatchSize the most sentences in a batch
+	 */
+	public void setMaxBatchSize(int maxBatchSize){
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Set how long a batch waits for more sentences after its first one.  A longer delay makes
+	 * bigger batches under load, but slows down every sentence when there's little traffic.
+	 *
+	 * @param batchDelay the delay in milliseconds
+	 */
+	public void setBatchDelay(long batchDelay){
+		this.batchDelay = batchDelay;
+	}
+
+	/**
+	 * Set how long a connection waits for room in the queue before it answers BUSY
+	 *
+	 * @param queueTimeout the timeout in milliseconds
+	 */
+	public void setQueueTimeout(long queueTimeout){
+		this.queueTimeout = queueTimeout;
+	}
+
+	/**
+	 * Set the longest line that is read as a sentence.  A longer line is answered with ERROR
+	 * without being kept in memory.
+	 *
+	 * @param maxLineLength the most characters of a line
+	 */
+	public void setMaxLineLength(int maxLineLength){
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * Answer repeated sentences from a cache.  The cache must be for the grammar of the parser.
+	 *
+	 * @param cache the cache, or null to parse every sentence
+	 */
+	public void setCache(ParseCache cache){
+		this.cache = cache;
+	}
+
+	/**
+	 * Get the address the daemon listens on, e.g. to find the port it was given for port 0
+	 *
+	 * @return the bound address
+	 */
+	public SocketAddress getAddress(){
+		return address;
+	}
+
+	/**
+	 * Start serving connections
+	 */
+	public void start(){
+		running = true;
+		batcher.start();
+		acceptor.start();
+	}
+
+	/**
+	 * Stop serving: close the socket, answer the sentences still in the queue with BUSY and stop
+	 * the workers
+	 */
+	public void close(){
+		running = false;
+
+		try{
+			server.close();
+		}catch( IOException e ){
+			// nothing more to do with it
+		}
+
+		acceptor.interrupt();
+		batcher.interrupt();
+		connections.shutdownNow();
+
+		try{
+			batcher.join();
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+		}
+
+		for( Request request = queue.poll(); request != null; request = queue.poll() ){
+			request.reply.complete(BUSY);
+		}
+
+		parser.close();
+
+		if( address instanceof UnixDomainSocketAddress ){
+			try{
+				Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+			}catch( IOException e ){
+				// a stale socket file only gets in the way of the next daemon on the same path
+			}
+		}
+	}
+
+	/**
+	 * Get the number of sentences parsed so far
+	 *
+	 * @return the number of sentences
+	 */
+	public long getNumSentences(){
+		return numSentences.get();
+	}
+
+	/**
+	 * Get the number of sentences and connections turned away so far
+	 *
+	 * @return the number answered with BUSY
+	 */
+	public long getNumRejected(){
+		return numRejected.get();
+	}
+
+	/**
+	 * Get the number of sentences that weren't parsed because they were too long or their parse
+	 * failed
+	 *
+	 * @return the number answered with ERROR
+	 */
+	public long getNumErrors(){
+		return numErrors.get();
+	}
+
+	/**
+	 * Get the number of batches parsed so far
+	 *
+	 * @return the number of batches
+	 */
+	public long getNumBatches(){
+		return numBatches.get();
+	}
+
+	public String toString(){
+		long batches = numBatches.get();
+		return address + ": " + numSentences.get() + " sentences in " + batches + " batches ("
+				+ String.format("%.1f", batches == 0 ? 0.0 : (double)numSentences.get() / batches) + " per batch), "
+				+ numRejected.get() + " rejected, " + numErrors.get() + " errors";
+	}
+
+	/**
+	 * Accept connections, and hand each one to a connection thread
+	 */
+	private void accept(){
+		while( running ){
+			SocketChannel client;
+
+			try{
+				client = server.accept();
+			}catch( ClosedChannelException e ){
+				return;
+			}catch( IOException e ){
+				if( running ){
+					System.err.println("Failed to accept a connection: " + e.getMessage());
+				}
+
+				continue;
+			}
+
+			try{
+				connections.execute(() -> serve(client));
+			}catch( RejectedExecutionException e ){
+				numRejected.incrementAndGet();
+
+				try( SocketChannel rejected = client ){
+					rejected.write(StandardCharsets.UTF_8.encode(BUSY + "\n"));
+				}catch( IOException ignored ){
+					// the client is gone
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answer the sentences of one connection.  The sentences the client has already sent are
+	 * queued together (up to maxBatchSize), so they can go into the same batch, and then their
+	 * answers are written in order.  A line that is too long is answered with ERROR.
+	 */
+	private void serve(SocketChannel client){
+		try( SocketChannel channel = client;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8)) ){
+			List<CompletableFuture<String>> pending = new ArrayList<CompletableFuture<String>>();
+			StringBuilder line = new StringBuilder();
+			long length;
+
+			while( (length = readLine(reader, line, maxLineLength)) != -1 ){
+				if( length > maxLineLength ){
+					pending.add(CompletableFuture.completedFuture(error("line too long: " + length + " characters, at most " + maxLineLength)));
+				}else{
+					pending.add(submit(line.toString()));
+				}
+
+				if( !reader.ready() || pending.size() >= maxBatchSize ){
+					for( CompletableFuture<String> reply: pending ){
+						writer.write(reply.get());
+						writer.write('\n');
+					}
+
+					writer.flush();
+					pending.clear();
+				}
+			}
+		}catch( IOException e ){
+			// the client went away
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+		}catch( ExecutionException e ){
+			System.err.println("Failed to parse a sentence: " + e.getCause());
+		}
+	}
+
+	/**
+	 * Read a line, without its line terminator, keeping at most maxLength of its characters
+	 *
+	 * @param line where the line is put
+	 * @return the length of the whole line, which is more than maxLength if it was cut short, or
+	 *   -1 at the end of the stream
+	 */
+	private static long readLine(BufferedReader reader, StringBuilder line, int maxLength) throws IOException{
+		line.setLength(0);
+		long length = 0;
+		int c;
+
+		while( (c = reader.read()) != -1 && c != '\n' ){
+			if( length++ < maxLength ){
+				line.append((char)c);
+			}
+		}
+
+		if( c == -1 && length == 0 ){
+			return -1;
+		}else if( length <= maxLength && line.length() > 0 && line.charAt(line.length() - 1) == '\r' ){
+			line.setLength(line.length() - 1);
+			length--;
+		}
+
+		return length;
+	}
+
+	/**
+	 * The answer to a sentence that isn't parsed: ERROR and the reason
+	 */
+	private String error(String reason){
+		numErrors.incrementAndGet();
+		return ERROR + " " + reason;
+	}
+
+	/**
+	 * Queue a sentence, or answer BUSY if there's no room for it in time, or ERROR if it's too
+	 * long to parse
+	 */
+	private CompletableFuture<String> submit(String sentence) throws InterruptedException{
+		int numWords = sentence.trim().split("\\s+").length;
+
+		if( numWords > parser.getLengthLimit() ){
+			return CompletableFuture.completedFuture(error("sentence too long: " + numWords + " words, at most " + parser.getLengthLimit()));
+		}
+
+		if( cache != null ){
+			sentence = ParseCache.normalize(sentence);
+			ParseCache.Entry cached = cache.lookup(sentence);
+
+			if( cached != null ){
+				ParseTree parse = cache.toParseTree(cached);
+				return CompletableFuture.completedFuture(parse == null ? "" : parse.toString());
+			}
+		}
+
+		Request request = new Request(sentence);
+
+		if( !running || !queue.offer(request, queueTimeout, TimeUnit.MILLISECONDS) ){
+			numRejected.incrementAndGet();
+			request.reply.complete(BUSY);
+		}
+
+		return request.reply;
+	}
+
+	/**
+	 * Take the sentences off the queue in batches and parse them.  If a batch fails, its sentences
+	 * are parsed one at a time, and the ones that fail on their own are answered with ERROR.
+	 */
+	private void batch(){
+		List<Request> batch = new ArrayList<Request>(maxBatchSize);
+		List<String> sentences = new ArrayList<String>(maxBatchSize);
+
+		while( running ){
+			try{
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelay);
+
+				while( batch.size() < maxBatchSize ){
+					queue.drainTo(batch, maxBatchSize - batch.size());
+					long wait = deadline - System.nanoTime();
+
+					if( batch.size() == maxBatchSize || wait <= 0 ){
+						break;
+					}
+
+					Request request = queue.poll(wait, TimeUnit.NANOSECONDS);
+
+					if( request == null ){
+						break;
+					}
+
+					batch.add(request);
+				}
+			}catch( InterruptedException e ){
+				break;
+			}
+
+			for( Request request: batch ){
+				sentences.add(request.sentence);
+			}
+
+			try{
+				List<ParseTree> parses = parser.parse(sentences);
+
+				for( int i = 0; i < batch.size(); i++ ){
+					answer(batch.get(i), parses.get(i));
+				}
+			}catch( RuntimeException e ){
+				for( Request request: batch ){
+					try{
+						answer(request, parser.parse(List.of(request.sentence)).get(0));
+					}catch( RuntimeException failed ){
+						Throwable cause = failed.getCause() == null ? failed : failed.getCause();
+						System.err.println("Failed to parse \"" + request.sentence + "\": " + cause);
+						request.reply.complete(error("failed to parse: " + cause));
+					}
+				}
+			}
+
+			numSentences.addAndGet(batch.size());
+			numBatches.incrementAndGet();
+
+			batch.clear();
+			sentences.clear();
+		}
+
+		for( Request request: batch ){
+			request.reply.complete(BUSY);
+		}
+	}
+
+	/**
+	 * Answer a request with its parse, and cache the parse
+	 */
+	private void answer(Request request, ParseTree parse){
+		if( cache != null ){
+			cache.put(request.sentence, parse);
+		}
+
+		request.reply.complete(parse == null ? "" : parse.toString());
+	}
+
+	/**
+	 * Parse an address: a port number on the loopback address, or the path of a Unix domain socket
+	 */
+	static SocketAddress parseAddress(String address){
+		if( address.matches("\\d+") ){
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+		}
+
+		return UnixDomainSocketAddress.of(address);
+	}
+
+	/**
+	 * Load a grammar and serve parses until the process is stopped
+	 *
+	 * @param args the binarized grammar, a port (on localhost) or a Unix domain socket file, and
+	 *   optionally the number of worker threads, the queue limit, the most sentences to cache (0
+	 *   for no cache) and the most megabytes of the chart of each worker, which limits the length
+	 *   of the sentences that are parsed
+	 * @throws IOException if the grammar can't be read or the address can't be bound
+	 */
+	public static void main(String[] args) throws IOException{
+		if( args.length < 2 || args.length > 6 ){
+			System.err.println("usage: java nlp.parser.ParserDaemon <grammar> <port | socket file> [threads] [queue limit] [cache size] [chart MB]");
+			System.exit(1);
+		}
+
+		int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int queueLimit = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_QUEUE_LIMIT;
+		long chartMegabytes = args.length > 5 ? Long.parseLong(args[5]) : DEFAULT_CHART_MB;
+
+		Grammar grammar = new Grammar(args[0]);
+		BatchParser parser = new BatchParser(grammar, "S", numThreads, chartMegabytes << 20);
+		ParserDaemon daemon = new ParserDaemon(parser, parseAddress(args[1]), queueLimit, DEFAULT_MAX_CONNECTIONS);
+
+		if( args.length > 4 && Integer.parseInt(args[4]) > 0 ){
+			daemon.setCache(new ParseCache(ParseCache.version(grammar), Integer.parseInt(args[4]), DEFAULT_CACHE_BYTES));
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			daemon.close();
+			System.err.println(daemon);
+
+			if( daemon.cache != null ){
+				System.err.println("cache: " + daemon.cache);
+			}
+		}));
+
+		daemon.start();
+		System.err.println("Listening on " + daemon.getAddress() + " with " + numThreads + " threads, sentences of up to "
+				+ parser.getLengthLimit() + " words");
+	}
+}
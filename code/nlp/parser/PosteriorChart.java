@@ -0,0 +1,164 @@
+package nlp.parser;
+import java.util.List;
+
+/**
+ * The posterior probability of every symbol over every span of a sentence under a binarized
+ * grammar, i.e. the sum of the probabilities of the parses with that symbol over that span over
+ * the sum of the probabilities of all of the parses, from the inside and outside probabilities
+ * of a ScaledChart.  The entries whose posterior is at least a threshold are kept.
+ *
+ * A chart can be restricted to the entries kept by a chart of a coarser grammar: an entry is
+ * only built if the cluster of its symbol was kept over the same span, and the spans without
+ * any kept cluster are skipped.  CoarseToFineParser chains the charts of a stack of
+ * GrammarProjections this way.
+ *
+ * A chart is not thread safe.
+ *
+ */
+class PosteriorChart extends ScaledChart {
+	private PosteriorChart coarser; // the chart whose kept entries this one is restricted to, or null
+	private int[] toCoarser; // symbol -> the id of its cluster in the coarser chart
+	private int coarserBase; // the offset in the coarser chart of the cell being built
+
+	private boolean[] keep = new boolean[0]; // cell -> symbol -> whether its posterior is at least the threshold
+	private int[] numKept = new int[0]; // cell -> the number of kept symbols
+
+	/**
+	 * Create a chart for a grammar
+	 *
+	 * @param grammar the binarized grammar
+	 * @param startSymbol the label of the root of every parse
+	 */
+	PosteriorChart(Grammar grammar, String startSymbol){
+		super(new Rules(grammar), startId(grammar, startSymbol));
+	}
+
+	private static int startId(Grammar grammar, String startSymbol){
+		int start = grammar.getSymbols().getId(startSymbol);
+
+		if( start == -1 ){
+			throw new RuntimeException("Start symbol not in grammar: " + startSymbol);
+		}
+
+		return start;
+	}
+
+	/**
+	 * Only build the entries whose clusters are kept by a coarser chart
+	 *
+	 * @param coarser the chart of the coarser grammar, which is filled in for the same sentence first
+	 * @param projection the projection from this grammar to the coarser one
+	 */
+	void setCoarser(PosteriorChart coarser, GrammarProjection projection){
+		this.coarser = coarser;
+		this.toCoarser = new int[numSymbols];
+
+		for( int a = 0; a < numSymbols; a++ ){
+			toCoarser[a] = projection.project(a);
+		}
+	}
+
+	/**
+	 * Fill in the chart for a sentence and keep the entries with a high enough posterior
+	 *
+	 * @param words the words of the sentence
+	 * @param threshold the lowest posterior of the entries that are kept
+	 * @return whether the sentence has a parse
+	 */
+	boolean fill(List<String> words, double threshold){
+		if( !fill(words) ){
+			return false;
+		}
+
+		for( int i = 0; i < length; i++ ){
+			for( int j = i + 1; j <= length; j++ ){
+				int cell = cell(i, j);
+				int base = cell * numSymbols;
+
+				if( scale[cell] == NONE || outScale[cell] == NONE ){
+					continue;
+				}
+
+				double g = Math.exp(scale[cell] + outScale[cell] - logZ);
+
+				for( int l = 0; l < numLive[cell]; l++ ){
+					int b = live[base + l];
+					double posterior = Math.max(in[base + b] * outIn[base + b], up[base + b] * outUp[base + b]) * g;
+
+					if( posterior >= threshold ){
+						keep[base + b] = true;
+						numKept[cell]++;
+					}
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if an entry of the last sentence was kept
+	 *
+	 * @param i the start of the span
+	 * @param j the end of the span
+	 * @param symbol the symbol
+	 * @return whether the posterior of symbol over the span i to j is at least the threshold
+	 */
+	boolean keeps(int i, int j, int symbol){
+		return keep[cell(i, j) * numSymbols + symbol];
+	}
+
+	/**
+	 * Checks if any entry over a span of the last sentence was kept
+	 *
+	 * @param i the start of the span
+	 * @param j the end of the span
+	 * @return whether a symbol over the span i to j was kept
+	 */
+	boolean keepsSpan(int i, int j){
+		return numKept[cell(i, j)] > 0;
+	}
+
+	/**
+	 * Skip the spans without a kept cluster in the coarser chart
+	 */
+	boolean startCell(int i, int j){
+		if( coarser == null ){
+			return true;
+		}else if( !coarser.keepsSpan(i, j) ){
+			return false;
+		}
+
+		coarserBase = coarser.cell(i, j) * coarser.numSymbols;
+		return true;
+	}
+
+	/**
+	 * Only build the symbols whose clusters the coarser chart kept over the span
+	 */
+	boolean allows(int symbol){
+		return coarser == null || coarser.keep[coarserBase + toCoarser[symbol]];
+	}
+
+	void allocate(int numCells, int size){
+		keep = new boolean[size];
+		numKept = new int[numCells];
+	}
+
+	void clear(){
+		for( int i = 0; i < length; i++ ){
+			for( int j = i + 1; j <= length; j++ ){
+				int cell = cell(i, j);
+				int base = cell * numSymbols;
+
+				for( int l = 0; l < numLive[cell]; l++ ){
+					keep[base + live[base + l]] = false;
+				}
+
+				numKept[cell] = 0;
+			}
+		}
+
+		super.clear();
+	}
+}
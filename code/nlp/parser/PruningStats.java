@@ -0,0 +1,111 @@
+package nlp.parser;
+
+/**
+ * Counts of the chart entries (edges) a CKYParser built and pruned, summed over the sentences it
+ * parsed since the counts were last reset, and of the sentences it skipped because they were
+ * longer than its length limit.  Use add() to sum the counts of several parsers.
+ *
+ */
+public class PruningStats {
+	private long sentences = 0; // the number of sentences parsed
+	private long skipped = 0; // the number of sentences too long to parse
+	private long edges = 0; // the number of chart entries built
+	private long pruned = 0; // the number of chart entries removed by the beam or the threshold
+
+	/**
+	 * Count a parsed sentence
+	 */
+	void sentence(){
+		sentences++;
+	}
+
+	/**
+	 * Count a sentence that was too long to parse
+	 */
+	void skipped(){
+		skipped++;
+	}
+
+	/**
+	 * Count the entries of a chart cell
+	 *
+	 * @param built the number of entries built in the cell
+	 * @param removed the number of them that were pruned
+	 */
+	void cell(int built, int removed){
+		edges += built;
+		pruned += removed;
+	}
+
+	/**
+	 * Add the counts of other to these counts
+	 *
+	 * @param other the counts to add
+	 */
+	public void add(PruningStats other){
+		sentences += other.sentences;
+		skipped += other.skipped;
+		edges += other.edges;
+		pruned += other.pruned;
+	}
+
+	/**
+	 * Set the counts back to 0
+	 */
+	public void reset(){
+		sentences = 0;
+		skipped = 0;
+		edges = 0;
+		pruned = 0;
+	}
+
+	/**
+	 * Get the number of sentences parsed
+	 *
+	 * @return the number of sentences
+	 */
+	public long getSentences(){
+		return sentences;
+	}
+
+	/**
+	 * Get the number of sentences that weren't parsed because they were longer than the length
+	 * limit (see CKYParser.setLengthLimit())
+	 *
+	 * @return the number of skipped sentences
+	 */
+	public long getSkipped(){
+		return skipped;
+	}
+
+	/**
+	 * Get the number of chart entries built
+	 *
+	 * @return the number of entries
+	 */
+	public long getEdges(){
+		return edges;
+	}
+
+	/**
+	 * Get the number of chart entries pruned
+	 *
+	 * @return the number of pruned entries
+	 */
+	public long getPruned(){
+		return pruned;
+	}
+
+	/**
+	 * Get the number of chart entries that were kept
+	 *
+	 * @return the number of entries that weren't pruned
+	 */
+	public long getRemaining(){
+		return edges - pruned;
+	}
+
+	public String toString(){
+		return sentences + " sentences (" + skipped + " too long): " + edges + " edges, " + pruned + " pruned, " + getRemaining() + " remaining";
+	}
+}
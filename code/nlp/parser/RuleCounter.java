@@ -0,0 +1,84 @@
+package nlp.parser;
+import java.util.Arrays;
+
+/**
+ * A TreeHandler that counts the rules of the trees it reads straight into a RuleTable, without
+ * building any ParseTree objects.  It counts the same rules as ConstructPCFG.updateCounts():
+ * one rule per node, from its label to the labels of its children, which is lexical if the
+ * child is a word.
+ *
+ * The only state is a stack of the labels of the open nodes and of their children so far, so
+ * the memory used doesn't depend on the number or the size of the trees.
+ *
+ */
+public class RuleCounter implements TreeHandler {
+	private final SymbolTable symbols;
+	private final RuleTable table;
+
+	private int depth = 0; // the number of open nodes
+	private int[] lhs = new int[16]; // depth -> the label id of the open node
+	private boolean[] lexical = new boolean[16]; // depth -> whether the open node has a word
+	private int[] childrenStart = new int[16]; // depth -> where the open node's children start in children
+	private int[] children = new int[64]; // the label ids of the children of all of the open nodes
+	private int numChildren = 0; // the number of entries used in children
+
+	/**
+	 * Create a counter that adds to the counts of table
+	 *
+	 * @param symbols the symbol table for the labels and words
+	 * @param table the table the rules are counted in
+	 */
+	public RuleCounter(SymbolTable symbols, RuleTable table){
+		this.symbols = symbols;
+		this.table = table;
+	}
+
+	/**
+	 * Forget the open nodes, e.g. after the reader failed part way through a malformed tree.  The
+	 * rules of the nodes that were already closed stay counted.
+	 */
+	public void reset(){
+		depth = 0;
+		numChildren = 0;
+	}
+
+	public void openNode(CharSequence text, int start, int end){
+		int label = symbols.intern(text, start, end);
+
+		if( depth > 0 ){
+			addChild(label);
+		}
+
+		if( depth == lhs.length ){
+			lhs = Arrays.copyOf(lhs, 2 * depth);
+			lexical = Arrays.copyOf(lexical, 2 * depth);
+			childrenStart = Arrays.copyOf(childrenStart, 2 * depth);
+		}
+
+		lhs[depth] = label;
+		lexical[depth] = false;
+		childrenStart[depth] = numChildren;
+		depth++;
+	}
+
+	public void leaf(CharSequence text, int start, int end){
+		addChild(symbols.intern(text, start, end));
+		lexical[depth-1] = true;
+	}
+
+	public void closeNode(){
+		depth--;
+		int start = childrenStart[depth];
+
+		table.add(lhs[depth], children, start, numChildren - start, lexical[depth], 1);
+		numChildren = start;
+	}
+
+	private void addChild(int label){
+		if( numChildren == children.length ){
+			children = Arrays.copyOf(children, 2 * numChildren);
+		}
+
+		children[numChildren++] = label;
+	}
+}
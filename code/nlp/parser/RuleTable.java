@@ -0,0 +1,375 @@
+package nlp.parser;
+import java.util.Arrays;
+
+/**
+ * A table of integer coded grammar rules along with their counts and weights.  Rules are
+ * identified by (lhs, rhs, lexical) where the symbols are ids from a SymbolTable, and get
+ * dense rule ids in the order they are added.  The table also keeps the total count of every
+ * LHS symbol, i.e. the sum of the counts of the rules with that LHS.
+ *
+ * Everything is stored in primitive arrays: the rules are found through an open addressing
+ * hash table of rule ids, the RHS symbols of all of the rules are packed into one array and
+ * the counts are longs, so adding to a count never allocates.
+ *
+ * The rules with the same LHS are chained together, and the table remembers which LHS symbols
+ * have had counts added since the weights were last updated, so updateWeights() only recomputes
+ * the weights of those rules.  This keeps folding a little new data into a big table cheap.
+ *
+ * A rule table is not thread safe.
+ *
+ */
+public class RuleTable {
+	private static final int EMPTY = -1; // an unused slot in the hash table
+
+	private int[] slots = newSlots(64); // open addressing hash table of rule ids, EMPTY if unused
+	private int mask = 63; // slots.length - 1
+
+	private int[] lhs = new int[16]; // rule id -> LHS symbol id
+	private int[] rhsStart = new int[17]; // rule id -> offset of its first RHS symbol in rhsSymbols
+	private int[] rhsSymbols = new int[32]; // the RHS symbol ids of all of the rules, one after the other
+	private boolean[] lexical = new boolean[16]; // rule id -> whether the rule is lexical
+	private int[] hashes = new int[16]; // rule id -> hash of the rule
+	private long[] counts = new long[16]; // rule id -> count
+	private double[] weights = new double[16]; // rule id -> weight
+	private int[] nextSameLhs = new int[16]; // rule id -> the next rule with the same LHS, or EMPTY
+	private int numRules = 0;
+
+	private long[] lhsCounts = new long[16]; // symbol id -> count
+	private int[] firstRule = newSlots(16); // symbol id -> the most recently added rule with it as the LHS, or EMPTY
+	private boolean[] changed = new boolean[16]; // symbol id -> whether it is in changedLhs
+	private int[] changedLhs = new int[16]; // the LHS symbols whose counts changed since the last updateWeights()
+	private int numChanged = 0;
+
+	/**
+	 * Add count to the count of a rule, adding the rule to the table if it isn't already in it
+	 *
+	 * @param lhs the LHS symbol id
+	 * @param rhs the RHS symbol ids (only the first rhsLength are used)
+	 * @param rhsLength the number of RHS symbols
+	 * @param lexical whether this is a lexical rule
+	 * @param count the count to add
+	 * @return the id of the rule
+	 */
+	public int add(int lhs, int[] rhs, int rhsLength, boolean lexical, long count){
+		return add(lhs, rhs, 0, rhsLength, lexical, count);
+	}
+
+	/**
+	 * Add count to the count of a rule, adding the rule to the table if it isn't already in it
+	 *
+	 * @param lhs the LHS symbol id
+	 * @param rhs an array with the RHS symbol ids
+	 * @param offset the offset of the first RHS symbol id in rhs
+	 * @param rhsLength the number of RHS symbols
+	 * @param lexical whether this is a lexical rule
+	 * @param count the count to add
+	 * @return the id of the rule
+	 */
+	public int add(int lhs, int[] rhs, int offset, int rhsLength, boolean lexical, long count){
+		int hash = hash(lhs, rhs, offset, rhsLength, lexical);
+		int slot = findSlot(hash, lhs, rhs, offset, rhsLength, lexical);
+		int id = slots[slot];
+
+		if( id == EMPTY ){
+			id = append(hash, lhs, rhs, offset, rhsLength, lexical);
+			slots[slot] = id;
+
+			// keep the table at most half full
+			if( 2 * numRules > mask ){
+				rehash();
+			}
+		}
+
+		counts[id] += count;
+		lhsCounts[lhs] += count;
+
+		if( !changed[lhs] ){
+			changed[lhs] = true;
+
+			if( numChanged == changedLhs.length ){
+				changedLhs = Arrays.copyOf(changedLhs, 2 * numChanged);
+			}
+
+			changedLhs[numChanged++] = lhs;
+		}
+
+		return id;
+	}
+
+	/**
+	 * Find a rule
+	 *
+	 * @param lhs the LHS symbol id
+	 * @param rhs the RHS symbol ids (only the first rhsLength are used)
+	 * @param rhsLength the number of RHS symbols
+	 * @param lexical whether this is a lexical rule
+	 * @return the id of the rule or -1 if it isn't in the table
+	 */
+	public int find(int lhs, int[] rhs, int rhsLength, boolean lexical){
+		return slots[findSlot(hash(lhs, rhs, 0, rhsLength, lexical), lhs, rhs, 0, rhsLength, lexical)];
+	}
+
+	/**
+	 * Set the weight of every rule to its count divided by the count of its LHS.  The weights are
+	 * updated in place, and only for the rules whose LHS count changed since the last update (the
+	 * weights of the other rules can't have changed).
+	 *
+	 * @return the number of LHS symbols whose rules were reweighted
+	 */
+	public int updateWeights(){
+		int updated = numChanged;
+
+		for( int i = 0; i < numChanged; i++ ){
+			int symbol = changedLhs[i];
+			double total = (double)lhsCounts[symbol];
+
+			for( int rule = firstRule[symbol]; rule != EMPTY; rule = nextSameLhs[rule] ){
+				weights[rule] = (double)counts[rule] / total;
+			}
+
+			changed[symbol] = false;
+		}
+
+		numChanged = 0;
+		return updated;
+	}
+
+	/**
+	 * The number of LHS symbols whose counts changed since the weights were last updated
+	 *
+	 * @return the number of changed LHS symbols
+	 */
+	public int numChangedLhs(){
+		return numChanged;
+	}
+
+	/**
+	 * The number of rules in the table
+	 *
+	 * @return the number of rules
+	 */
+	public int size(){
+		return numRules;
+	}
+
+	/**
+	 * Get the LHS symbol id of a rule
+	 *
+	 * @param rule the rule id
+	 * @return the LHS symbol id
+	 */
+	public int getLhs(int rule){
+		return lhs[rule];
+	}
+
+	/**
+	 * Get the number of RHS symbols of a rule
+	 *
+	 * @param rule the rule id
+	 * @return the number of RHS symbols
+	 */
+	public int numRhs(int rule){
+		return rhsStart[rule+1] - rhsStart[rule];
+	}
+
+	/**
+	 * Get a RHS symbol id of a rule
+	 *
+	 * @param rule the rule id
+	 * @param index the position on the RHS
+	 * @return the RHS symbol id
+	 */
+	public int getRhs(int rule, int index){
+		return rhsSymbols[rhsStart[rule] + index];
+	}
+
+	/**
+	 * Whether a rule is a lexical rule
+	 *
+	 * @param rule the rule id
+	 * @return whether the rule is lexical
+	 */
+	public boolean isLexical(int rule){
+		return lexical[rule];
+	}
+
+	/**
+	 * Get the count of a rule
+	 *
+	 * @param rule the rule id
+	 * @return the count of the rule
+	 */
+	public long getCount(int rule){
+		return counts[rule];
+	}
+
+	/**
+	 * Get the weight of a rule, which is 0.0 until the weights are updated
+	 *
+	 * @param rule the rule id
+	 * @return the weight of the rule
+	 */
+	public double getWeight(int rule){
+		return weights[rule];
+	}
+
+	/**
+	 * Get the total count of the rules with a given LHS
+	 *
+	 * @param symbol the LHS symbol id
+	 * @return the count of the symbol as a LHS
+	 */
+	public long getLhsCount(int symbol){
+		return symbol < lhsCounts.length ? lhsCounts[symbol] : 0;
+	}
+
+	/**
+	 * The number of bytes used by the arrays of this table (including unused capacity), e.g. to
+	 * compare memoryUsage()/size() bytes per rule across grammars.
+	 *
+	 * @return the approximate number of bytes used by the table
+	 */
+	public long memoryUsage(){
+		return arrayBytes(slots.length, 4) +
+			arrayBytes(lhs.length, 4) +
+			arrayBytes(rhsStart.length, 4) +
+			arrayBytes(rhsSymbols.length, 4) +
+			arrayBytes(lexical.length, 1) +
+			arrayBytes(hashes.length, 4) +
+			arrayBytes(counts.length, 8) +
+			arrayBytes(weights.length, 8) +
+			arrayBytes(nextSameLhs.length, 4) +
+			arrayBytes(lhsCounts.length, 8) +
+			arrayBytes(firstRule.length, 4) +
+			arrayBytes(changed.length, 1) +
+			arrayBytes(changedLhs.length, 4);
+	}
+
+	private static long arrayBytes(int length, int elementBytes){
+		// 16 bytes of array header, rounded up to 8 byte alignment
+		return (16 + (long)length * elementBytes + 7) & ~7L;
+	}
+
+	/**
+	 * Add a new rule to the end of the rule arrays
+	 *
+	 * @return the id of the new rule
+	 */
+	private int append(int hash, int lhs, int[] rhs, int offset, int rhsLength, boolean lexical){
+		int id = numRules++;
+
+		if( id == this.lhs.length ){
+			int capacity = 2 * id;
+			this.lhs = Arrays.copyOf(this.lhs, capacity);
+			this.rhsStart = Arrays.copyOf(this.rhsStart, capacity + 1);
+			this.lexical = Arrays.copyOf(this.lexical, capacity);
+			this.hashes = Arrays.copyOf(this.hashes, capacity);
+			this.counts = Arrays.copyOf(this.counts, capacity);
+			this.weights = Arrays.copyOf(this.weights, capacity);
+			this.nextSameLhs = Arrays.copyOf(this.nextSameLhs, capacity);
+		}
+
+		if( lhs >= lhsCounts.length ){
+			int capacity = Math.max(2 * lhsCounts.length, lhs + 1);
+			int old = firstRule.length;
+			lhsCounts = Arrays.copyOf(lhsCounts, capacity);
+			changed = Arrays.copyOf(changed, capacity);
+			firstRule = Arrays.copyOf(firstRule, capacity);
+			Arrays.fill(firstRule, old, capacity, EMPTY);
+		}
+
+		int start = rhsStart[id];
+
+		if( start + rhsLength > rhsSymbols.length ){
+			rhsSymbols = Arrays.copyOf(rhsSymbols, Math.max(2 * rhsSymbols.length, start + rhsLength));
+		}
+
+		System.arraycopy(rhs, offset, rhsSymbols, start, rhsLength);
+		rhsStart[id+1] = start + rhsLength;
+
+		this.lhs[id] = lhs;
+		this.lexical[id] = lexical;
+		this.hashes[id] = hash;
+		this.nextSameLhs[id] = firstRule[lhs];
+		firstRule[lhs] = id;
+
+		return id;
+	}
+
+	/**
+	 * Find the slot that has the rule or, if the rule isn't in the table, the empty slot where
+	 * it belongs
+	 */
+	private int findSlot(int hash, int lhs, int[] rhs, int offset, int rhsLength, boolean lexical){
+		int slot = hash & mask;
+
+		while( true ){
+			int id = slots[slot];
+
+			if( id == EMPTY || (hashes[id] == hash && matches(id, lhs, rhs, offset, rhsLength, lexical)) ){
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean matches(int id, int lhs, int[] rhs, int offset, int rhsLength, boolean lexical){
+		if( this.lhs[id] != lhs || this.lexical[id] != lexical || numRhs(id) != rhsLength ){
+			return false;
+		}
+
+		int start = rhsStart[id];
+
+		for( int i = 0; i < rhsLength; i++ ){
+			if( rhsSymbols[start+i] != rhs[offset+i] ){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Double the size of the hash table
+	 */
+	private void rehash(){
+		slots = newSlots(2 * slots.length);
+		mask = slots.length - 1;
+
+		for( int id = 0; id < numRules; id++ ){
+			int slot = hashes[id] & mask;
+
+			while( slots[slot] != EMPTY ){
+				slot = (slot + 1) & mask;
+			}
+
+			slots[slot] = id;
+		}
+	}
+
+	private static int[] newSlots(int size){
+		int[] slots = new int[size];
+		Arrays.fill(slots, EMPTY);
+		return slots;
+	}
+
+	/**
+	 * A structural hash of a rule, mixed so that the low bits can be used as a slot
+	 */
+	private static int hash(int lhs, int[] rhs, int offset, int rhsLength, boolean lexical){
+		int h = 31 * lhs + (lexical ? 1 : 0);
+
+		for( int i = 0; i < rhsLength; i++ ){
+			h = 31 * h + rhs[offset+i];
+		}
+
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+}
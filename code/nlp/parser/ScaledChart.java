@@ -0,0 +1,598 @@
+package nlp.parser;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The inside and outside probabilities of a sentence under a binarized grammar, the chart under
+ * InsideOutside (which adds up the expected rule counts from it) and PosteriorChart (which keeps
+ * the entries with a high enough posterior).
+ *
+ * The chart holds probabilities, not log probabilities, so that the inside and outside sums are
+ * plain additions.  To keep them from underflowing on long sentences, every cell is scaled so
+ * that its largest entry is 1, and keeps the log of its scale.  Like CKYParser, a cell has two
+ * layers, before and after the unary rules, and the unary rules are applied in one pass over a
+ * sparse closure, which holds the sum over all of the unary chains from A to B rather than the
+ * best one.
+ *
+ * A word that isn't in the grammar is looked up by its signature (see UnknownWords).
+ *
+ * A chart is not thread safe, but charts on different threads can share their Rules.
+ *
+ */
+class ScaledChart {
+	static final double NONE = Double.NEGATIVE_INFINITY; // the log scale of an empty cell
+	private static final double CLOSURE_EPSILON = 1e-12; // unary chains are added up until the longer ones add less than this
+	private static final int MAX_CHAIN = 100; // the longest unary chains in the closure
+	private static final int CACHE_SIZE = 10000; // the most unknown words whose signatures are cached
+
+	/**
+	 * The weights of the rules of a grammar as probabilities, the rules indexed by their children
+	 * and words, and the unary closure.  The weights can be changed in place (InsideOutside does
+	 * after every iteration), after which the closure has to be rebuilt.
+	 */
+	static class Rules {
+		final Grammar grammar;
+		final int numSymbols;
+
+		// the weights, indexed like the rules of the grammar
+		final double[] binaryWeight;
+		final double[] unaryWeight;
+		final double[] lexicalWeight;
+
+		// the rules by left child, by right child, by child and by word: the rule ids of key k are
+		// at offsets start[k] up to start[k+1]
+		final int[] byLeftStart, byLeft;
+		final int[] byRightStart, byRight;
+		final int[] byChildStart, byChild;
+		final int[] byWordStart, byWord;
+
+		// the sum over the unary chains A -> ... -> B of one or more rules, by child B
+		final int[] closureStart;
+		int[] closureParent = new int[16];
+		double[] closureWeight = new double[16];
+		int numClosure = 0;
+
+		/**
+		 * Index the rules of a grammar, with the weights of the grammar
+		 *
+		 * @param grammar the binarized grammar
+		 */
+		Rules(Grammar grammar){
+			this.grammar = grammar;
+			this.numSymbols = grammar.numSymbols();
+
+			int numBinary = grammar.numBinaryRules();
+			int numUnary = grammar.numUnaryRules();
+			int numLexical = grammar.numLexicalRules();
+			binaryWeight = new double[numBinary];
+			unaryWeight = new double[numUnary];
+			lexicalWeight = new double[numLexical];
+
+			int[] left = new int[numBinary];
+			int[] right = new int[numBinary];
+			int[] child = new int[numUnary];
+			int[] word = new int[numLexical];
+
+			for( int r = 0; r < numBinary; r++ ){
+				binaryWeight[r] = Math.exp(grammar.getBinaryScore(r));
+				left[r] = grammar.getBinaryLeft(r);
+				right[r] = grammar.getBinaryRight(r);
+			}
+
+			for( int r = 0; r < numUnary; r++ ){
+				unaryWeight[r] = Math.exp(grammar.getUnaryScore(r));
+				child[r] = grammar.getUnaryChild(r);
+			}
+
+			for( int r = 0; r < numLexical; r++ ){
+				lexicalWeight[r] = Math.exp(grammar.getLexicalScore(r));
+				word[r] = grammar.getLexicalWord(r);
+			}
+
+			byLeftStart = new int[numSymbols + 1];
+			byLeft = index(left, byLeftStart);
+			byRightStart = new int[numSymbols + 1];
+			byRight = index(right, byRightStart);
+			byChildStart = new int[numSymbols + 1];
+			byChild = index(child, byChildStart);
+			byWordStart = new int[grammar.getWords().size() + 1];
+			byWord = index(word, byWordStart);
+
+			closureStart = new int[numSymbols + 1];
+			buildClosure();
+		}
+
+		/**
+		 * Sum the unary chains up from every symbol with the current unary weights, one rule at a
+		 * time, until the chains that are one rule longer add next to nothing
+		 */
+		void buildClosure(){
+			double[] total = new double[numSymbols]; // symbol -> the sum of the chains from it down to the child
+			double[] current = new double[numSymbols]; // symbol -> the sum of the chains of the current length
+			double[] next = new double[numSymbols];
+			int[] reached = new int[numSymbols];
+			int[] currentList = new int[numSymbols];
+			int[] nextList = new int[numSymbols];
+			numClosure = 0;
+
+			for( int child = 0; child < numSymbols; child++ ){
+				closureStart[child] = numClosure;
+				int numReached = 0;
+				int numCurrent = 1;
+				currentList[0] = child;
+				current[child] = 1.0;
+
+				for( int length = 1; length <= MAX_CHAIN && numCurrent > 0; length++ ){
+					int numNext = 0;
+					double sum = 0.0;
+
+					for( int c = 0; c < numCurrent; c++ ){
+						int symbol = currentList[c];
+
+						for( int x = byChildStart[symbol]; x < byChildStart[symbol+1]; x++ ){
+							int r = byChild[x];
+							int parent = grammar.getUnaryParent(r);
+							double w = unaryWeight[r] * current[symbol];
+
+							if( w > 0 ){
+								if( next[parent] == 0 ){
+									nextList[numNext++] = parent;
+								}
+
+								next[parent] += w;
+								sum += w;
+							}
+						}
+
+						current[symbol] = 0;
+					}
+
+					for( int n = 0; n < numNext; n++ ){
+						int parent = nextList[n];
+
+						if( total[parent] == 0 ){
+							reached[numReached++] = parent;
+						}
+
+						total[parent] += next[parent];
+						current[parent] = next[parent];
+						next[parent] = 0;
+					}
+
+					int[] swap = currentList;
+					currentList = nextList;
+					nextList = swap;
+					numCurrent = numNext;
+
+					if( sum < CLOSURE_EPSILON ){
+						break;
+					}
+				}
+
+				// the chains that were too unlikely to follow any further
+				for( int c = 0; c < numCurrent; c++ ){
+					current[currentList[c]] = 0;
+				}
+
+				for( int i = 0; i < numReached; i++ ){
+					int parent = reached[i];
+					addClosure(parent, total[parent]);
+					total[parent] = 0;
+				}
+			}
+
+			closureStart[numSymbols] = numClosure;
+		}
+
+		private void addClosure(int parent, double weight){
+			if( numClosure == closureParent.length ){
+				closureParent = Arrays.copyOf(closureParent, 2 * numClosure);
+				closureWeight = Arrays.copyOf(closureWeight, 2 * numClosure);
+			}
+
+			closureParent[numClosure] = parent;
+			closureWeight[numClosure] = weight;
+			numClosure++;
+		}
+
+		/**
+		 * Sort the ids 0, 1, ... by key (a counting sort), filling in the offset of the first id of
+		 * each key in start
+		 */
+		private static int[] index(int[] keys, int[] start){
+			for( int key: keys ){
+				start[key + 1]++;
+			}
+
+			for( int i = 1; i < start.length; i++ ){
+				start[i] += start[i-1];
+			}
+
+			int[] ids = new int[keys.length];
+			int[] next = Arrays.copyOf(start, start.length - 1);
+
+			for( int id = 0; id < keys.length; id++ ){
+				ids[next[keys[id]]++] = id;
+			}
+
+			return ids;
+		}
+	}
+
+	final Rules rules;
+	final Grammar grammar;
+	final int numSymbols;
+	final int start; // the id of the start symbol
+	private final LexiconCache lexicon;
+
+	int maxLength = 0; // the longest sentence the chart has room for
+	int length = 0; // the number of words of the last sentence
+	double logZ = NONE; // the log probability of the last sentence
+	double[] in = new double[0]; // cell -> symbol -> scaled inside probability, before unary rules
+	double[] up = new double[0]; // the same after unary rules
+	double[] outIn = new double[0]; // cell -> symbol -> scaled outside probability of the entries of in
+	double[] outUp = new double[0]; // the same for the entries of up
+	double[] scale = new double[0]; // cell -> the log of the scale of in and up, or NONE if the cell is empty
+	double[] outScale = new double[0]; // cell -> the log of the scale of outIn and outUp, or NONE
+	int[] live = new int[0]; // cell -> the symbols with an entry, in the first numLive[cell] of its slots
+	int[] numLive = new int[0];
+	int[] wordIds = new int[0];
+	private long entries = 0; // the number of entries built, over all of the sentences
+
+	/**
+	 * Create a chart
+	 *
+	 * @param rules the rules of the grammar, which may be shared with other charts
+	 * @param start the id of the start symbol
+	 */
+	ScaledChart(Rules rules, int start){
+		this.rules = rules;
+		this.grammar = rules.grammar;
+		this.numSymbols = rules.numSymbols;
+		this.start = start;
+		this.lexicon = new LexiconCache(grammar.getWords(), CACHE_SIZE);
+	}
+
+	/**
+	 * Fill in the inside and outside probabilities of a sentence, after clearing the chart of the
+	 * last one
+	 *
+	 * @param words the words of the sentence
+	 * @return whether the sentence has a parse; if it does, its log probability is in logZ
+	 */
+	boolean fill(List<String> words){
+		clear();
+		length = 0;
+		logZ = NONE;
+		ensureCapacity(words.size());
+		length = words.size();
+
+		for( int i = 0; i < length; i++ ){
+			wordIds[i] = lexicon.lookup(words.get(i));
+		}
+
+		inside();
+
+		int root = cell(0, length);
+
+		if( length == 0 || scale[root] == NONE || up[root * numSymbols + start] == 0 ){
+			return false;
+		}
+
+		logZ = Math.log(up[root * numSymbols + start]) + scale[root];
+		outside();
+
+		return true;
+	}
+
+	/**
+	 * Get the number of entries built
+	 *
+	 * @return the number of entries over all of the sentences so far
+	 */
+	long getNumEntries(){
+		return entries;
+	}
+
+	/**
+	 * Called before the entries of a cell are built
+	 *
+	 * @return whether to build the cell; if not, it's left empty
+	 */
+	boolean startCell(int i, int j){
+		return true;
+	}
+
+	/**
+	 * Checks if an entry may be built for a symbol in the cell that is being built
+	 */
+	boolean allows(int symbol){
+		return true;
+	}
+
+	/**
+	 * Allocate the arrays of a subclass for a chart of numCells cells of size entries, before the
+	 * chart switches to its new size
+	 */
+	void allocate(int numCells, int size){
+	}
+
+	private void inside(){
+		for( int span = 1; span <= length; span++ ){
+			for( int i = 0; i + span <= length; i++ ){
+				int j = i + span;
+				int cell = cell(i, j);
+				int base = cell * numSymbols;
+				double ref = NONE; // the log scale of the entries as they're added up
+
+				if( !startCell(i, j) ){
+					scale[cell] = NONE;
+					continue;
+				}
+
+				if( span == 1 ){
+					int word = wordIds[i];
+					ref = 0.0;
+
+					if( word != -1 ){
+						for( int x = rules.byWordStart[word]; x < rules.byWordStart[word+1]; x++ ){
+							int r = rules.byWord[x];
+							add(in, cell, grammar.getLexicalTag(r), rules.lexicalWeight[r]);
+						}
+					}
+				}else{
+					for( int k = i + 1; k < j; k++ ){
+						if( scale[cell(i, k)] != NONE && scale[cell(k, j)] != NONE ){
+							ref = Math.max(ref, scale[cell(i, k)] + scale[cell(k, j)]);
+						}
+					}
+
+					for( int k = i + 1; ref != NONE && k < j; k++ ){
+						int left = cell(i, k);
+						int right = cell(k, j);
+
+						if( scale[left] == NONE || scale[right] == NONE ){
+							continue;
+						}
+
+						double f = Math.exp(scale[left] + scale[right] - ref);
+						int leftBase = left * numSymbols;
+						int rightBase = right * numSymbols;
+
+						for( int l = 0; l < numLive[left]; l++ ){
+							int b = live[leftBase + l];
+							double bScore = up[leftBase + b] * f;
+
+							for( int x = rules.byLeftStart[b]; x < rules.byLeftStart[b+1]; x++ ){
+								int r = rules.byLeft[x];
+								double cScore = up[rightBase + grammar.getBinaryRight(r)];
+
+								if( cScore > 0 ){
+									add(in, cell, grammar.getBinaryParent(r), rules.binaryWeight[r] * bScore * cScore);
+								}
+							}
+						}
+					}
+				}
+
+				// up = in + the unary chains on top of in
+				int numIn = numLive[cell];
+
+				for( int l = 0; l < numIn; l++ ){
+					int b = live[base + l];
+					up[base + b] = in[base + b];
+				}
+
+				for( int l = 0; l < numIn; l++ ){
+					int b = live[base + l];
+
+					for( int e = rules.closureStart[b]; e < rules.closureStart[b+1]; e++ ){
+						add(up, cell, rules.closureParent[e], rules.closureWeight[e] * in[base + b]);
+					}
+				}
+
+				entries += numLive[cell];
+				scale[cell] = normalize(cell, in, up, ref);
+			}
+		}
+	}
+
+	private void outside(){
+		for( int span = length; span >= 1; span-- ){
+			for( int i = 0; i + span <= length; i++ ){
+				int j = i + span;
+				int cell = cell(i, j);
+				int base = cell * numSymbols;
+				double ref = NONE;
+
+				if( scale[cell] == NONE ){
+					outScale[cell] = NONE;
+					continue;
+				}
+
+				if( span == length ){
+					outUp[base + start] = 1.0;
+					ref = 0.0;
+				}else{
+					// the cell is the left child of (i, k) or the right child of (k, j)
+					for( int k = j + 1; k <= length; k++ ){
+						if( outScale[cell(i, k)] != NONE && scale[cell(j, k)] != NONE ){
+							ref = Math.max(ref, outScale[cell(i, k)] + scale[cell(j, k)]);
+						}
+					}
+
+					for( int k = 0; k < i; k++ ){
+						if( outScale[cell(k, j)] != NONE && scale[cell(k, i)] != NONE ){
+							ref = Math.max(ref, outScale[cell(k, j)] + scale[cell(k, i)]);
+						}
+					}
+
+					for( int k = j + 1; ref != NONE && k <= length; k++ ){
+						int parent = cell(i, k);
+						int sibling = cell(j, k);
+
+						if( outScale[parent] != NONE && scale[sibling] != NONE ){
+							double f = Math.exp(outScale[parent] + scale[sibling] - ref);
+							int parentBase = parent * numSymbols;
+							int siblingBase = sibling * numSymbols;
+
+							for( int l = 0; l < numLive[cell]; l++ ){
+								int b = live[base + l];
+								double sum = 0.0;
+
+								for( int x = rules.byLeftStart[b]; x < rules.byLeftStart[b+1]; x++ ){
+									int r = rules.byLeft[x];
+									sum += outIn[parentBase + grammar.getBinaryParent(r)] * rules.binaryWeight[r] * up[siblingBase + grammar.getBinaryRight(r)];
+								}
+
+								outUp[base + b] += sum * f;
+							}
+						}
+					}
+
+					for( int k = 0; ref != NONE && k < i; k++ ){
+						int parent = cell(k, j);
+						int sibling = cell(k, i);
+
+						if( outScale[parent] != NONE && scale[sibling] != NONE ){
+							double f = Math.exp(outScale[parent] + scale[sibling] - ref);
+							int parentBase = parent * numSymbols;
+							int siblingBase = sibling * numSymbols;
+
+							for( int l = 0; l < numLive[cell]; l++ ){
+								int c = live[base + l];
+								double sum = 0.0;
+
+								for( int x = rules.byRightStart[c]; x < rules.byRightStart[c+1]; x++ ){
+									int r = rules.byRight[x];
+									sum += outIn[parentBase + grammar.getBinaryParent(r)] * rules.binaryWeight[r] * up[siblingBase + grammar.getBinaryLeft(r)];
+								}
+
+								outUp[base + c] += sum * f;
+							}
+						}
+					}
+				}
+
+				if( ref == NONE ){
+					outScale[cell] = NONE;
+					continue;
+				}
+
+				// outIn = outUp + the unary chains above it
+				for( int l = 0; l < numLive[cell]; l++ ){
+					int b = live[base + l];
+					double sum = outUp[base + b];
+
+					for( int e = rules.closureStart[b]; e < rules.closureStart[b+1]; e++ ){
+						sum += rules.closureWeight[e] * outUp[base + rules.closureParent[e]];
+					}
+
+					outIn[base + b] = sum;
+				}
+
+				outScale[cell] = normalize(cell, outUp, outIn, ref);
+			}
+		}
+	}
+
+	/**
+	 * Add to the entry of a symbol in a cell, adding the symbol to the live symbols of the cell
+	 * if it's new.  Nothing is added if allows() doesn't allow the symbol.
+	 */
+	private void add(double[] layer, int cell, int symbol, double value){
+		int base = cell * numSymbols;
+
+		if( value > 0 && allows(symbol) ){
+			if( in[base + symbol] == 0 && up[base + symbol] == 0 ){
+				live[base + numLive[cell]++] = symbol;
+			}
+
+			layer[base + symbol] += value;
+		}
+	}
+
+	/**
+	 * Scale the live entries of both layers of a cell so the largest one is 1
+	 *
+	 * @param ref the log scale of the entries before they're scaled
+	 * @return the log scale of the entries after they're scaled, or NONE if they're all 0
+	 */
+	private double normalize(int cell, double[] lower, double[] upper, double ref){
+		int base = cell * numSymbols;
+		double max = 0.0;
+
+		for( int l = 0; l < numLive[cell]; l++ ){
+			max = Math.max(max, upper[base + live[base + l]]);
+		}
+
+		if( max == 0 || ref == NONE ){
+			return NONE;
+		}
+
+		for( int l = 0; l < numLive[cell]; l++ ){
+			int b = live[base + l];
+			lower[base + b] /= max;
+			upper[base + b] /= max;
+		}
+
+		return ref + Math.log(max);
+	}
+
+	/**
+	 * Reset the entries of the chart of the last sentence
+	 */
+	void clear(){
+		for( int i = 0; i < length; i++ ){
+			for( int j = i + 1; j <= length; j++ ){
+				int cell = cell(i, j);
+				int base = cell * numSymbols;
+
+				for( int l = 0; l < numLive[cell]; l++ ){
+					int b = live[base + l];
+					in[base + b] = 0;
+					up[base + b] = 0;
+					outIn[base + b] = 0;
+					outUp[base + b] = 0;
+				}
+
+				numLive[cell] = 0;
+			}
+		}
+	}
+
+	int cell(int i, int j){
+		return i * (maxLength + 1) + j;
+	}
+
+	private void ensureCapacity(int length){
+		if( length > maxLength ){
+			int newLength = CKYParser.growChart(length, maxLength, Integer.MAX_VALUE, numSymbols);
+			int numCells = (int)CKYParser.chartEntries(newLength, 1);
+			int size = numCells * numSymbols;
+
+			// allocate everything before switching, so a failed allocation leaves the old chart usable
+			double[] newIn = new double[size];
+			double[] newUp = new double[size];
+			double[] newOutIn = new double[size];
+			double[] newOutUp = new double[size];
+			int[] newLive = new int[size];
+			double[] newScale = new double[numCells];
+			double[] newOutScale = new double[numCells];
+			int[] newNumLive = new int[numCells];
+			int[] newWordIds = new int[newLength];
+			allocate(numCells, size);
+
+			in = newIn;
+			up = newUp;
+			outIn = newOutIn;
+			outUp = newOutUp;
+			live = newLive;
+			scale = newScale;
+			outScale = newOutScale;
+			numLive = newNumLive;
+			wordIds = newWordIds;
+			maxLength = newLength;
+		}
+	}
+}
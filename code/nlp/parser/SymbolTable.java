@@ -0,0 +1,174 @@
+package nlp.parser;
+import java.util.Arrays;
+
+/**
+ * A table that interns symbols (nonterminals, part of speech tags and words) as dense integer
+ * ids.  The first symbol interned gets id 0, the next id 1, etc.
+ *
+ * Symbols can also be looked up and interned from a range of characters (e.g. of the line a
+ * TreeReader is reading), which only creates a String the first time a symbol is seen.
+ *
+ * A symbol table is not thread safe.
+ *
+ */
+public class SymbolTable {
+	private static final int EMPTY = -1; // an unused slot in the hash table
+
+	private int[] slots = newSlots(64); // open addressing hash table of symbol ids, EMPTY if unused
+	private String[] symbols = new String[16]; // id -> symbol
+	private int[] hashes = new int[16]; // id -> String.hashCode() of the symbol
+	private int size = 0;
+
+	/**
+	 * Get the id of a symbol, adding the symbol to the table if it isn't already in it
+	 *
+	 * @param symbol the symbol
+	 * @return the id of the symbol
+	 */
+	public int intern(String symbol){
+		return intern(symbol, 0, symbol.length());
+	}
+
+	/**
+	 * Get the id of the symbol made up of a range of characters, adding the symbol to the table
+	 * if it isn't already in it
+	 *
+	 * @param text the characters
+	 * @param start the offset of the first character of the symbol
+	 * @param end the offset just past the last character of the symbol
+	 * @return the id of the symbol
+	 */
+	public int intern(CharSequence text, int start, int end){
+		int hash = hash(text, start, end);
+		int slot = findSlot(hash, text, start, end);
+		int id = slots[slot];
+
+		if( id == EMPTY ){
+			id = size++;
+
+			if( id == symbols.length ){
+				symbols = Arrays.copyOf(symbols, 2 * id);
+				hashes = Arrays.copyOf(hashes, 2 * id);
+			}
+
+			symbols[id] = text.subSequence(start, end).toString();
+			hashes[id] = hash;
+			slots[slot] = id;
+
+			// keep the table at most half full
+			if( 2 * size > slots.length - 1 ){
+				rehash();
+			}
+		}
+
+		return id;
+	}
+
+	/**
+	 * Get the id of a symbol
+	 *
+	 * @param symbol the symbol
+	 * @return the id of the symbol or -1 if the symbol isn't in the table
+	 */
+	public int getId(String symbol){
+		return slots[findSlot(hash(symbol, 0, symbol.length()), symbol, 0, symbol.length())];
+	}
+
+	/**
+	 * Get the symbol with a given id
+	 *
+	 * @param id the id of the symbol
+	 * @return the symbol
+	 */
+	public String getSymbol(int id){
+		if( id >= size ){
+			throw new IndexOutOfBoundsException("No symbol " + id + " in a table of " + size);
+		}
+
+		return symbols[id];
+	}
+
+	/**
+	 * The number of symbols in the table
+	 *
+	 * @return the number of symbols in the table
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Find the slot that has the symbol or, if the symbol isn't in the table, the empty slot
+	 * where it belongs
+	 */
+	private int findSlot(int hash, CharSequence text, int start, int end){
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+
+		while( true ){
+			int id = slots[slot];
+
+			if( id == EMPTY || (hashes[id] == hash && matches(symbols[id], text, start, end)) ){
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static boolean matches(String symbol, CharSequence text, int start, int end){
+		if( symbol.length() != end - start ){
+			return false;
+		}
+
+		for( int i = 0; i < symbol.length(); i++ ){
+			if( symbol.charAt(i) != text.charAt(start + i) ){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Double the size of the hash table
+	 */
+	private void rehash(){
+		slots = newSlots(2 * slots.length);
+		int mask = slots.length - 1;
+
+		for( int id = 0; id < size; id++ ){
+			int slot = mix(hashes[id]) & mask;
+
+			while( slots[slot] != EMPTY ){
+				slot = (slot + 1) & mask;
+			}
+
+			slots[slot] = id;
+		}
+	}
+
+	private static int[] newSlots(int size){
+		int[] slots = new int[size];
+		Arrays.fill(slots, EMPTY);
+		return slots;
+	}
+
+	/**
+	 * The same hash as String.hashCode() for the characters
+	 */
+	private static int hash(CharSequence text, int start, int end){
+		int h = 0;
+
+		for( int i = start; i < end; i++ ){
+			h = 31 * h + text.charAt(i);
+		}
+
+		return h;
+	}
+
+	private static int mix(int h){
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
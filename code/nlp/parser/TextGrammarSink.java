@@ -0,0 +1,62 @@
+package nlp.parser;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes rules in the text format of GrammarRule.toString(), one rule per line, e.g.
+ *   S -> NP VP		0.9
+ *   NN -> * dog		0.01
+ *
+ * Every line is formatted in the same reused buffer, so writing a rule doesn't allocate a
+ * GrammarRule or a String.
+ *
+ */
+public class TextGrammarSink implements GrammarSink {
+	private final Writer writer;
+	private final StringBuilder line = new StringBuilder(); // the line being formatted
+	private char[] chars = new char[256]; // the characters of line, to write them without a String
+
+	/**
+	 * Create a sink that writes UTF-8 text to a stream
+	 *
+	 * @param out the stream, which is closed when the sink is closed
+	 */
+	public TextGrammarSink(OutputStream out){
+		this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	public void write(SymbolTable symbols, int lhs, int[] rhs, int rhsLength, boolean lexical, double weight) throws IOException{
+		line.setLength(0);
+		line.append(symbols.getSymbol(lhs)).append(" -> ");
+
+		// if this is a lexical rule, prefix it with the lexical symbol
+		if( lexical ){
+			line.append("* ");
+		}
+
+		for( int i = 0; i < rhsLength; i++ ){
+			if( i > 0 ){
+				line.append(' ');
+			}
+
+			line.append(symbols.getSymbol(rhs[i]));
+		}
+
+		line.append("\t\t").append(weight).append('\n');
+
+		if( line.length() > chars.length ){
+			chars = new char[Math.max(line.length(), 2 * chars.length)];
+		}
+
+		line.getChars(0, line.length(), chars, 0);
+		writer.write(chars, 0, line.length());
+	}
+
+	public void close() throws IOException{
+		writer.close();
+	}
+}
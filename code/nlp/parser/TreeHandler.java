@@ -0,0 +1,36 @@
+package nlp.parser;
+
+/**
+ * Receives the events of a parenthesized parse tree as a TreeReader reads it from left to
+ * right, e.g. (NP (DT the) (NN dog)) is:
+ *   openNode(NP), openNode(DT), leaf(the), closeNode(), openNode(NN), leaf(dog), closeNode(), closeNode()
+ *
+ * Labels and words are given as a range of the text being read, so a handler that doesn't
+ * need a String doesn't have to create one.  If the tree turns out to be malformed, the
+ * reader throws an exception part way through the events.
+ *
+ */
+public interface TreeHandler {
+	/**
+	 * A new node starts
+	 *
+	 * @param text the text being read
+	 * @param start the offset of the first character of the label of the node
+	 * @param end the offset just past the last character of the label
+	 */
+	void openNode(CharSequence text, int start, int end);
+
+	/**
+	 * The current node (a part of speech) has a word
+	 *
+	 * @param text the text being read
+	 * @param start the offset of the first character of the word
+	 * @param end the offset just past the last character of the word
+	 */
+	void leaf(CharSequence text, int start, int end);
+
+	/**
+	 * The current node ends
+	 */
+	void closeNode();
+}
@@ -0,0 +1,316 @@
+package nlp.parser;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A single pass reader for parenthesized parse trees, e.g.:
+ *   (S (NP (NNP John)) (VP (VB likes) (NP (NNP Mary))) (. .))
+ *
+ * The reader walks the characters once from left to right, keeping only the number of children
+ * of each open node, so no substrings of the remaining text are made and deep trees do not
+ * recurse.  A tree can either be built as a ParseTree or be streamed as events to a
+ * TreeHandler, which doesn't create any objects at all.  When building trees, labels are shared
+ * through a small cache, so repeated labels (NP, VP, DT, ...) are only allocated once per reader.
+ *
+ * A reader is not thread safe, but it can (and should) be reused for many trees.
+ *
+ */
+public class TreeReader {
+	private static final int CACHE_SIZE = 4096; // must be a power of two
+
+	private final String[] labelCache = new String[CACHE_SIZE]; // direct mapped label cache
+	private final TreeBuilder builder = new TreeBuilder(); // the handler that builds ParseTrees
+	private int[] childCounts = new int[16]; // depth -> the number of children of the open node
+
+	private CharSequence text; // the text currently being read
+	private int pos; // the current offset into text
+	private int end; // the end offset (exclusive) of text
+
+	/**
+	 * Read a single tree from text.  Only whitespace may follow the tree.
+	 *
+	 * @param text a parenthesized version of a parse tree
+	 * @return the parse tree
+	 */
+	public ParseTree read(CharSequence text){
+		read(text, builder);
+		return builder.take();
+	}
+
+	/**
+	 * Read a single tree from a range of a character buffer.  Only whitespace may follow the tree.
+	 *
+	 * @param buffer the characters
+	 * @param offset the offset of the first character of the tree
+	 * @param length the number of characters to read
+	 * @return the parse tree
+	 */
+	public ParseTree read(char[] buffer, int offset, int length){
+		return read(CharBuffer.wrap(buffer, offset, length).slice());
+	}
+
+	/**
+	 * Read a single tree from text, sending its events to handler.  Only whitespace may follow
+	 * the tree.
+	 *
+	 * @param text a parenthesized version of a parse tree
+	 * @param handler the handler for the events of the tree
+	 */
+	public void read(CharSequence text, TreeHandler handler){
+		reset(text);
+		next(handler);
+
+		skipWhitespace();
+
+		if( pos != end ){
+			throw error("unexpected text after tree");
+		}
+
+		this.text = null; // don't hold on to the text between reads
+	}
+
+	/**
+	 * Start reading the (possibly multiple, whitespace separated) trees in text.  Use hasNext()
+	 * and next() to get the trees.
+	 *
+	 * @param text the text to read the trees from
+	 */
+	public void reset(CharSequence text){
+		this.text = text;
+		this.pos = 0;
+		this.end = text.length();
+	}
+
+	/**
+	 * Whether there is another tree in the current text
+	 *
+	 * @return whether there is another tree in the current text
+	 */
+	public boolean hasNext(){
+		skipWhitespace();
+		return pos < end;
+	}
+
+	/**
+	 * Read the next tree from the current text
+	 *
+	 * @return the next tree
+	 */
+	public ParseTree next(){
+		next(builder);
+		return builder.take();
+	}
+
+	/**
+	 * Read the next tree from the current text, sending its events to handler
+	 *
+	 * @param handler the handler for the events of the tree
+	 */
+	public void next(TreeHandler handler){
+		skipWhitespace();
+
+		if( handler == builder ){
+			builder.clear();
+		}
+
+		int depth = 0; // the number of open nodes
+		boolean started = false;
+
+		do{
+			if( pos >= end ){
+				throw error("unexpected end of tree");
+			}
+
+			char c = text.charAt(pos);
+
+			if( c == '(' ){
+				if( depth == 0 && started ){
+					throw error("expected end of tree");
+				}else if( depth > 0 ){
+					childCounts[depth-1]++;
+				}
+
+				pos++;
+				started = true;
+
+				int labelStart = pos;
+				int labelEnd = readLabel();
+				handler.openNode(text, labelStart, labelEnd);
+
+				// a part of speech: the rest of the node up to the ')' is the word
+				if( pos < end && text.charAt(pos) != '(' ){
+					int wordStart = pos;
+					int wordEnd = readWord();
+					handler.leaf(text, wordStart, wordEnd);
+					pos++;
+					handler.closeNode();
+				}else{
+					if( depth == childCounts.length ){
+						childCounts = Arrays.copyOf(childCounts, 2 * depth);
+					}
+
+					childCounts[depth++] = 0;
+				}
+			}else if( c == ')' ){
+				if( depth == 0 ){
+					throw error("unbalanced ')'");
+				}else if( childCounts[depth-1] == 0 ){
+					throw error("node without children");
+				}
+
+				depth--;
+				pos++;
+				handler.closeNode();
+			}else if( Character.isWhitespace(c) ){
+				pos++;
+			}else{
+				throw error("expected '(' or ')'");
+			}
+		}while( depth > 0 );
+	}
+
+	/**
+	 * Read a constituent label and the single space that follows it
+	 *
+	 * @return the offset just past the end of the label
+	 */
+	private int readLabel(){
+		int start = pos;
+
+		while( pos < end ){
+			char c = text.charAt(pos);
+
+			if( c == '(' || c == ')' || Character.isWhitespace(c) ){
+				break;
+			}
+
+			pos++;
+		}
+
+		if( pos == start ){
+			throw error("missing label");
+		}else if( pos == end ){
+			throw error("unexpected end of tree");
+		}else if( text.charAt(pos) != ' ' ){
+			throw error("expected a space after the label");
+		}
+
+		return pos++;
+	}
+
+	/**
+	 * Read a word, i.e. everything up to (but not including) the next ')'.  A word can't start
+	 * with whitespace or contain a '(', which is a child after more than one space, e.g. the
+	 * (DT the) of (NP  (DT the)).
+	 *
+	 * @return the offset just past the end of the word
+	 */
+	private int readWord(){
+		int start = pos;
+
+		if( Character.isWhitespace(text.charAt(pos)) ){
+			throw error("expected a single space after the label");
+		}
+
+		while( pos < end && text.charAt(pos) != ')' ){
+			if( text.charAt(pos) == '(' ){
+				throw error("'(' in a word");
+			}
+
+			pos++;
+		}
+
+		if( pos == end ){
+			throw error("unexpected end of tree");
+		}else if( pos == start ){
+			throw error("missing word");
+		}
+
+		return pos;
+	}
+
+	/**
+	 * Get the String for the characters of text in [start, stop), reusing the cached copy if
+	 * we've seen it recently
+	 */
+	private String intern(CharSequence text, int start, int stop){
+		int hash = 0;
+
+		for( int i = start; i < stop; i++ ){
+			hash = 31 * hash + text.charAt(i);
+		}
+
+		int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE-1);
+		String cached = labelCache[slot];
+
+		if( cached != null && cached.length() == stop - start ){
+			boolean same = true;
+
+			for( int i = 0; same && i < cached.length(); i++ ){
+				same = cached.charAt(i) == text.charAt(start+i);
+			}
+
+			if( same ){
+				return cached;
+			}
+		}
+
+		String s = text.subSequence(start, stop).toString();
+		labelCache[slot] = s;
+
+		return s;
+	}
+
+	private void skipWhitespace(){
+		while( pos < end && Character.isWhitespace(text.charAt(pos)) ){
+			pos++;
+		}
+	}
+
+	private RuntimeException error(String message){
+		return new RuntimeException("Malformed tree at offset " + pos + ": " + message);
+	}
+
+	/**
+	 * The handler that builds a ParseTree from the events
+	 */
+	private class TreeBuilder implements TreeHandler {
+		private final ArrayList<ParseTree> stack = new ArrayList<ParseTree>(); // the currently open nodes
+		private ParseTree root;
+
+		private void clear(){
+			stack.clear();
+			root = null;
+		}
+
+		/**
+		 * Get the tree that was built, without holding on to it
+		 */
+		private ParseTree take(){
+			ParseTree tree = root;
+			root = null;
+			return tree;
+		}
+
+		public void openNode(CharSequence text, int start, int end){
+			ParseTree node = new ParseTree(intern(text, start, end), false);
+
+			if( stack.isEmpty() ){
+				root = node;
+			}else{
+				stack.get(stack.size()-1).addChild(node);
+			}
+
+			stack.add(node);
+		}
+
+		public void leaf(CharSequence text, int start, int end){
+			stack.get(stack.size()-1).addChild(new ParseTree(intern(text, start, end), true));
+		}
+
+		public void closeNode(){
+			stack.remove(stack.size()-1);
+		}
+	}
+}
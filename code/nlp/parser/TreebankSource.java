@@ -0,0 +1,374 @@
+package nlp.parser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The lines (one tree per line) of a treebank that may be spread over many files.  A treebank
+ * is given as:
+ *   - a file, e.g. data/short.parsed
+ *   - a directory: every regular file under it, except for hidden files (whose name starts with
+ *     a dot, or that are under a hidden directory) and editor backups (whose name ends with ~)
+ *   - a glob, e.g. data/shards/*.parsed.gz, or *.parsed for the current directory
+ * The files are read in sorted order.  Files ending in .gz are gunzipped as they are read.
+ *
+ * Plain files are memory-mapped and split into lines at the byte level.  Lines that are pure
+ * ASCII (the usual case for treebanks) are handed out as a CharSequence view of the mapped
+ * bytes, without decoding or copying them; other lines are decoded as UTF-8.  The CharSequence
+ * passed to the consumer is only valid during the call, so use toString() to keep a line.
+ * Empty lines are skipped.
+ *
+ */
+public class TreebankSource {
+	private static final int WINDOW = 1 << 28; // how much of a file is mapped at a time
+	private static final int GZIP_BUFFER = 1 << 20;
+
+	private final List<Path> files;
+
+	/**
+	 * A consumer of the lines of a treebank that also gets where each line is
+	 */
+	public interface LineConsumer {
+		/**
+		 * Consume a line
+		 *
+		 * @param line the line, which is only valid during the call
+		 * @param file the file of the line
+		 * @param lineNumber the number of the line in the file, from 1
+		 */
+		void accept(CharSequence line, Path file, long lineNumber);
+	}
+
+	/**
+	 * An error in a line of a treebank, whose message already starts with the file and line
+	 * number, so it is passed on as is rather than prefixed again with the line being read
+	 */
+	public static class TreebankException extends RuntimeException {
+		public TreebankException(String message, Throwable cause){
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * Create a source for a treebank
+	 *
+	 * @param treebank a file, a directory or a glob
+	 * @throws IOException if the treebank can't be found
+	 */
+	public TreebankSource(String treebank) throws IOException{
+		files = resolve(treebank);
+
+		if( files.isEmpty() ){
+			throw new IOException("No treebank files found for " + treebank);
+		}
+	}
+
+	/**
+	 * Get the files of the treebank
+	 *
+	 * @return the files, in the order they are read
+	 */
+	public List<Path> getFiles(){
+		return files;
+	}
+
+	/**
+	 * Pass every (non-empty) line of the treebank to consumer, in order.  If the consumer throws a
+	 * RuntimeException, it is rethrown as a TreebankException with the file and line number.
+	 *
+	 * @param consumer the consumer of the lines
+	 * @throws IOException if a file can't be read
+	 */
+	public void forEachLine(Consumer<CharSequence> consumer) throws IOException{
+		forEachLine((line, file, lineNumber) -> consumer.accept(line));
+	}
+
+	/**
+	 * Pass every (non-empty) line of the treebank to consumer, in order, with its file and line
+	 * number, e.g. to report errors in lines that are handled later on other threads.  If the
+	 * consumer throws a RuntimeException, it is rethrown as a TreebankException with the file and
+	 * line number, unless it is a TreebankException already (e.g. for an earlier line).
+	 *
+	 * @param consumer the consumer of the lines
+	 * @throws IOException if a file can't be read
+	 */
+	public void forEachLine(LineConsumer consumer) throws IOException{
+		for( Path file: files ){
+			LineSplitter splitter = new LineSplitter(file, consumer);
+
+			if( file.getFileName().toString().endsWith(".gz") ){
+				splitter.readGzip();
+			}else{
+				splitter.readMapped();
+			}
+		}
+	}
+
+	/**
+	 * Find the files of a treebank
+	 */
+	private static List<Path> resolve(String treebank) throws IOException{
+		List<Path> files = new ArrayList<Path>();
+		Path path = Paths.get(isGlob(treebank) ? globBase(treebank) : treebank);
+
+		if( isGlob(treebank) ){
+			// match the part of the glob after its base against the paths relative to the base, since
+			// the walk may spell the base differently (./short.parsed for *.parsed)
+			String base = globBase(treebank);
+			String rest = base.equals(".") ? treebank : treebank.substring(base.length());
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + rest);
+
+			try( Stream<Path> walk = Files.walk(path) ){
+				walk.filter(p -> Files.isRegularFile(p) && matcher.matches(path.relativize(p))).forEach(files::add);
+			}
+		}else if( Files.isDirectory(path) ){
+			try( Stream<Path> walk = Files.walk(path) ){
+				walk.filter(p -> Files.isRegularFile(p) && !isHidden(path.relativize(p))).forEach(files::add);
+			}
+		}else if( Files.exists(path) ){
+			files.add(path);
+		}else{
+			throw new IOException("No such treebank: " + treebank);
+		}
+
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Whether a file under a treebank directory is hidden or an editor backup, given its path
+	 * relative to the directory
+	 */
+	private static boolean isHidden(Path relative){
+		for( Path part: relative ){
+			if( part.toString().startsWith(".") ){
+				return true;
+			}
+		}
+
+		return relative.getFileName().toString().endsWith("~");
+	}
+
+	private static boolean isGlob(String treebank){
+		for( char c: "*?[{".toCharArray() ){
+			if( treebank.indexOf(c) != -1 ){
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * The directory part of a glob before the first wildcard
+	 */
+	private static String globBase(String glob){
+		int wildcard = glob.length();
+
+		for( char c: "*?[{".toCharArray() ){
+			int i = glob.indexOf(c);
+
+			if( i != -1 ){
+				wildcard = Math.min(wildcard, i);
+			}
+		}
+
+		int separator = glob.lastIndexOf('/', wildcard);
+		return separator == -1 ? "." : glob.substring(0, separator + 1);
+	}
+
+	/**
+	 * Splits the bytes of one file into lines
+	 */
+	private static class LineSplitter {
+		private final Path file;
+		private final LineConsumer consumer;
+		private final AsciiLine ascii = new AsciiLine();
+		private long lineNumber = 0;
+
+		private LineSplitter(Path file, LineConsumer consumer){
+			this.file = file;
+			this.consumer = consumer;
+		}
+
+		/**
+		 * Map the file a window at a time.  Every window starts at the beginning of a line and
+		 * ends after the last complete line in it (or at the end of the file).
+		 */
+		private void readMapped() throws IOException{
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+			try{
+				long size = channel.size();
+				long offset = 0;
+				int window = WINDOW;
+
+				while( offset < size ){
+					int length = (int)Math.min(window, size - offset);
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+					int consumed = split(buffer, length, offset + length == size);
+
+					if( consumed == 0 ){
+						// a line longer than the window: map more of the file at once
+						if( window == Integer.MAX_VALUE ){
+							throw new IOException(file + ": line " + (lineNumber + 1) + " is longer than 2GB");
+						}
+
+						window = (int)Math.min(2L * window, Integer.MAX_VALUE);
+					}
+
+					offset += consumed;
+				}
+			}finally{
+				channel.close();
+			}
+		}
+
+		/**
+		 * Gunzip the file into a buffer, splitting it into lines as it fills up
+		 */
+		private void readGzip() throws IOException{
+			InputStream in = new GZIPInputStream(Files.newInputStream(file), GZIP_BUFFER);
+
+			try{
+				byte[] bytes = new byte[GZIP_BUFFER];
+				int filled = 0;
+				int read;
+
+				while( (read = in.read(bytes, filled, bytes.length - filled)) != -1 ){
+					filled += read;
+
+					if( filled == bytes.length ){
+						int consumed = split(ByteBuffer.wrap(bytes), filled, false);
+
+						if( consumed == 0 ){
+							// a line longer than the buffer
+							bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+						}else{
+							System.arraycopy(bytes, consumed, bytes, 0, filled - consumed);
+							filled -= consumed;
+						}
+					}
+				}
+
+				split(ByteBuffer.wrap(bytes), filled, true);
+			}finally{
+				in.close();
+			}
+		}
+
+		/**
+		 * Pass the complete lines in the first length bytes of buffer to the consumer.  If last,
+		 * the bytes after the last newline are a line too.
+		 *
+		 * @return the number of bytes consumed
+		 */
+		private int split(ByteBuffer buffer, int length, boolean last){
+			int start = 0;
+			int nonAscii = 0; // the bits of all of the bytes of the current line, to spot non-ASCII
+
+			for( int i = 0; i < length; i++ ){
+				byte b = buffer.get(i);
+
+				if( b == '\n' ){
+					line(buffer, start, i, nonAscii);
+					start = i + 1;
+					nonAscii = 0;
+				}else{
+					nonAscii |= b;
+				}
+			}
+
+			if( last && start < length ){
+				line(buffer, start, length, nonAscii);
+				start = length;
+			}
+
+			return start;
+		}
+
+		private void line(ByteBuffer buffer, int start, int end, int nonAscii){
+			lineNumber++;
+
+			if( end > start && buffer.get(end - 1) == '\r' ){
+				end--;
+			}
+
+			if( end == start ){
+				return;
+			}
+
+			CharSequence line;
+
+			if( (nonAscii & 0x80) == 0 ){
+				ascii.set(buffer, start, end - start);
+				line = ascii;
+			}else{
+				byte[] utf8 = new byte[end - start];
+				buffer.get(start, utf8);
+				line = new String(utf8, StandardCharsets.UTF_8);
+			}
+
+			try{
+				consumer.accept(line, file, lineNumber);
+			}catch( TreebankException e ){
+				throw e;
+			}catch( RuntimeException e ){
+				throw new TreebankException(file + ":" + lineNumber + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * A CharSequence view of ASCII bytes
+	 */
+	private static class AsciiLine implements CharSequence {
+		private ByteBuffer buffer;
+		private int start;
+		private int length;
+
+		private void set(ByteBuffer buffer, int start, int length){
+			this.buffer = buffer;
+			this.start = start;
+			this.length = length;
+		}
+
+		public int length(){
+			return length;
+		}
+
+		public char charAt(int index){
+			if( index < 0 || index >= length ){
+				throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+			}
+
+			return (char)buffer.get(start + index);
+		}
+
+		public CharSequence subSequence(int from, int to){
+			byte[] bytes = new byte[to - from];
+			buffer.get(start + from, bytes);
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+
+		public String toString(){
+			return subSequence(0, length).toString();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package nlp.parser;
+
+/**
+ * Rare-word handling for the lexical rules of a PCFG.  Words seen fewer than threshold times in
+ * the treebank are replaced by a signature, a class of words that look alike, e.g.
+ *   Fitzgerald -> UNK-INITC
+ *   reorganizing -> UNK-LC-ing
+ *   1,250 -> UNK-NUM
+ * so the grammar learns which tags unknown words of each shape take.  Every rare word is also
+ * counted under the plain UNK signature, so that there is a signature for any word.  At parse
+ * time a word that isn't in the grammar is looked up by its signature instead, backing off to
+ * coarser signatures the grammar has (see backoff() and LexiconCache).
+ *
+ * The counts of the PCFG aren't changed; replaceRare() creates a new PCFG, so more trees can
+ * still be added to the original counts and rare words replaced again afterwards.
+ *
+ */
+public class UnknownWords {
+	public static final String UNKNOWN = "UNK"; // the start of every signature, and the most general one
+
+	private static final String[] SUFFIXES = {"ing", "ion", "ed", "ly", "est", "er", "al", "ity", "y", "s"};
+
+	private final int threshold;
+	private int numRareWords = 0; // the number of rare word types replaced in the last PCFG
+
+	/**
+	 * Create rare-word handling
+	 *
+	 * @param threshold words seen fewer times than this are replaced by their signature
+	 */
+	public UnknownWords(int threshold){
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Replace the rare words of the lexical rules of a PCFG by their signatures
+	 *
+	 * @param pcfg the PCFG, with its counts
+	 * @return a new PCFG with the rare words replaced, with its counts and weights
+	 */
+	public ConstructPCFG replaceRare(ConstructPCFG pcfg){
+		SymbolTable symbols = pcfg.getSymbols();
+		RuleTable table = pcfg.getTable();
+
+		// the number of times each word was seen, over all of its tags
+		long[] wordCounts = new long[symbols.size()];
+
+		for( int rule = 0; rule < table.size(); rule++ ){
+			if( table.isLexical(rule) ){
+				wordCounts[table.getRhs(rule, 0)] += table.getCount(rule);
+			}
+		}
+
+		ConstructPCFG replaced = new ConstructPCFG();
+
+		// the symbols keep their ids in the new PCFG
+		for( int id = 0; id < symbols.size(); id++ ){
+			replaced.symbols.intern(symbols.getSymbol(id));
+		}
+
+		numRareWords = 0;
+
+		for( int id = 0; id < wordCounts.length; id++ ){
+			if( wordCounts[id] > 0 && wordCounts[id] < threshold ){
+				numRareWords++;
+			}
+		}
+
+		int[] rhs = new int[16];
+
+		for( int rule = 0; rule < table.size(); rule++ ){
+			int rhsSize = table.numRhs(rule);
+
+			if( rhsSize > rhs.length ){
+				rhs = new int[Math.max(rhsSize, 2 * rhs.length)];
+			}
+
+			for( int i = 0; i < rhsSize; i++ ){
+				rhs[i] = table.getRhs(rule, i);
+			}
+
+			if( table.isLexical(rule) && wordCounts[rhs[0]] < threshold ){
+				String signature = signature(symbols.getSymbol(rhs[0]));
+
+				if( !signature.equals(UNKNOWN) ){
+					rhs[0] = replaced.symbols.intern(UNKNOWN);
+					replaced.table.add(table.getLhs(rule), rhs, rhsSize, true, table.getCount(rule));
+				}
+
+				rhs[0] = replaced.symbols.intern(signature);
+			}
+
+			replaced.table.add(table.getLhs(rule), rhs, rhsSize, table.isLexical(rule), table.getCount(rule));
+		}
+
+		replaced.updateWeights();
+		return replaced;
+	}
+
+	/**
+	 * Get the number of rare words replaced in the last PCFG
+	 *
+	 * @return the number of rare word types
+	 */
+	public int getNumRareWords(){
+		return numRareWords;
+	}
+
+	/**
+	 * Get the signature of a word: UNK followed by its capitalization, whether it has digits or
+	 * dashes, and its suffix, e.g. UNK-LC-DASH-ed
+	 *
+	 * @param word the word
+	 * @return the signature
+	 */
+	public static String signature(String word){
+		StringBuilder signature = new StringBuilder(UNKNOWN);
+		boolean hasDigit = false;
+		boolean hasDash = false;
+		boolean hasLower = false;
+		boolean hasLetter = false;
+
+		for( int i = 0; i < word.length(); i++ ){
+			char c = word.charAt(i);
+			hasDigit |= Character.isDigit(c);
+			hasDash |= c == '-';
+			hasLower |= Character.isLowerCase(c);
+			hasLetter |= Character.isLetter(c);
+		}
+
+		if( hasLetter ){
+			if( Character.isUpperCase(word.charAt(0)) ){
+				signature.append(hasLower ? "-INITC" : "-CAPS");
+			}else if( hasLower ){
+				signature.append("-LC");
+			}
+		}else if( !hasDigit ){
+			signature.append("-SYM");
+		}
+
+		if( hasDigit ){
+			signature.append("-NUM");
+		}
+
+		if( hasDash ){
+			signature.append("-DASH");
+		}
+
+		// the suffix, for lowercase words long enough to have one
+		if( hasLower && word.length() > 3 ){
+			String lower = word.toLowerCase();
+
+			for( String suffix: SUFFIXES ){
+				if( lower.endsWith(suffix) && !(suffix.equals("s") && lower.endsWith("ss")) ){
+					signature.append('-').append(suffix);
+					break;
+				}
+			}
+		}
+
+		return signature.toString();
+	}
+
+	/**
+	 * Get the next coarser signature: the signature without its last part, so that the suffix is
+	 * dropped first, then DASH, then NUM, and then the capitalization, e.g.
+	 *   UNK-INITC-NUM-DASH -> UNK-INITC-NUM -> UNK-INITC -> UNK
+	 *
+	 * @param signature a signature
+	 * @return the coarser signature, or null for UNK
+	 */
+	public static String backoff(String signature){
+		int dash = signature.lastIndexOf('-');
+		return dash < UNKNOWN.length() ? null : signature.substring(0, dash);
+	}
+}
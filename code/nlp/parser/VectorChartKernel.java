@@ -0,0 +1,89 @@
+package nlp.parser;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A ChartKernel that does the rules of a (left child, right child) pair a vector at a time, with
+ * the preferred vector size of the CPU (4 doubles with AVX2, 8 with AVX-512).  The inside scores
+ * of the parents are gathered, compared with the new scores, and the better ones are scattered
+ * back along with their rule ids and split point.  The parents of the rules of a pair are all
+ * different, so the lanes of a scatter never collide.  The last rules of a pair that don't fill
+ * a vector are done one at a time.
+ *
+ * Only loaded by ChartKernel.create(), when the JVM has the jdk.incubator.vector module.
+ *
+ */
+class VectorChartKernel extends ChartKernel {
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INTS = // as many ints as DOUBLES has doubles
+			VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+	private static final int LANES = DOUBLES.length();
+
+	/**
+	 * Create the kernel
+	 *
+	 * @throws UnsupportedOperationException if the vectors of the CPU hold a single double
+	 */
+	VectorChartKernel(){
+		if( LANES < 2 ){
+			throw new UnsupportedOperationException("No double vectors on this CPU");
+		}
+	}
+
+	String getName(){
+		return "vector " + DOUBLES.vectorBitSize() + " bit";
+	}
+
+	void combine(GrammarIndex index, double[] score, int[] live, int leftBase, int numLeft, int rightBase,
+			double[] inside, int[] back, int[] split, int base, int k){
+		int[] rules = index.binaryRules();
+		int[] parents = index.binaryParents();
+		double[] scores = index.binaryScores();
+		IntVector splits = IntVector.broadcast(INTS, k);
+
+		for( int l = 0; l < numLeft; l++ ){
+			int a = live[leftBase + l];
+			double left = score[leftBase + a];
+
+			for( int pair = index.pairStart(a); pair < index.pairStart(a + 1); pair++ ){
+				double right = score[rightBase + index.getPairRight(pair)];
+
+				if( right == NONE ){
+					continue;
+				}
+
+				double children = left + right;
+				int x = index.pairRuleStart(pair);
+				int end = index.pairRuleStart(pair + 1);
+
+				for( ; x + LANES <= end; x += LANES ){
+					DoubleVector s = DoubleVector.fromArray(DOUBLES, scores, x).add(children);
+					DoubleVector current = DoubleVector.fromArray(DOUBLES, inside, base, parents, x);
+					VectorMask<Double> better = s.compare(VectorOperators.GT, current);
+
+					if( better.anyTrue() ){
+						VectorMask<Integer> betterInts = better.cast(INTS);
+						s.intoArray(inside, base, parents, x, better);
+						IntVector.fromArray(INTS, rules, x).intoArray(back, base, parents, x, betterInts);
+						splits.intoArray(split, base, parents, x, betterInts);
+					}
+				}
+
+				for( ; x < end; x++ ){
+					double s = children + scores[x];
+					int parent = base + parents[x];
+
+					if( s > inside[parent] ){
+						inside[parent] = s;
+						back[parent] = rules[x];
+						split[parent] = k;
+					}
+				}
+			}
+		}
+	}
+}